@@ -124,6 +124,15 @@ public class XYZMap<T extends XYZAddressable> implements Iterable<T> {
         return this.size;
     }
 
+    /**
+     * Returns the length of the backing arrays of this map
+     *
+     * @return the length of the backing arrays of this map
+     */
+    public int getCapacity() {
+        return this.bucketsByHash.length;
+    }
+
     /**
      * Computes a 32b hash based on the given coordinates.
      *
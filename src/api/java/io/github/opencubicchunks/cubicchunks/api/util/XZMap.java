@@ -109,6 +109,15 @@ public class XZMap<T extends XZAddressable> implements Iterable<T> {
         return this.size;
     }
 
+    /**
+     * Returns the length of the backing arrays of this map
+     *
+     * @return the length of the backing arrays of this map
+     */
+    public int getCapacity() {
+        return this.buckets.length;
+    }
+
 
     /**
      * Computes a 32b hash based on the given coordinates.
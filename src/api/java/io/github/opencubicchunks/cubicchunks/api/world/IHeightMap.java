@@ -42,6 +42,24 @@ public interface IHeightMap {
      */
     void onOpacityChange(int localX, int blockY, int localZ, int opacity);
 
+    /**
+     * Sets the opacity of a 16 blocks tall range of every block column at once. This has the same effect as calling
+     * {@link #onOpacityChange(int, int, int, int)} for each block in the range, but allows implementations to merge the
+     * whole range into each block column in one step.
+     *
+     * @param minBlockY global y-coordinate of the lowest block in the range
+     * @param opaqueMasks opaque blocks of each block column, indexed by {@code localZ << 4 | localX}. Bit n is set if
+     * the block at minBlockY + n is opaque
+     */
+    default void onOpacityChange(int minBlockY, short[] opaqueMasks) {
+        for (int xzIndex = 0; xzIndex < opaqueMasks.length; xzIndex++) {
+            int mask = opaqueMasks[xzIndex];
+            for (int dy = 15; dy >= 0; dy--) {
+                onOpacityChange(xzIndex & 0xF, minBlockY + dy, xzIndex >> 4, ((mask >>> dy) & 1) * 255);
+            }
+        }
+    }
+
     /**
      * Returns true if the block at the given position is occluded by a known non-opaque block further up.
      *
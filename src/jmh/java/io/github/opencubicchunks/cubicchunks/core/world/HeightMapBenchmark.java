@@ -0,0 +1,107 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.world;
+
+import io.github.opencubicchunks.cubicchunks.api.world.IHeightMap;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Compares the packed {@link ServerHeightMap} with the previous array-per-block-column implementation.
+ */
+@State(Scope.Thread)
+public class HeightMapBenchmark {
+
+    private static final int QUERIES = 4096;
+    private static final int MIN_Y = -256;
+    private static final int MAX_Y = 256;
+
+    @Param({"packed", "array"})
+    public String implementation;
+
+    /**
+     * Amount of random opacity changes per block column before measuring. More changes mean more segments.
+     */
+    @Param({"4", "32"})
+    public int changesPerColumn;
+
+    private IHeightMap heightMap;
+
+    private int[] queryX;
+    private int[] queryY;
+    private int[] queryZ;
+    private int[] queryOpacity;
+    private int queryIndex;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] heightmap = new int[Cube.SIZE * Cube.SIZE];
+        this.heightMap = "packed".equals(implementation) ? new ServerHeightMap(heightmap) : new ArrayServerHeightMap(heightmap);
+
+        Random rand = new Random(42);
+        for (int i = 0; i < changesPerColumn * Cube.SIZE * Cube.SIZE; i++) {
+            heightMap.onOpacityChange(rand.nextInt(Cube.SIZE), randomY(rand), rand.nextInt(Cube.SIZE), rand.nextInt(2) * 255);
+        }
+
+        queryX = new int[QUERIES];
+        queryY = new int[QUERIES];
+        queryZ = new int[QUERIES];
+        queryOpacity = new int[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queryX[i] = rand.nextInt(Cube.SIZE);
+            queryY[i] = randomY(rand);
+            queryZ[i] = rand.nextInt(Cube.SIZE);
+            queryOpacity[i] = rand.nextInt(2) * 255;
+        }
+    }
+
+    private static int randomY(Random rand) {
+        return MIN_Y + rand.nextInt(MAX_Y - MIN_Y);
+    }
+
+    private int nextQuery() {
+        return queryIndex = (queryIndex + 1) & (QUERIES - 1);
+    }
+
+    @Benchmark
+    public int getTopBlockYBelow() {
+        int i = nextQuery();
+        return heightMap.getTopBlockYBelow(queryX[i], queryZ[i], queryY[i]);
+    }
+
+    @Benchmark
+    public int onOpacityChange() {
+        int i = nextQuery();
+        heightMap.onOpacityChange(queryX[i], queryY[i], queryZ[i], queryOpacity[i]);
+        return heightMap.getTopBlockY(queryX[i], queryZ[i]);
+    }
+}
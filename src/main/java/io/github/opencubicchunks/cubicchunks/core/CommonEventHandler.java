@@ -33,6 +33,7 @@ import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldSettings;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketCubicWorldData;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketDispatcher;
 import io.github.opencubicchunks.cubicchunks.core.server.SpawnCubes;
+import io.github.opencubicchunks.cubicchunks.core.server.WorldMemoryMetrics;
 import io.github.opencubicchunks.cubicchunks.core.util.ReflectionUtil;
 import io.github.opencubicchunks.cubicchunks.core.world.WorldSavedCubicChunksData;
 import io.github.opencubicchunks.cubicchunks.core.world.provider.ICubicWorldProvider;
@@ -130,6 +131,13 @@ public class CommonEventHandler {
         }
     }
 
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload evt) {
+        if (!evt.getWorld().isRemote && ((ICubicWorld) evt.getWorld()).isCubicWorld()) {
+            WorldMemoryMetrics.onWorldUnload((WorldServer) evt.getWorld());
+        }
+    }
+
     @SubscribeEvent
     public void onPlayerJoinWorld(EntityJoinWorldEvent evt) {
         if (evt.getEntity() instanceof EntityPlayerMP && ((ICubicWorld) evt.getWorld()).isCubicWorld()) {
@@ -48,10 +48,26 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @Config(modid = CubicChunks.MODID, category = "general")
 public class CubicChunksConfig {
 
-    @Config.Comment("Chunk garbage collector update interval. Lower value will increase CPU usage, but can reduce memory usage.")
+    @Config.Comment("Chunk garbage collector update interval. Unused cubes and columns are unloaded after this amount of ticks. Lower value "
+            + "will increase CPU usage, but can reduce memory usage.")
     @Config.LangKey("cubicchunks.config.chunk_gc_interval")
     public static int chunkGCInterval = 20 * 10;
 
+    @Config.Comment("The maximum amount of time (in microseconds) the chunk garbage collector will spend each tick on unloading and saving "
+            + "unused cubes and columns. The remaining ones are unloaded in the next ticks.")
+    @Config.LangKey("cubicchunks.config.chunk_gc_time_budget")
+    public static int chunkGCTimeBudgetMicros = 2000;
+
+    @Config.Comment("The maximum amount of cubes the chunk garbage collector will unload each tick.")
+    @Config.LangKey("cubicchunks.config.chunk_gc_max_unloads_per_tick")
+    public static int chunkGCMaxUnloadsPerTick = 512;
+
+    @Config.Comment("Percentage of the maximum heap size below which unused cubes are kept loaded after chunkGCInterval, so that they don't "
+            + "need to be loaded again when a player comes back. Once heap usage goes above it, the least recently used cubes are unloaded "
+            + "first. Heap usage includes garbage that hasn't been collected yet, so leave some headroom. Set to 0 to disable.")
+    @Config.LangKey("cubicchunks.config.chunk_gc_retention_heap_percent")
+    public static int chunkGCRetentionHeapPercent = 0;
+
 
     @Config.LangKey("cubicchunks.config.force_cc")
     @Config.Comment("Determines when a cubic chunks world should be created for non-cubic-chunks world types.\n"
@@ -83,6 +99,37 @@ public class CubicChunksConfig {
             + " client. Does not affect rendering, only what chunks are sent to client.")
     public static int verticalCubeLoadDistance = 8;
 
+    @Config.LangKey("cubicchunks.config.view_volume_shape")
+    @Config.Comment("The shape of the volume of cubes loaded and sent around each player. Options:\n"
+        + "CUBOID - all cubes within horizontal and vertical view distance\n"
+        + "SPHERE - sphere with radius equal to horizontal view distance, cut off at vertical view distance\n"
+        + "ELLIPSOID - ellipsoid reaching horizontal view distance horizontally and vertical view distance vertically\n"
+        + "Rounded shapes load noticeably fewer cubes for the same view distance. Takes effect when a world is loaded.")
+    public static ViewVolumeShape viewVolumeShape = ViewVolumeShape.CUBOID;
+
+    @Config.LangKey("cubicchunks.config.dynamic_view_distance")
+    @Config.Comment("Enabling this option allows the server to temporarily lower the horizontal and vertical view distance when it's "
+            + "overloaded, and raise them back when there is enough headroom. The server is considered overloaded when a tick takes longer than "
+            + "dynamicViewDistanceTargetMspt on average, or when cube generation or I/O can't keep up.")
+    public static boolean dynamicViewDistance = false;
+
+    @Config.LangKey("cubicchunks.config.dynamic_view_distance_target_mspt")
+    @Config.Comment("Average tick time (in milliseconds) above which dynamic view distance starts lowering view distance.")
+    public static int dynamicViewDistanceTargetMspt = 45;
+
+    @Config.LangKey("cubicchunks.config.dynamic_view_distance_min_horizontal")
+    @Config.Comment("Dynamic view distance never lowers horizontal view distance below this value.")
+    public static int dynamicViewDistanceMinHorizontal = 6;
+
+    @Config.LangKey("cubicchunks.config.dynamic_view_distance_min_vertical")
+    @Config.Comment("Dynamic view distance never lowers vertical view distance below this value.")
+    public static int dynamicViewDistanceMinVertical = 4;
+
+    @Config.Comment("How often, in ticks, the estimated memory usage of each cubic chunks world is updated and published as a JMX MBean "
+            + "(io.github.opencubicchunks.cubicchunks:type=WorldMemory). Set to 0 to disable. The /ccmemory command works either way.")
+    @Config.LangKey("cubicchunks.config.memory_metrics_interval")
+    public static int memoryMetricsInterval = 0;
+
     @Config.LangKey("cubicchunks.config.dimension_blacklist")
     @Config.Comment("The specified dimension ID ranges won't be created as cubic chunks world for new worlds, and worlds created before this option"
             + " has been added, unless forceDimensionExcludes is set to true. IDs can be specified either as range in format min:max, or as single "
@@ -104,15 +151,40 @@ public class CubicChunksConfig {
 
     @Config.LangKey("cubicchunks.config.relight_checks_per_tick_per_column")
     @Config.Comment("In an attempt to fix lighting glitches over time, cubic chunks will keep updating light in specified amount of blocks per "
-            + "column (chunk) per tick. Default value of 1 doesn't cause noticeable performance drop, but still fixes most major issues relatively "
-            + "quickly.")
+            + "column (chunk) per tick on the client, when doClientLightFixes is enabled. Default value of 1 doesn't cause noticeable performance "
+            + "drop, but still fixes most major issues relatively quickly.")
     public static int relightChecksPerTickPerColumn = 1;
 
+    @Config.LangKey("cubicchunks.config.background_relight_time_budget")
+    @Config.Comment("The maximum amount of time (in microseconds) the server will spend each tick on fixing light in cubes where light "
+            + "couldn't spread into unloaded neighbors.")
+    public static int backgroundRelightTimeBudgetMicros = 2000;
+
     @Config.LangKey("cubicchunks.config.do_client_light_fixes")
-    @Config.Comment("By default cubic chunks will attempt to go over all the blocks over time to fix lighting only on server. Enable this to also "
+    @Config.Comment("By default cubic chunks will attempt to fix lighting only on server. Enable this to also go over all the blocks over time to "
             + "fix lighting on the clientside.")
     public static boolean doClientLightFixes = false;
 
+    @Config.LangKey("cubicchunks.config.light_update_time_budget")
+    @Config.Comment("The maximum amount of time (in microseconds) the server will spend on queued lighting updates each tick. Cubes closest to "
+            + "players are updated first, the remaining updates are postponed to the next tick.")
+    public static int lightUpdateTimeBudgetMicros = 40000;
+
+    @Config.LangKey("cubicchunks.config.compress_cube_packets")
+    @Config.Comment("Compress cube data sent to clients that support it. Minecraft already compresses all packets when "
+            + "network-compression-threshold is enabled in server.properties, so this is only useful when it's disabled.")
+    public static boolean compressCubePackets = false;
+
+    @Config.LangKey("cubicchunks.config.client_cube_cache")
+    @Config.Comment("Keep cubes received from servers on disk, so that cubes that didn't change don't need to be downloaded again after "
+            + "reconnecting. Only used on servers that support it.")
+    public static boolean clientCubeCache = false;
+
+    @Config.LangKey("cubicchunks.config.client_cube_cache_max_cubes")
+    @Config.Comment("The maximum amount of cubes kept in the client cube cache for each dimension. The cubes received the longest time ago "
+            + "are removed first. Removing a cube frees its space in the cache files for other cubes, but the files don't shrink.")
+    public static int clientCubeCacheMaxCubes = 65536;
+
     @Config.LangKey("cubicchunks.config.biome_temperature_center_y")
     @Config.Comment("Heights below this value will have normal, unmodified biome temperature")
     public static int biomeTemperatureCenterY = 64;
@@ -219,6 +291,12 @@ public class CubicChunksConfig {
         return excludedDimensionsRanges.contains(dimension);
     }
 
+    public enum ViewVolumeShape {
+        CUBOID,
+        SPHERE,
+        ELLIPSOID
+    }
+
     public enum ForceCCMode {
         NONE,
         NEW_WORLD,
@@ -0,0 +1,74 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.asm.mixin.core.common;
+
+import io.github.opencubicchunks.cubicchunks.core.lighting.UniformSkyLight;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.SharedCubeStorage;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Copy-on-write support for the shared all-zero light array of uniform cubes.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+@Mixin(ExtendedBlockStorage.class)
+public class MixinExtendedBlockStorage_SharedStorage {
+
+    @Shadow private NibbleArray blockLight;
+    @Shadow private NibbleArray skyLight;
+
+    @Inject(method = "setBlockLight(IIII)V", at = @At("HEAD"), cancellable = true)
+    private void materializeBlockLightOnWrite(int x, int y, int z, int value, CallbackInfo ci) {
+        if (!SharedCubeStorage.isZeroLight(blockLight)) {
+            return;
+        }
+        if (value == 0) {
+            ci.cancel();
+            return;
+        }
+        blockLight = UniformSkyLight.copyOf(blockLight);
+    }
+
+    @Inject(method = "setSkyLight(IIII)V", at = @At("HEAD"), cancellable = true)
+    private void materializeSkyLightOnWrite(int x, int y, int z, int value, CallbackInfo ci) {
+        if (!SharedCubeStorage.isZeroLight(skyLight)) {
+            return;
+        }
+        if (value == 0) {
+            ci.cancel();
+            return;
+        }
+        skyLight = UniformSkyLight.copyOf(skyLight);
+    }
+}
@@ -45,6 +45,7 @@ import net.minecraft.profiler.Profiler;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.DifficultyInstance;
+import net.minecraft.world.EnumSkyBlock;
 import net.minecraft.world.GameRules;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldProvider;
@@ -263,6 +264,17 @@ public abstract class MixinWorld implements ICubicWorldInternal {
             ci.cancel();
         }
     }
+
+    /**
+     * Block light updates on server are batched and done at the end of the tick by {@link LightingManager#getBlockLightEngine()}
+     */
+    @Inject(method = "checkLightFor", at = @At("HEAD"), cancellable = true)
+    private void onCheckLightFor(EnumSkyBlock lightType, BlockPos pos, CallbackInfoReturnable<Boolean> cir) {
+        if (this.isCubicWorld && !this.isRemote && lightType == EnumSkyBlock.BLOCK) {
+            this.getLightingManager().getBlockLightEngine().queueUpdate(pos);
+            cir.setReturnValue(true);
+        }
+    }
 /*
     @Inject(method = "getBlockState", at = @At("HEAD"), cancellable = true)
     public void onGetBlockState(BlockPos pos, CallbackInfoReturnable<IBlockState> ci) {
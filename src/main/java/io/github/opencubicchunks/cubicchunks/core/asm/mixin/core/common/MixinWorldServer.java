@@ -46,6 +46,7 @@ import io.github.opencubicchunks.cubicchunks.core.server.ChunkGc;
 import io.github.opencubicchunks.cubicchunks.core.server.CubeProviderServer;
 import io.github.opencubicchunks.cubicchunks.core.server.PlayerCubeMap;
 import io.github.opencubicchunks.cubicchunks.core.server.SpawnCubes;
+import io.github.opencubicchunks.cubicchunks.core.server.WorldMemoryMetrics;
 import io.github.opencubicchunks.cubicchunks.core.util.world.CubeSplitTickList;
 import io.github.opencubicchunks.cubicchunks.core.util.world.CubeSplitTickSet;
 import io.github.opencubicchunks.cubicchunks.core.world.CubeWorldEntitySpawner;
@@ -177,6 +178,15 @@ public abstract class MixinWorldServer extends MixinWorld implements ICubicWorld
         if (this.spawnArea != null) {
             this.spawnArea.update((World) (Object) this);
         }
+        this.profiler.startSection("relightDirtyCubes");
+        this.getLightingManager().getRelighter().tick();
+        this.profiler.endStartSection("blockLightUpdates");
+        this.getLightingManager().getBlockLightEngine().tick();
+        this.profiler.endStartSection("sendLightUpdates");
+        this.getLightingManager().sendQueuedLightUpdates();
+        this.profiler.endStartSection("memoryMetrics");
+        WorldMemoryMetrics.tick((WorldServer) (Object) this);
+        this.profiler.endSection();
     }
 
     @Override public CubeProviderServer getCubeCache() {
@@ -308,9 +318,8 @@ public abstract class MixinWorldServer extends MixinWorld implements ICubicWorld
     private void tickColumn(boolean raining, boolean thundering, Chunk chunk) {
         int chunkBlockX = chunk.x * 16;
         int chunkBlockZ = chunk.z * 16;
-        this.profiler.startSection("checkNextLight");
-        chunk.enqueueRelightChecks();
-        this.profiler.endStartSection("tickChunk");
+        // light checks are replaced by DirtyCubeRelighter, ticked in tickCubicWorld
+        this.profiler.startSection("tickChunk");
         chunk.onTick(false);
         this.profiler.endStartSection("thunder");
 
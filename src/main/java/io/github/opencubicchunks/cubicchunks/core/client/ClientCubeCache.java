@@ -0,0 +1,257 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import cubicchunks.regionlib.impl.EntryLocation3D;
+import cubicchunks.regionlib.impl.SaveCubeColumns;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
+import io.github.opencubicchunks.cubicchunks.core.server.chunkio.RegionCubeIO;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import mcp.MethodsReturnNonnullByDefault;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Encoded cube data received from servers, kept on disk so that it doesn't need to be downloaded again.
+ * <p>
+ * Each cube is stored together with the protocol version it was encoded with, and identified by a hash of both (see
+ * WorldEncoder#getContentHash). The hashes are announced to the server when joining a world, which then sends only a
+ * reference to the cached data for cubes that haven't changed. Cubes are written on a background thread, and only the
+ * most recently received ones are kept, up to {@link CubicChunksConfig#clientCubeCacheMaxCubes}.
+ * <p>
+ * Evicted cubes are overwritten with a one byte placeholder, which frees the space they took in the region files for
+ * other cubes. The region files never shrink, so each position that has ever been cached keeps a small entry.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class ClientCubeCache {
+
+    private static final String INDEX_FILE = "index.bin";
+    /**
+     * Written in place of evicted cubes. It's never read back, since evicted cubes aren't in the index.
+     */
+    private static final byte[] EVICTED = new byte[1];
+    private static final Int2ObjectMap<ClientCubeCache> caches = new Int2ObjectOpenHashMap<>();
+
+    @Nonnull private final Path path;
+    @Nonnull private final SaveCubeColumns save;
+    // ordered from the least recently received, the eldest entries are removed first
+    @Nonnull private final Map<CubePos, Long> index = new LinkedHashMap<CubePos, Long>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<CubePos, Long> eldest) {
+            if (size() > CubicChunksConfig.clientCubeCacheMaxCubes) {
+                queueWrite(eldest.getKey(), EVICTED);
+                return true;
+            }
+            return false;
+        }
+    };
+    @Nonnull private final Map<CubePos, byte[]> pendingWrites = new ConcurrentHashMap<>();
+    @Nonnull private final ExecutorService writeExecutor;
+    /**
+     * Guards all access to {@link #save}. Cubes are written on the write executor but read on the network thread, and
+     * region files must not be used by more than one thread at a time.
+     */
+    @Nonnull private final Object saveLock = new Object();
+
+    private ClientCubeCache(int dimension) throws IOException {
+        this.path = RegionCubeIO.getClientCachePath(dimension).resolve("network");
+        Files.createDirectories(path);
+        this.save = SaveCubeColumns.create(path);
+        this.writeExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("Cubic Chunks client cache DIM" + dimension)
+                .setDaemon(true)
+                .build());
+        readIndex();
+    }
+
+    /**
+     * @return the cache for the given dimension, or null if the cache is disabled or can't be opened
+     */
+    @Nullable public static synchronized ClientCubeCache get(int dimension) {
+        if (!CubicChunksConfig.clientCubeCache) {
+            return null;
+        }
+        ClientCubeCache cache = caches.get(dimension);
+        if (cache == null) {
+            try {
+                cache = new ClientCubeCache(dimension);
+            } catch (IOException e) {
+                CubicChunks.LOGGER.error("Unable to open client cube cache for dimension " + dimension, e);
+                return null;
+            }
+            caches.put(dimension, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Writes all pending data and closes all caches. Called when disconnecting from a server.
+     */
+    public static synchronized void closeAll() {
+        for (ClientCubeCache cache : caches.values()) {
+            cache.close();
+        }
+        caches.clear();
+    }
+
+    /**
+     * Stores the encoded cube, replacing any older data for the same position.
+     */
+    public synchronized void store(CubePos pos, long hash, byte[] data) {
+        if (writeExecutor.isShutdown()) {
+            return;
+        }
+        index.remove(pos);
+        index.put(pos, hash);
+        queueWrite(pos, data);
+    }
+
+    private void queueWrite(CubePos pos, byte[] data) {
+        pendingWrites.put(pos, data);
+        writeExecutor.execute(() -> {
+            byte[] toWrite = pendingWrites.get(pos);
+            if (toWrite == null) {
+                return;
+            }
+            try {
+                synchronized (saveLock) {
+                    save.save3d(new EntryLocation3D(pos.getX(), pos.getY(), pos.getZ()), ByteBuffer.wrap(toWrite));
+                }
+            } catch (IOException e) {
+                CubicChunks.LOGGER.error("Unable to write cube " + pos + " to client cube cache", e);
+            } finally {
+                // newer data could have been stored in the meantime, it will be written by the next task
+                pendingWrites.remove(pos, toWrite);
+            }
+        });
+    }
+
+    /**
+     * @return the stored data of the cube, or null if the stored data doesn't have the given hash
+     */
+    @Nullable public synchronized byte[] load(CubePos pos, long hash) {
+        Long storedHash = index.get(pos);
+        if (storedHash == null || storedHash != hash) {
+            return null;
+        }
+        byte[] data = pendingWrites.get(pos);
+        if (data != null) {
+            return data;
+        }
+        try {
+            Optional<ByteBuffer> buf;
+            synchronized (saveLock) {
+                buf = save.load(new EntryLocation3D(pos.getX(), pos.getY(), pos.getZ()), false);
+            }
+            if (!buf.isPresent()) {
+                index.remove(pos);
+                return null;
+            }
+            ByteBuffer buffer = buf.get();
+            return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Unable to read cube " + pos + " from client cube cache", e);
+            index.remove(pos);
+            return null;
+        }
+    }
+
+    public synchronized void forEachEntry(BiConsumer<CubePos, Long> consumer) {
+        index.forEach(consumer);
+    }
+
+    private void readIndex() {
+        try (InputStream in = Files.newInputStream(path.resolve(INDEX_FILE))) {
+            DataInputStream data = new DataInputStream(in);
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(new CubePos(data.readInt(), data.readInt(), data.readInt()), data.readLong());
+            }
+        } catch (NoSuchFileException e) {
+            // nothing cached yet
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Unable to read client cube cache index, the cache will be cleared", e);
+            index.clear();
+        }
+    }
+
+    private synchronized void close() {
+        writeExecutor.shutdown();
+        try {
+            if (!writeExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                CubicChunks.LOGGER.warn("Timed out writing client cube cache to {}", path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // data that wasn't written can't be loaded later
+        index.keySet().removeAll(pendingWrites.keySet());
+        try (OutputStream out = Files.newOutputStream(path.resolve(INDEX_FILE))) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(index.size());
+            for (Map.Entry<CubePos, Long> entry : index.entrySet()) {
+                data.writeInt(entry.getKey().getX());
+                data.writeInt(entry.getKey().getY());
+                data.writeInt(entry.getKey().getZ());
+                data.writeLong(entry.getValue());
+            }
+            data.flush();
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Unable to write client cube cache index", e);
+        }
+        try {
+            synchronized (saveLock) {
+                save.close();
+            }
+        } catch (Exception e) {
+            CubicChunks.LOGGER.error("Unable to close client cube cache", e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.command;
+
+import io.github.opencubicchunks.cubicchunks.api.world.ICubicWorld;
+import io.github.opencubicchunks.cubicchunks.core.server.WorldMemoryUsage;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.common.DimensionManager;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Prints the estimated memory usage of cubic chunks data structures, for one dimension or all loaded cubic chunks
+ * worlds. See {@link WorldMemoryUsage} for what is counted.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class CommandMemoryUsage extends CommandBase {
+
+    @Override public String getName() {
+        return "ccmemory";
+    }
+
+    @Override public String getUsage(ICommandSender sender) {
+        return "/ccmemory [dimension]";
+    }
+
+    @Override public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        if (args.length > 1) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        if (args.length == 1) {
+            int dimension = parseInt(args[0]);
+            WorldServer world = DimensionManager.getWorld(dimension);
+            if (world == null || !((ICubicWorld) world).isCubicWorld()) {
+                throw new CommandException("Dimension " + dimension + " is not a loaded cubic chunks world");
+            }
+            printUsage(sender, world);
+            return;
+        }
+        boolean any = false;
+        for (WorldServer world : server.worlds) {
+            if (((ICubicWorld) world).isCubicWorld()) {
+                printUsage(sender, world);
+                any = true;
+            }
+        }
+        if (!any) {
+            sender.sendMessage(new TextComponentString("No cubic chunks worlds are loaded"));
+        }
+    }
+
+    private static void printUsage(ICommandSender sender, WorldServer world) {
+        WorldMemoryUsage usage = WorldMemoryUsage.estimate(world);
+        sender.sendMessage(new TextComponentString("Dimension " + world.provider.getDimension() + ": "
+                + formatBytes(usage.getTotalBytes()) + (usage.isSampled() ? " (sampled)" : "")));
+        for (WorldMemoryUsage.Component component : WorldMemoryUsage.Component.values()) {
+            sender.sendMessage(new TextComponentString("  " + component.getKey() + ": " + formatBytes(usage.getBytes(component))));
+        }
+        sender.sendMessage(new TextComponentString("  " + usage.getLoadedCubes() + " cubes, " + usage.getLoadedColumns() + " columns, "
+                + usage.getCubeWatchers() + " cube watchers, " + usage.getColumnWatchers() + " column watchers, "
+                + usage.getPendingSaves() + " pending saves"));
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+}
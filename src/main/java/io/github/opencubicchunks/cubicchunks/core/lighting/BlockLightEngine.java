@@ -0,0 +1,309 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.lighting;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
+import io.github.opencubicchunks.cubicchunks.core.util.FastCubeBlockAccess;
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.EnumSkyBlock;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Incremental block light engine for the server side.
+ * <p>
+ * Instead of running {@link World#checkLightFor(EnumSkyBlock, BlockPos)} for every block change, changed positions are
+ * collected during the tick and updated together in {@link #tick()}. Changed positions are grouped into regions, and
+ * each region is updated in one pass:
+ * <ul>
+ *     <li>Positions where the stored light is higher than the emitted light (removed emitter, or a block became more
+ *     opaque) are cleared and the light is "unspread" from them.</li>
+ *     <li>Positions where the emitted light is higher than the stored light (added emitter), or where more light can
+ *     come in from neighbors (a block became less opaque) become sources of light spreading.</li>
+ * </ul>
+ * Light is spread in order of decreasing light value, so each block is set at most once per light value. A bitset of
+ * visited blocks prevents adding the same border block as a source more than once during a pass. A source can be
+ * cleared by unspreading of another changed position after it was recorded, so the light of each source is read again
+ * just before spreading it.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class BlockLightEngine {
+
+    private static final int REGION_BITS = 6;
+    private static final int REGION_SIZE = 1 << REGION_BITS;
+    /**
+     * Light changes can't spread further than this many blocks from the changed position
+     */
+    private static final int BORDER = 16;
+    private static final int AREA_SIZE = REGION_SIZE + BORDER * 2;
+
+    private static final EnumFacing[] DIRECTIONS = EnumFacing.values();
+
+    /**
+     * Set on increase sources that can also get light from their neighbors
+     */
+    private static final int FROM_NEIGHBORS = 1;
+
+    @Nonnull private final BiFunction<BlockPos, BlockPos, ILightBlockAccess> blockAccess;
+    @Nonnull private final Consumer<BlockPos> lightListener;
+    @Nonnull private final Set<BlockPos> queued = new LinkedHashSet<>();
+
+    // state of the current pass, reused between passes
+    @Nonnull private final BitSet visited = new BitSet(AREA_SIZE * AREA_SIZE * AREA_SIZE);
+    @Nonnull private final IntArrayList visitedIndices = new IntArrayList();
+    @Nonnull private final IntArrayFIFOQueue decreaseQueue = new IntArrayFIFOQueue();
+    @Nonnull private final IntArrayFIFOQueue[] increaseQueues = new IntArrayFIFOQueue[LightUpdateQueue.MAX_VALUE + 1];
+    @Nonnull private final IntArrayList increaseSources = new IntArrayList();
+    @Nonnull private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+    private ILightBlockAccess blocks;
+    private int originX, originY, originZ;
+
+    BlockLightEngine(World world) {
+        this((min, max) -> FastCubeBlockAccess.forCubeRegion(world, ((ICubicWorldInternal) world).getCubeCache(),
+                CubePos.fromBlockCoords(min), CubePos.fromBlockCoords(max)), world::notifyLightSet);
+    }
+
+    /**
+     * @param blockAccess creates access to the blocks between the given minimum and maximum block positions, inclusive
+     * @param lightListener called for each position where block light has been changed
+     */
+    public BlockLightEngine(BiFunction<BlockPos, BlockPos, ILightBlockAccess> blockAccess, Consumer<BlockPos> lightListener) {
+        this.blockAccess = blockAccess;
+        this.lightListener = lightListener;
+        for (int i = 0; i < increaseQueues.length; i++) {
+            increaseQueues[i] = new IntArrayFIFOQueue();
+        }
+    }
+
+    /**
+     * Queues block light update at the given position. It will be done at the end of the tick.
+     */
+    public void queueUpdate(BlockPos pos) {
+        queued.add(pos.toImmutable());
+    }
+
+    public int getQueuedCount() {
+        return queued.size();
+    }
+
+    /**
+     * Updates block light for all positions queued since the last call.
+     */
+    public void tick() {
+        if (queued.isEmpty()) {
+            return;
+        }
+        Map<BlockPos, List<BlockPos>> regions = new HashMap<>();
+        for (BlockPos p : queued) {
+            BlockPos region = new BlockPos(p.getX() >> REGION_BITS, p.getY() >> REGION_BITS, p.getZ() >> REGION_BITS);
+            regions.computeIfAbsent(region, r -> new ArrayList<>()).add(p);
+        }
+        queued.clear();
+        for (Map.Entry<BlockPos, List<BlockPos>> entry : regions.entrySet()) {
+            updateRegion(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void updateRegion(BlockPos region, List<BlockPos> changed) {
+        originX = (region.getX() << REGION_BITS) - BORDER;
+        originY = (region.getY() << REGION_BITS) - BORDER;
+        originZ = (region.getZ() << REGION_BITS) - BORDER;
+        blocks = blockAccess.apply(new BlockPos(originX, originY, originZ),
+                new BlockPos(originX + AREA_SIZE - 1, originY + AREA_SIZE - 1, originZ + AREA_SIZE - 1));
+        try {
+            for (BlockPos p : changed) {
+                int index = index(p.getX() - originX, p.getY() - originY, p.getZ() - originZ);
+                pos.setPos(p);
+                int stored = blocks.getLightFor(EnumSkyBlock.BLOCK, pos);
+                int emitted = blocks.getEmittedLight(pos, EnumSkyBlock.BLOCK);
+                if (stored > emitted) {
+                    // removed emitter, or a block became more opaque
+                    setLight(pos, 0);
+                    decreaseQueue.enqueue(entry(index, stored));
+                    if (emitted > 0) {
+                        increaseSources.add(entry(index, 0));
+                    }
+                } else if (emitted > stored) {
+                    // added emitter
+                    increaseSources.add(entry(index, 0));
+                } else if (blocks.getLightFromNeighbors(EnumSkyBlock.BLOCK, pos) > stored) {
+                    // a block became less opaque, let the light from neighbors in
+                    increaseSources.add(entry(index, FROM_NEIGHBORS));
+                }
+            }
+            runDecrease();
+            for (int i = 0; i < increaseSources.size(); i++) {
+                int entry = increaseSources.getInt(i);
+                int index = entry >>> 4;
+                setPos(index);
+                // unspreading may have cleared or lowered the light since the source was recorded
+                int stored = blocks.getLightFor(EnumSkyBlock.BLOCK, pos);
+                int level = Math.max(stored, blocks.getEmittedLight(pos, EnumSkyBlock.BLOCK));
+                if ((entry & FROM_NEIGHBORS) != 0) {
+                    level = Math.max(level, blocks.getLightFromNeighbors(EnumSkyBlock.BLOCK, pos));
+                }
+                if (level == 0) {
+                    continue;
+                }
+                if (stored < level) {
+                    setLight(pos, level);
+                }
+                increaseQueues[level].enqueue(index);
+            }
+            runIncrease();
+        } finally {
+            for (int i = 0; i < visitedIndices.size(); i++) {
+                visited.clear(visitedIndices.getInt(i));
+            }
+            visitedIndices.clear();
+            increaseSources.clear();
+            decreaseQueue.clear();
+            for (IntArrayFIFOQueue queue : increaseQueues) {
+                queue.clear();
+            }
+            blocks = null;
+        }
+    }
+
+    private void runDecrease() {
+        while (!decreaseQueue.isEmpty()) {
+            int entry = decreaseQueue.dequeueInt();
+            int index = entry >>> 4;
+            int level = entry & 0xF;
+            for (EnumFacing direction : DIRECTIONS) {
+                int neighbor = neighborIndex(index, direction);
+                if (neighbor < 0) {
+                    continue;
+                }
+                setPos(neighbor);
+                int light = blocks.getLightFor(EnumSkyBlock.BLOCK, pos);
+                if (light == 0) {
+                    continue;
+                }
+                if (light < level) {
+                    // this light may have come from the cleared block, clear it too
+                    if (!setLight(pos, 0)) {
+                        continue;
+                    }
+                    decreaseQueue.enqueue(entry(neighbor, light));
+                    if (blocks.getEmittedLight(pos, EnumSkyBlock.BLOCK) > 0) {
+                        increaseSources.add(entry(neighbor, 0));
+                    }
+                } else if (!visited.get(neighbor)) {
+                    // light from another source, spread it back into the cleared area
+                    visited.set(neighbor);
+                    visitedIndices.add(neighbor);
+                    increaseSources.add(entry(neighbor, 0));
+                }
+            }
+        }
+    }
+
+    private void runIncrease() {
+        for (int level = LightUpdateQueue.MAX_VALUE; level > 0; level--) {
+            IntArrayFIFOQueue queue = increaseQueues[level];
+            while (!queue.isEmpty()) {
+                int index = queue.dequeueInt();
+                setPos(index);
+                if (blocks.getLightFor(EnumSkyBlock.BLOCK, pos) != level) {
+                    // already got more light from a brighter source
+                    continue;
+                }
+                for (EnumFacing direction : DIRECTIONS) {
+                    int neighbor = neighborIndex(index, direction);
+                    if (neighbor < 0) {
+                        continue;
+                    }
+                    setPos(neighbor);
+                    int newLight = level - Math.max(1, blocks.getBlockLightOpacity(pos));
+                    if (newLight <= 0 || newLight <= blocks.getLightFor(EnumSkyBlock.BLOCK, pos)) {
+                        continue;
+                    }
+                    if (setLight(pos, newLight)) {
+                        increaseQueues[newLight].enqueue(neighbor);
+                    } else {
+                        // not loaded, let the relighter continue from here when it loads
+                        setPos(index);
+                        blocks.markEdgeNeedLightUpdate(pos, EnumSkyBlock.BLOCK);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean setLight(BlockPos pos, int value) {
+        if (!blocks.setLightFor(EnumSkyBlock.BLOCK, pos, value)) {
+            return false;
+        }
+        lightListener.accept(pos);
+        return true;
+    }
+
+    private void setPos(int index) {
+        int localZ = index % AREA_SIZE;
+        int localY = (index / AREA_SIZE) % AREA_SIZE;
+        int localX = index / (AREA_SIZE * AREA_SIZE);
+        pos.setPos(originX + localX, originY + localY, originZ + localZ);
+    }
+
+    /**
+     * @return index of the neighbor in the given direction, or -1 if it's outside of the updated area
+     */
+    private static int neighborIndex(int index, EnumFacing direction) {
+        int localX = index / (AREA_SIZE * AREA_SIZE) + direction.getXOffset();
+        int localY = (index / AREA_SIZE) % AREA_SIZE + direction.getYOffset();
+        int localZ = index % AREA_SIZE + direction.getZOffset();
+        if (localX < 0 || localY < 0 || localZ < 0 || localX >= AREA_SIZE || localY >= AREA_SIZE || localZ >= AREA_SIZE) {
+            return -1;
+        }
+        return index(localX, localY, localZ);
+    }
+
+    private static int index(int localX, int localY, int localZ) {
+        return (localX * AREA_SIZE + localY) * AREA_SIZE + localZ;
+    }
+
+    private static int entry(int index, int level) {
+        return index << 4 | level;
+    }
+}
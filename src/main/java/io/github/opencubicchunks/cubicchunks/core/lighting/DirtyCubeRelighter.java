@@ -0,0 +1,167 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.lighting;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
+import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
+import io.github.opencubicchunks.cubicchunks.core.world.ICubeProviderInternal;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Fixes lighting of cubes that are known to possibly have incorrect light, instead of slowly checking every block of
+ * every loaded cube.
+ * <p>
+ * A cube is considered suspicious when light propagation couldn't continue into one of it's neighbors because the
+ * neighbor wasn't loaded (see {@link Cube#edgeNeedSkyLightUpdate}). Such cubes are queued when they are marked, and
+ * when they or their neighbors are loaded. Queued cubes are updated under a global per-tick time budget.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class DirtyCubeRelighter {
+
+    @Nonnull private final World world;
+    @Nonnull private final LightingManager lightingManager;
+    @Nonnull private final ObjectLinkedOpenHashSet<Cube> dirtyCubes = new ObjectLinkedOpenHashSet<>();
+
+    DirtyCubeRelighter(World world, LightingManager lightingManager) {
+        this.world = world;
+        this.lightingManager = lightingManager;
+    }
+
+    /**
+     * Marks the given cube as possibly having incorrect light at edges marked in {@link Cube#edgeNeedSkyLightUpdate}
+     */
+    public void markDirty(Cube cube) {
+        dirtyCubes.add(cube);
+    }
+
+    /**
+     * Queues the loaded cube, and all of it's loaded neighbors that were waiting for it, if they have edges to update.
+     */
+    public void onCubeLoaded(Cube cube) {
+        if (hasDirtyEdges(cube)) {
+            markDirty(cube);
+        }
+        ICubeProviderInternal cache = ((ICubicWorldInternal) world).getCubeCache();
+        CubePos pos = cube.getCoords();
+        for (EnumFacing dir : EnumFacing.values()) {
+            Cube neighbor = cache.getLoadedCube(pos.getX() + dir.getXOffset(), pos.getY() + dir.getYOffset(), pos.getZ() + dir.getZOffset());
+            if (neighbor != null && neighbor.edgeNeedSkyLightUpdate[dir.getOpposite().ordinal()]) {
+                markDirty(neighbor);
+            }
+        }
+    }
+
+    public int getDirtyCount() {
+        return dirtyCubes.size();
+    }
+
+    /**
+     * Updates light at edges of queued cubes until the time budget runs out.
+     */
+    public void tick() {
+        if (dirtyCubes.isEmpty()) {
+            return;
+        }
+        long deadline = System.nanoTime() + CubicChunksConfig.backgroundRelightTimeBudgetMicros * 1000L;
+        ICubeProviderInternal cache = ((ICubicWorldInternal) world).getCubeCache();
+        while (!dirtyCubes.isEmpty() && System.nanoTime() < deadline) {
+            Cube cube = dirtyCubes.removeFirst();
+            if (!cube.isCubeLoaded()) {
+                // will be queued again when loaded
+                continue;
+            }
+            relightEdges(cache, cube);
+        }
+    }
+
+    private void relightEdges(ICubeProviderInternal cache, Cube cube) {
+        CubePos pos = cube.getCoords();
+        for (EnumFacing dir : EnumFacing.values()) {
+            if (!cube.edgeNeedSkyLightUpdate[dir.ordinal()]) {
+                continue;
+            }
+            Cube neighbor = cache.getLoadedCube(pos.getX() + dir.getXOffset(), pos.getY() + dir.getYOffset(), pos.getZ() + dir.getZOffset());
+            if (neighbor == null) {
+                // can't do anything yet, this cube will be queued again when the neighbor loads
+                continue;
+            }
+            if (world.provider.hasSkyLight()) {
+                lightingManager.relightEdge(cube, dir, neighbor, lightingManager.getTracker());
+            }
+            queueBlockLightEdge(cube, dir);
+            cube.edgeNeedSkyLightUpdate[dir.ordinal()] = false;
+            neighbor.edgeNeedSkyLightUpdate[dir.getOpposite().ordinal()] = false;
+        }
+    }
+
+    /**
+     * Queues block light update on both sides of the edge between the cube and it's neighbor. The update will let
+     * light from either side into the other one.
+     */
+    private void queueBlockLightEdge(Cube cube, EnumFacing dir) {
+        BlockLightEngine engine = lightingManager.getBlockLightEngine();
+        CubePos pos = cube.getCoords();
+        BlockPos min = pos.getMinBlockPos();
+        BlockPos max = pos.getMaxBlockPos();
+        int fromX = min.getX(), fromY = min.getY(), fromZ = min.getZ();
+        int toX = max.getX(), toY = max.getY(), toZ = max.getZ();
+        switch (dir.getAxis()) {
+            case X:
+                fromX = dir.getAxisDirection() == EnumFacing.AxisDirection.POSITIVE ? toX : fromX - 1;
+                toX = fromX + 1;
+                break;
+            case Y:
+                fromY = dir.getAxisDirection() == EnumFacing.AxisDirection.POSITIVE ? toY : fromY - 1;
+                toY = fromY + 1;
+                break;
+            case Z:
+                fromZ = dir.getAxisDirection() == EnumFacing.AxisDirection.POSITIVE ? toZ : fromZ - 1;
+                toZ = fromZ + 1;
+                break;
+        }
+        for (BlockPos p : BlockPos.getAllInBoxMutable(new BlockPos(fromX, fromY, fromZ), new BlockPos(toX, toY, toZ))) {
+            engine.queueUpdate(p);
+        }
+    }
+
+    private static boolean hasDirtyEdges(Cube cube) {
+        for (boolean edge : cube.edgeNeedSkyLightUpdate) {
+            if (edge) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
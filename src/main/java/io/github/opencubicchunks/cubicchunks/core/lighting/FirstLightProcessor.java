@@ -137,6 +137,16 @@ public class FirstLightProcessor {
 
         ExtendedBlockStorage ebs = cube.getStorage();
 
+        // the whole cube is above the surface, so it's fully lit. Use the shared array instead of setting all values
+        if (UniformSkyLight.isAboveSurface(cube)) {
+            if (ebs == null) {
+                ebs = cube.setStorage(new ExtendedBlockStorage(cubeMinY, true));
+            }
+            assert ebs != null;
+            ebs.setSkyLight(UniformSkyLight.fullSkyLight());
+            return;
+        }
+
         for (int localX = 0; localX < Cube.SIZE; ++localX) {
             for (int localZ = 0; localZ < Cube.SIZE; ++localZ) {
                 for (int localY = Cube.SIZE - 1; localY >= 0; --localY) {
@@ -167,6 +177,12 @@ public class FirstLightProcessor {
             cube.setInitialLightingDone(true);
             return;
         }
+        // getMinMaxLightUpdateY has nothing to update in any block column of a cube above the surface, and it already
+        // has the full skylight set by initializeSkylight
+        if (UniformSkyLight.isAboveSurface(cube)) {
+            cube.setInitialLightingDone(true);
+            return;
+        }
         ICubicWorldInternal world = cube.getWorld();
 
         // Cache min/max Y, generating them may be expensive
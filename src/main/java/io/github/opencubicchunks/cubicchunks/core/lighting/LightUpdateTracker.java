@@ -24,10 +24,14 @@
  */
 package io.github.opencubicchunks.cubicchunks.core.lighting;
 
+import static io.github.opencubicchunks.cubicchunks.api.util.Coords.blockToCube;
+
+import io.github.opencubicchunks.cubicchunks.core.network.CubePacketProtocol;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketCubeSkyLightUpdates;
 import io.github.opencubicchunks.cubicchunks.core.server.CubeWatcher;
 import io.github.opencubicchunks.cubicchunks.core.server.PlayerCubeMap;
 import io.github.opencubicchunks.cubicchunks.core.util.AddressTools;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.api.util.XYZAddressable;
 import io.github.opencubicchunks.cubicchunks.api.util.XYZMap;
@@ -35,55 +39,113 @@ import gnu.trove.list.TShortList;
 import gnu.trove.list.array.TShortArrayList;
 import net.minecraft.util.math.BlockPos;
 
+import java.util.Iterator;
+
 /**
- * Tracks FirstLightProcessor lighting updates and sends them to client
+ * Tracks skylight updates and sends them to client.
+ * <p>
+ * Changed positions are collected for {@link #SEND_DELAY_TICKS} ticks, so that blocks changed multiple times are sent
+ * only once. When more than {@link #BULK_THRESHOLD} blocks in one cube change, the whole light arrays of the cube are
+ * sent instead. They are compressed for clients that negotiated {@link CubePacketProtocol#PALETTE} or later, older
+ * clients get the uncompressed skylight array they have always understood.
  */
 class LightUpdateTracker {
 
+    /**
+     * Above this amount of changed blocks the cube is sent in bulk mode. Each changed block takes 2 bytes, while the
+     * compressed light arrays of a cube usually take between a few hundred bytes and a few kilobytes.
+     */
+    private static final int BULK_THRESHOLD = 256;
+    private static final int SEND_DELAY_TICKS = 2;
+
     private final PlayerCubeMap cubeMap;
-    private XYZMap<CubeUpdateList> cubes = new XYZMap<>(0.5f, 100);
+    private final XYZMap<CubeUpdateList> cubes = new XYZMap<>(0.5f, 100);
 
     LightUpdateTracker(PlayerCubeMap cubeMap) {
         this.cubeMap = cubeMap;
     }
 
     void onUpdate(BlockPos blockPos) {
-        CubeUpdateList list = cubes.get(blockPos.getX(), blockPos.getY(), blockPos.getZ());
+        int cubeX = blockToCube(blockPos.getX());
+        int cubeY = blockToCube(blockPos.getY());
+        int cubeZ = blockToCube(blockPos.getZ());
+        cubeMap.getEncodedCubeCache().invalidate(cubeX, cubeY, cubeZ);
+        CubeUpdateList list = cubes.get(cubeX, cubeY, cubeZ);
         if (list == null) {
-            list = new CubeUpdateList(CubePos.fromBlockCoords(blockPos));
+            list = new CubeUpdateList(new CubePos(cubeX, cubeY, cubeZ), getWorldTime());
             cubes.put(list);
         }
         list.add(blockPos);
     }
 
+    /**
+     * Sends updates that have been collected for long enough
+     */
+    void tick() {
+        long time = getWorldTime();
+        Iterator<CubeUpdateList> it = cubes.iterator();
+        while (it.hasNext()) {
+            CubeUpdateList list = it.next();
+            if (time - list.firstUpdateTime >= SEND_DELAY_TICKS) {
+                list.send();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends all collected updates immediately
+     */
     void sendAll() {
         cubes.forEach(CubeUpdateList::send);
-        cubes = new XYZMap<>(0.5f, 100);
+        cubes.clear();
+    }
+
+    private long getWorldTime() {
+        return cubeMap.getWorldServer().getTotalWorldTime();
     }
 
     private class CubeUpdateList implements XYZAddressable {
 
-        private static final int MAX_COUNT = 64;
         private final CubePos pos;
-        private final TShortList updates = new TShortArrayList(MAX_COUNT);
+        private final long firstUpdateTime;
+        private final long[] changed = new long[Cube.SIZE * Cube.SIZE * Cube.SIZE / Long.SIZE];
+        private final TShortList updates = new TShortArrayList();
+        private boolean bulk;
 
-        CubeUpdateList(CubePos pos) {
+        CubeUpdateList(CubePos pos, long firstUpdateTime) {
             this.pos = pos;
+            this.firstUpdateTime = firstUpdateTime;
         }
 
         void add(BlockPos pos) {
-            if (updates.size() >= MAX_COUNT) {
+            if (bulk) {
+                return;
+            }
+            int address = AddressTools.getLocalAddress(pos);
+            long mask = 1L << address;
+            if ((changed[address >>> 6] & mask) != 0) {
+                return;
+            }
+            changed[address >>> 6] |= mask;
+            if (updates.size() >= BULK_THRESHOLD) {
+                bulk = true;
+                updates.clear();
                 return;
             }
-            updates.add((short) AddressTools.getLocalAddress(pos));
+            updates.add((short) address);
         }
 
         void send() {
             CubeWatcher watcher = cubeMap.getCubeWatcher(this.pos);
             if (watcher != null && watcher.isSentToPlayers()) {
-                watcher.sendPacketToAllPlayers(new PacketCubeSkyLightUpdates(watcher.getCube(), this.updates));
+                Cube cube = watcher.getCube();
+                if (bulk) {
+                    watcher.sendPacketToAllPlayers(protocol -> new PacketCubeSkyLightUpdates(cube, protocol));
+                } else {
+                    watcher.sendPacketToAllPlayers(new PacketCubeSkyLightUpdates(cube, this.updates));
+                }
             }
-            updates.clear();
         }
 
         @Override public int getX() {
@@ -69,6 +69,8 @@ public class LightingManager implements ILightingManager {
     @Nonnull private LightPropagator lightPropagator = new LightPropagator();
     @Nonnull private final List<IHeightChangeListener> heightUpdateListeners = new ArrayList<>();
     @Nullable private LightUpdateTracker tracker;
+    @Nullable private BlockLightEngine blockLightEngine;
+    @Nullable private DirtyCubeRelighter relighter;
 
     public LightingManager(World world) {
         this.world = world;
@@ -76,7 +78,7 @@ public class LightingManager implements ILightingManager {
     }
 
     @Nullable
-    private LightUpdateTracker getTracker() {
+    LightUpdateTracker getTracker() {
         if (NO_SUNLIGHT_PROPAGATION) {
             return null;
         }
@@ -87,6 +89,35 @@ public class LightingManager implements ILightingManager {
         }
         return tracker;
     }
+    /**
+     * @return block light engine used to batch block light updates on server
+     */
+    public BlockLightEngine getBlockLightEngine() {
+        if (blockLightEngine == null) {
+            blockLightEngine = new BlockLightEngine(world);
+        }
+        return blockLightEngine;
+    }
+
+    /**
+     * @return relighter that fixes light in cubes where light propagation was interrupted by unloaded cubes
+     */
+    public DirtyCubeRelighter getRelighter() {
+        if (relighter == null) {
+            relighter = new DirtyCubeRelighter(world, this);
+        }
+        return relighter;
+    }
+
+    /**
+     * Sends collected skylight changes to clients
+     */
+    public void sendQueuedLightUpdates() {
+        if (tracker != null) {
+            tracker.tick();
+        }
+    }
+
     /**
      * Registers height change listener, that receives all height changes after initial lighting is done
      */
@@ -203,6 +234,58 @@ public class LightingManager implements ILightingManager {
         return true;
     }
 
+    /**
+     * Updates skylight at the edge between the given cube and it's loaded neighbor in the given direction, and clears
+     * the edge update flags of both cubes.
+     */
+    void relightEdge(Cube cube, EnumFacing dir, Cube loadedCube, @Nullable LightUpdateTracker tracker) {
+        CubePos cpos = cube.getCoords();
+        int fromBlockX = cpos.getMinBlockX();
+        int fromBlockY = cpos.getMinBlockY();
+        int fromBlockZ = cpos.getMinBlockZ();
+        int toBlockX = cpos.getMaxBlockX();
+        int toBlockY = cpos.getMaxBlockY();
+        int toBlockZ = cpos.getMaxBlockZ();
+        boolean extendBack = loadedCube.edgeNeedSkyLightUpdate[dir.getOpposite().ordinal()];
+        switch (dir) {
+            case DOWN:
+                fromBlockY = fromBlockY - 1;
+                toBlockY = extendBack ? fromBlockY + 1 : fromBlockY;
+                break;
+            case UP:
+                toBlockY = toBlockY + 1;
+                fromBlockY = extendBack ? toBlockY - 1 : toBlockY;
+                break;
+            case NORTH:
+                fromBlockZ = fromBlockZ - 1;
+                toBlockZ = extendBack ? fromBlockZ + 1 : fromBlockZ;
+                break;
+            case SOUTH:
+                toBlockZ = toBlockZ + 1;
+                fromBlockZ = extendBack ? toBlockZ - 1 : toBlockZ;
+                break;
+            case WEST:
+                fromBlockX = fromBlockX - 1;
+                toBlockX = extendBack ? fromBlockX + 1 : fromBlockX;
+                break;
+            case EAST:
+                toBlockX = toBlockX + 1;
+                fromBlockX = extendBack ? toBlockX - 1 : toBlockX;
+                break;
+        }
+        this.relightMultiBlock(
+                new BlockPos(fromBlockX, fromBlockY, fromBlockZ),
+                new BlockPos(toBlockX, toBlockY, toBlockZ),
+                EnumSkyBlock.SKY, pos -> {
+                    cube.getWorld().notifyLightSet(pos);
+                    if (tracker != null) {
+                        tracker.onUpdate(pos);
+                    }
+                });
+        cube.edgeNeedSkyLightUpdate[dir.ordinal()] = false;
+        loadedCube.edgeNeedSkyLightUpdate[dir.getOpposite().ordinal()] = false;
+    }
+
     public void sendHeightMapUpdate(BlockPos pos) {
         int size = heightUpdateListeners.size();
         for (int i = 0; i < size; i++) {
@@ -248,51 +331,7 @@ public class LightingManager implements ILightingManager {
                             cpos.getZ() + dir.getZOffset());
                     if (loadedCube == null)
                         continue;
-
-                    int fromBlockX = cpos.getMinBlockX();
-                    int fromBlockY = cpos.getMinBlockY();
-                    int fromBlockZ = cpos.getMinBlockZ();
-                    int toBlockX = cpos.getMaxBlockX();
-                    int toBlockY = cpos.getMaxBlockY();
-                    int toBlockZ = cpos.getMaxBlockZ();
-                    boolean extendBack = loadedCube.edgeNeedSkyLightUpdate[dir.getOpposite().ordinal()];
-                    switch (dir) {
-                        case DOWN:
-                            fromBlockY = fromBlockY - 1;
-                            toBlockY = extendBack ? fromBlockY + 1 : fromBlockY;
-                            break;
-                        case UP:
-                            toBlockY = toBlockY + 1;
-                            fromBlockY = extendBack ? toBlockY - 1 : toBlockY;
-                            break;
-                        case NORTH:
-                            fromBlockZ = fromBlockZ - 1;
-                            toBlockZ = extendBack ? fromBlockZ + 1 : fromBlockZ;
-                            break;
-                        case SOUTH:
-                            toBlockZ = toBlockZ + 1;
-                            fromBlockZ = extendBack ? toBlockZ - 1 : toBlockZ;
-                            break;
-                        case WEST:
-                            fromBlockX = fromBlockX - 1;
-                            toBlockX = extendBack ? fromBlockX + 1 : fromBlockX;
-                            break;
-                        case EAST:
-                            toBlockX = toBlockX + 1;
-                            fromBlockX = extendBack ? toBlockX - 1 : toBlockX;
-                            break;
-                    }
-                    manager.relightMultiBlock(
-                            new BlockPos(fromBlockX, fromBlockY, fromBlockZ),
-                            new BlockPos(toBlockX, toBlockY, toBlockZ),
-                            EnumSkyBlock.SKY, pos -> {
-                                cube.getWorld().notifyLightSet(pos);
-                                if (tracker != null) {
-                                    tracker.onUpdate(pos);
-                                }
-                            });
-                    cube.edgeNeedSkyLightUpdate[dir.ordinal()] = false;
-                    loadedCube.edgeNeedSkyLightUpdate[dir.getOpposite().ordinal()] = false;
+                    manager.relightEdge(cube, dir, loadedCube, tracker);
                 }
             }
             if (!this.hasUpdates) {
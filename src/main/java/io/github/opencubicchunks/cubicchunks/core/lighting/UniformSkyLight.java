@@ -0,0 +1,111 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.lighting;
+
+import io.github.opencubicchunks.cubicchunks.api.world.IHeightMap;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.world.chunk.NibbleArray;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Shared skylight array for cubes that are entirely above the top block of every block column in their column.
+ * <p>
+ * All skylight values in such cubes are 15, so instead of allocating and filling a separate array for each of them,
+ * the same read-only instance is used. It's replaced with a private copy the first time a different value is written
+ * to it (see MixinExtendedBlockStorage_UniformSkyLight).
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class UniformSkyLight {
+
+    private static final int SIZE = Cube.SIZE * Cube.SIZE * Cube.SIZE / 2;
+
+    private static final NibbleArray FULL_SKY_LIGHT = new NibbleArray(filled(SIZE, (byte) 0xFF));
+
+    private UniformSkyLight() {
+        throw new Error();
+    }
+
+    /**
+     * @return the shared skylight array with all values set to 15. It must never be modified directly.
+     */
+    public static NibbleArray fullSkyLight() {
+        return FULL_SKY_LIGHT;
+    }
+
+    public static boolean isFullSkyLight(@Nullable NibbleArray array) {
+        return array == FULL_SKY_LIGHT;
+    }
+
+    /**
+     * @return the shared array if all values in the given data are 15, a new array backed by the data otherwise
+     */
+    public static NibbleArray wrap(byte[] data) {
+        if (data.length != SIZE) {
+            return new NibbleArray(data);
+        }
+        for (byte value : data) {
+            if (value != (byte) 0xFF) {
+                return new NibbleArray(data);
+            }
+        }
+        return FULL_SKY_LIGHT;
+    }
+
+    /**
+     * Creates a new, modifiable copy of the given array. Used to materialize the shared array before it's written to.
+     */
+    public static NibbleArray copyOf(NibbleArray array) {
+        return new NibbleArray(Arrays.copyOf(array.getData(), SIZE));
+    }
+
+    /**
+     * Checks whether the given cube is entirely above the top block of each block column in its column, which means
+     * it receives full skylight everywhere.
+     */
+    public static boolean isAboveSurface(Cube cube) {
+        IHeightMap opacityIndex = cube.getColumn().getOpacityIndex();
+        int cubeMinY = cube.getCoords().getMinBlockY();
+        for (int localX = 0; localX < Cube.SIZE; localX++) {
+            for (int localZ = 0; localZ < Cube.SIZE; localZ++) {
+                if (opacityIndex.getTopBlockY(localX, localZ) >= cubeMinY) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] filled(int size, byte value) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, value);
+        return data;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.network;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.NetHandlerPlayServer;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Hashes of the cubes a client has in its client cube cache, for the dimension the player is in.
+ * <p>
+ * Clients that use {@link CubePacketProtocol#CACHED_CUBES} and have the cache enabled announce the cubes they have
+ * with {@link PacketCubeCacheHashes} when joining a world. Cubes sent with their full data afterwards are added too,
+ * since the client caches everything it receives. Nothing is tracked for clients that never announced their cache.
+ * Only one dimension is tracked for each client, the hashes of the previous dimension are dropped when the client
+ * announces its cache for another one.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class ClientCubeHashes {
+
+    /**
+     * Limits the memory used for a single client and dimension. Cubes above that are always sent in full.
+     */
+    private static final int MAX_CUBES = 1 << 18;
+
+    // keyed by connection, which stays the same when the player entity is recreated on respawn or dimension change
+    private static final Map<NetHandlerPlayServer, ClientCubeHashes> clients = new WeakHashMap<>();
+
+    private final int dimension;
+    private final Object2LongMap<CubePos> hashes = new Object2LongOpenHashMap<>();
+
+    private ClientCubeHashes(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * @return the cubes cached by the player's client in the dimension the player is in, or null if the client didn't
+     * announce any
+     */
+    @Nullable public static ClientCubeHashes get(EntityPlayerMP player) {
+        if (player.connection == null) {
+            return null;
+        }
+        ClientCubeHashes hashes = clients.get(player.connection);
+        return hashes == null || hashes.dimension != player.dimension ? null : hashes;
+    }
+
+    /**
+     * @return the cubes cached by the player's client in the dimension the player is in, replacing the ones tracked for
+     * any other dimension
+     */
+    static ClientCubeHashes getOrCreate(EntityPlayerMP player) {
+        ClientCubeHashes hashes = get(player);
+        if (hashes == null) {
+            hashes = new ClientCubeHashes(player.dimension);
+            clients.put(player.connection, hashes);
+        }
+        return hashes;
+    }
+
+    /**
+     * @return true if the client has the data with the given hash cached for the given cube
+     */
+    boolean isCached(CubePos pos, long hash) {
+        return hashes.containsKey(pos) && hashes.getLong(pos) == hash;
+    }
+
+    /**
+     * Records that the client has the data with the given hash for the given cube, or will have it once it receives
+     * the packet that is being sent.
+     */
+    void put(CubePos pos, long hash) {
+        if (hashes.size() < MAX_CUBES || hashes.containsKey(pos)) {
+            hashes.put(pos, hash);
+        }
+    }
+
+    void remove(CubePos pos) {
+        hashes.removeLong(pos);
+    }
+}
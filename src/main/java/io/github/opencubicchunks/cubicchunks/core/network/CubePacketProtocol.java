@@ -0,0 +1,88 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.network;
+
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.NetHandlerPlayServer;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Versions of the format used to send cubes to clients.
+ * <p>
+ * The server announces the newest version it supports in {@link PacketCubicWorldData}, and clients that support it
+ * too answer with {@link PacketCubesProtocol}. Until then, and for clients that never answer, {@link #LEGACY} is used.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class CubePacketProtocol {
+
+    /**
+     * Block data written by BlockStateContainer, full light arrays, no compression of its own
+     */
+    public static final int LEGACY = 0;
+    /**
+     * Per-cube block palette, single values for uniform light arrays and optional compression of the whole packet
+     */
+    public static final int PALETTE = 1;
+
+    /**
+     * Large sets of block changes may be sent as a bitmask of the changed positions with a block palette, see
+     * {@link PacketCubeBlockChange}
+     */
+    public static final int BLOCK_CHANGE_MASK = 2;
+
+    /**
+     * Cubes the client has cached may be sent as a reference to the cached data, see {@link ClientCubeHashes}
+     */
+    public static final int CACHED_CUBES = 3;
+
+    public static final int LATEST = CACHED_CUBES;
+
+    // keyed by connection, which stays the same when the player entity is recreated on respawn or dimension change
+    private static final Map<NetHandlerPlayServer, Integer> clientVersions = new WeakHashMap<>();
+
+    private CubePacketProtocol() {
+        throw new Error();
+    }
+
+    public static int getVersion(EntityPlayerMP player) {
+        if (player.connection == null) {
+            return LEGACY;
+        }
+        Integer version = clientVersions.get(player.connection);
+        return version == null ? LEGACY : version;
+    }
+
+    static void setVersion(EntityPlayerMP player, int version) {
+        if (player.connection != null) {
+            clientVersions.put(player.connection, Math.max(LEGACY, Math.min(LATEST, version)));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.network;
+
+import io.github.opencubicchunks.cubicchunks.api.util.XYZAddressable;
+import io.github.opencubicchunks.cubicchunks.api.util.XYZMap;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.tileentity.TileEntity;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Cube data encoded for {@link PacketCubes}, kept so that cubes sent to many players at once are encoded only once.
+ * <p>
+ * Entries are invalidated when blocks or light in the cube change. Since not every change is tracked (tile entity
+ * data for example), the whole cache is also cleared once all cubes for the current tick are sent.
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class EncodedCubeCache {
+
+    private final XYZMap<Entry> entries = new XYZMap<>(0.7f, 1000);
+
+    Entry get(Cube cube) {
+        Entry entry = entries.get(cube.getX(), cube.getY(), cube.getZ());
+        // the cube could have been unloaded and loaded again
+        if (entry == null || entry.cube != cube) {
+            entry = new Entry(cube);
+            entries.put(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the size in bytes of the encoded cube data, without tile entities. The cube is encoded if it isn't already.
+     */
+    public int getEncodedSize(Cube cube, int protocol) {
+        if (protocol == CubePacketProtocol.LEGACY) {
+            // legacy packets are encoded all at once, see PacketCubes
+            return WorldEncoder.getLegacyEncodedSize(Collections.singletonList(cube));
+        }
+        return get(cube).getData(protocol).length;
+    }
+
+    public void invalidate(int cubeX, int cubeY, int cubeZ) {
+        if (entries.getSize() != 0) {
+            entries.remove(cubeX, cubeY, cubeZ);
+        }
+    }
+
+    public void clear() {
+        if (entries.getSize() != 0) {
+            entries.clear();
+        }
+    }
+
+    static final class Entry implements XYZAddressable {
+
+        private final Cube cube;
+        // indexed by protocol version, encoded when first needed
+        private final byte[][] data = new byte[CubePacketProtocol.LATEST + 1][];
+        private final long[] hashes = new long[CubePacketProtocol.LATEST + 1];
+        private final boolean[] hashed = new boolean[CubePacketProtocol.LATEST + 1];
+        final List<NBTTagCompound> tileEntityTags;
+
+        private Entry(Cube cube) {
+            this.cube = cube;
+            this.tileEntityTags = cube.getTileEntityMap().values().stream().map(TileEntity::getUpdateTag).collect(Collectors.toList());
+        }
+
+        byte[] getData(int protocol) {
+            if (data[protocol] == null) {
+                data[protocol] = WorldEncoder.encodeCube(cube, protocol);
+            }
+            return data[protocol];
+        }
+
+        long getHash(int protocol) {
+            if (!hashed[protocol]) {
+                hashes[protocol] = WorldEncoder.getContentHash(getData(protocol), protocol);
+                hashed[protocol] = true;
+            }
+            return hashes[protocol];
+        }
+
+        @Override public int getX() {
+            return cube.getX();
+        }
+
+        @Override public int getY() {
+            return cube.getY();
+        }
+
+        @Override public int getZ() {
+            return cube.getZ();
+        }
+    }
+}
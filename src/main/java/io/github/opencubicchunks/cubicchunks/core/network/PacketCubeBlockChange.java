@@ -40,18 +40,26 @@ import io.github.opencubicchunks.cubicchunks.core.world.ClientHeightMap;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.BlankCube;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
 import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import mcp.MethodsReturnNonnullByDefault;
 import net.minecraft.block.Block;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.network.PacketBuffer;
 import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.BitArray;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 import net.minecraftforge.fml.common.network.ByteBufUtils;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -59,19 +67,47 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @ParametersAreNonnullByDefault
 public class PacketCubeBlockChange implements IMessage {
 
+    /**
+     * Written instead of the number of changed blocks when they are encoded as a bitmask with a palette
+     */
+    private static final short MASK_ENCODING = -1;
+    private static final int BLOCKS_PER_CUBE = Cube.SIZE * Cube.SIZE * Cube.SIZE;
+    private static final int MASK_LONGS = BLOCKS_PER_CUBE / Long.SIZE;
+
     int[] heightValues;
     CubePos cubePos;
     short[] localAddresses;
     IBlockState[] blockStates;
 
+    /**
+     * Block state IDs used by the changed blocks, only set when the bitmask encoding is used
+     */
+    @Nullable private int[] palette;
+    @Nullable private int[] paletteIndexes;
+
     public PacketCubeBlockChange() {
     }
 
     public PacketCubeBlockChange(Cube cube, TShortCollection localAddresses) {
+        this(cube, localAddresses, false);
+    }
+
+    /**
+     * @param allowMask whether the client supports {@link CubePacketProtocol#BLOCK_CHANGE_MASK}. If it does, the
+     * changes are sent as a bitmask of changed positions with a block palette when that is smaller than sending each
+     * change separately.
+     */
+    public PacketCubeBlockChange(Cube cube, TShortCollection localAddresses, boolean allowMask) {
         this.cubePos = cube.getCoords();
-        this.localAddresses = localAddresses.toArray();
-        this.blockStates = new IBlockState[localAddresses.size()];
-        int i = localAddresses.size() - 1;
+        // the same block may be changed more than once, the mask removes duplicates
+        long[] mask = new long[MASK_LONGS];
+        localAddresses.forEach(address -> {
+            mask[(address & 0xFFF) >>> 6] |= 1L << address;
+            return true;
+        });
+        this.localAddresses = toAddresses(mask);
+        this.blockStates = new IBlockState[this.localAddresses.length];
+        int i = this.localAddresses.length - 1;
         TIntSet xzAddresses = new TIntHashSet();
         for (; i >= 0; i--) {
             int localAddress = this.localAddresses[i];
@@ -91,6 +127,88 @@ public class PacketCubeBlockChange implements IMessage {
             heightValues[i] = v;
             i++;
         }
+        if (allowMask) {
+            buildPalette();
+            if (getMaskDataSize() >= getListDataSize()) {
+                this.palette = null;
+                this.paletteIndexes = null;
+            }
+        }
+    }
+
+    /**
+     * @return the size of this packet in bytes, without the packet header
+     */
+    public int getEncodedSize() {
+        int size = Integer.BYTES * 3 + heightValues.length * Integer.BYTES;
+        if (palette != null) {
+            return size + PacketBuffer.getVarIntSize(heightValues.length) + getMaskDataSize();
+        }
+        return size + Byte.BYTES + getListDataSize();
+    }
+
+    @SuppressWarnings("deprecation")
+    private int getListDataSize() {
+        int size = Short.BYTES;
+        for (IBlockState state : blockStates) {
+            size += Short.BYTES + PacketBuffer.getVarIntSize(Block.BLOCK_STATE_IDS.get(state));
+        }
+        return size;
+    }
+
+    private int getMaskDataSize() {
+        assert palette != null;
+        int size = Short.BYTES + MASK_LONGS * Long.BYTES + PacketBuffer.getVarIntSize(palette.length);
+        for (int id : palette) {
+            size += PacketBuffer.getVarIntSize(id);
+        }
+        int bits = WorldEncoder.getPaletteBits(palette.length);
+        if (bits != 0) {
+            int longs = getBitArrayLength(bits, localAddresses.length);
+            size += PacketBuffer.getVarIntSize(longs) + longs * Long.BYTES;
+        }
+        return size;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void buildPalette() {
+        IntList palette = new IntArrayList();
+        Int2IntMap indexes = new Int2IntOpenHashMap();
+        indexes.defaultReturnValue(-1);
+        this.paletteIndexes = new int[blockStates.length];
+        for (int i = 0; i < blockStates.length; i++) {
+            int id = Block.BLOCK_STATE_IDS.get(blockStates[i]);
+            int index = indexes.get(id);
+            if (index < 0) {
+                index = palette.size();
+                palette.add(id);
+                indexes.put(id, index);
+            }
+            paletteIndexes[i] = index;
+        }
+        this.palette = palette.toIntArray();
+    }
+
+    private static short[] toAddresses(long[] mask) {
+        int count = 0;
+        for (long bits : mask) {
+            count += Long.bitCount(bits);
+        }
+        short[] addresses = new short[count];
+        int i = 0;
+        for (int j = 0; j < mask.length; j++) {
+            long bits = mask[j];
+            while (bits != 0) {
+                addresses[i++] = (short) (j << 6 | Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        return addresses;
+    }
+
+    private static int getBitArrayLength(int bits, int size) {
+        // same as the size of the array allocated by BitArray
+        return (bits * size + Long.SIZE - 1) / Long.SIZE;
     }
 
     @SuppressWarnings("deprecation") // Forge thinks we are trying to register a block or something :P
@@ -98,37 +216,102 @@ public class PacketCubeBlockChange implements IMessage {
     public void fromBytes(ByteBuf in) {
         this.cubePos = new CubePos(in.readInt(), in.readInt(), in.readInt());
         short numBlocks = in.readShort();
-        localAddresses = new short[numBlocks];
-        blockStates = new IBlockState[numBlocks];
+        int numHmapChanges;
+        if (numBlocks == MASK_ENCODING) {
+            readMasked(new PacketBuffer(in));
+            // all 256 block columns can change, which doesn't fit into a byte
+            numHmapChanges = readVarInt(in, 3);
+        } else {
+            localAddresses = new short[numBlocks];
+            blockStates = new IBlockState[numBlocks];
 
-        for (int i = 0; i < numBlocks; i++) {
-            localAddresses[i] = in.readShort();
-            blockStates[i] = Block.BLOCK_STATE_IDS.getByValue(readVarInt(in, 4));
+            for (int i = 0; i < numBlocks; i++) {
+                localAddresses[i] = in.readShort();
+                blockStates[i] = Block.BLOCK_STATE_IDS.getByValue(readVarInt(in, 4));
+            }
+            numHmapChanges = in.readUnsignedByte();
         }
-        int numHmapChanges = in.readUnsignedByte();
         heightValues = new int[numHmapChanges];
         for (int i = 0; i < numHmapChanges; i++) {
             heightValues[i] = in.readInt();
         }
     }
 
+    @SuppressWarnings("deprecation")
+    private void readMasked(PacketBuffer in) {
+        long[] mask = new long[MASK_LONGS];
+        for (int i = 0; i < MASK_LONGS; i++) {
+            mask[i] = in.readLong();
+        }
+        localAddresses = toAddresses(mask);
+        blockStates = new IBlockState[localAddresses.length];
+
+        IBlockState[] palette = new IBlockState[in.readVarInt()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = Block.BLOCK_STATE_IDS.getByValue(in.readVarInt());
+        }
+        int bits = WorldEncoder.getPaletteBits(palette.length);
+        if (bits == 0) {
+            if (palette.length != 0) {
+                Arrays.fill(blockStates, palette[0]);
+            }
+            return;
+        }
+        BitArray array = new BitArray(bits, localAddresses.length);
+        in.readLongArray(array.getBackingLongArray());
+        for (int i = 0; i < localAddresses.length; i++) {
+            blockStates[i] = palette[array.getAt(i)];
+        }
+    }
+
     @SuppressWarnings("deprecation")
     @Override
     public void toBytes(ByteBuf out) {
         out.writeInt(cubePos.getX());
         out.writeInt(cubePos.getY());
         out.writeInt(cubePos.getZ());
-        out.writeShort(localAddresses.length);
-        for (int i = 0; i < localAddresses.length; i++) {
-            out.writeShort(localAddresses[i]);
-            ByteBufUtils.writeVarInt(out, Block.BLOCK_STATE_IDS.get(blockStates[i]), 4);
+        if (palette != null) {
+            out.writeShort(MASK_ENCODING);
+            writeMasked(new PacketBuffer(out));
+            ByteBufUtils.writeVarInt(out, heightValues.length, 3);
+        } else {
+            out.writeShort(localAddresses.length);
+            for (int i = 0; i < localAddresses.length; i++) {
+                out.writeShort(localAddresses[i]);
+                ByteBufUtils.writeVarInt(out, Block.BLOCK_STATE_IDS.get(blockStates[i]), 4);
+            }
+            out.writeByte(heightValues.length);
         }
-        out.writeByte(heightValues.length);
         for (int v : heightValues) {
             out.writeInt(v);
         }
     }
 
+    private void writeMasked(PacketBuffer out) {
+        assert palette != null && paletteIndexes != null;
+        long[] mask = new long[MASK_LONGS];
+        for (short address : localAddresses) {
+            mask[address >>> 6] |= 1L << address;
+        }
+        for (long bits : mask) {
+            out.writeLong(bits);
+        }
+        out.writeVarInt(palette.length);
+        for (int id : palette) {
+            out.writeVarInt(id);
+        }
+        int bits = WorldEncoder.getPaletteBits(palette.length);
+        if (bits == 0) {
+            return;
+        }
+        // addresses are sorted, so the indexes are in the same order as the bits in the mask
+        BitArray array = new BitArray(bits, localAddresses.length);
+        for (int i = 0; i < paletteIndexes.length; i++) {
+            array.setAt(i, paletteIndexes[i]);
+        }
+        out.writeLongArray(array.getBackingLongArray());
+    }
+
     public static class Handler extends AbstractClientMessageHandler<PacketCubeBlockChange> {
 
         @Nullable @Override
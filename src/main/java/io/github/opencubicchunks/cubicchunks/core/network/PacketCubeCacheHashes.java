@@ -0,0 +1,102 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.network;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.util.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Sent by the client after {@link PacketCubesProtocol} to announce the cubes it has in its client cube cache, see
+ * {@link ClientCubeHashes}. Large caches are announced in multiple packets.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class PacketCubeCacheHashes implements IMessage {
+
+    /**
+     * Keeps the packet below the size limit of packets sent to the server
+     */
+    public static final int MAX_CUBES = 1024;
+
+    private int dimension;
+    private CubePos[] cubePos;
+    private long[] hashes;
+
+    public PacketCubeCacheHashes() {
+    }
+
+    public PacketCubeCacheHashes(int dimension, CubePos[] cubePos, long[] hashes) {
+        this.dimension = dimension;
+        this.cubePos = cubePos;
+        this.hashes = hashes;
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        this.dimension = buf.readInt();
+        int count = buf.readUnsignedShort();
+        this.cubePos = new CubePos[count];
+        this.hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            this.cubePos[i] = PacketUtils.readCubePos(buf);
+            this.hashes[i] = buf.readLong();
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        buf.writeInt(this.dimension);
+        buf.writeShort(this.cubePos.length);
+        for (int i = 0; i < this.cubePos.length; i++) {
+            PacketUtils.write(buf, this.cubePos[i]);
+            buf.writeLong(this.hashes[i]);
+        }
+    }
+
+    public static class Handler extends AbstractServerMessageHandler<PacketCubeCacheHashes> {
+
+        @Override
+        public void handleServerMessage(EntityPlayer player, PacketCubeCacheHashes message, MessageContext ctx) {
+            EntityPlayerMP playerMP = (EntityPlayerMP) player;
+            // hashes announced before a dimension change are outdated, and only clients using the cache may send them
+            if (playerMP.connection == null || player.dimension != message.dimension
+                    || CubePacketProtocol.getVersion(playerMP) < CubePacketProtocol.CACHED_CUBES) {
+                return;
+            }
+            ClientCubeHashes hashes = ClientCubeHashes.getOrCreate(playerMP);
+            for (int i = 0; i < message.cubePos.length; i++) {
+                hashes.put(message.cubePos[i], message.hashes[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.network;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.server.PlayerCubeMap;
+import io.github.opencubicchunks.cubicchunks.core.util.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+import java.util.List;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Sent by the client when the server referenced cached cube data that the client doesn't have anymore. The server
+ * sends these cubes again with their full data.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class PacketCubeCacheMiss implements IMessage {
+
+    private int dimension;
+    private CubePos[] cubePos;
+
+    public PacketCubeCacheMiss() {
+    }
+
+    public PacketCubeCacheMiss(int dimension, List<CubePos> cubePos) {
+        this.dimension = dimension;
+        this.cubePos = cubePos.toArray(new CubePos[0]);
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        this.dimension = buf.readInt();
+        this.cubePos = new CubePos[buf.readUnsignedShort()];
+        for (int i = 0; i < this.cubePos.length; i++) {
+            this.cubePos[i] = PacketUtils.readCubePos(buf);
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        buf.writeInt(this.dimension);
+        buf.writeShort(this.cubePos.length);
+        for (CubePos pos : this.cubePos) {
+            PacketUtils.write(buf, pos);
+        }
+    }
+
+    public static class Handler extends AbstractServerMessageHandler<PacketCubeCacheMiss> {
+
+        @Override
+        public void handleServerMessage(EntityPlayer player, PacketCubeCacheMiss message, MessageContext ctx) {
+            EntityPlayerMP playerMP = (EntityPlayerMP) player;
+            // the player may have changed dimension since, cubes in other dimensions will be sent again when needed
+            WorldServer world = (WorldServer) player.world;
+            if (player.dimension != message.dimension || !(world.getPlayerChunkMap() instanceof PlayerCubeMap)) {
+                return;
+            }
+            ClientCubeHashes hashes = ClientCubeHashes.get(playerMP);
+            if (hashes != null) {
+                for (CubePos pos : message.cubePos) {
+                    hashes.remove(pos);
+                }
+            }
+            PlayerCubeMap playerCubeMap = (PlayerCubeMap) world.getPlayerChunkMap();
+            for (CubePos pos : message.cubePos) {
+                playerCubeMap.resendCubeToPlayer(pos, playerMP);
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import static io.github.opencubicchunks.cubicchunks.api.util.Coords.cubeToMinBlo
 import gnu.trove.list.TShortList;
 import io.github.opencubicchunks.cubicchunks.api.util.Bits;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.core.client.CubeProviderClient;
 import io.github.opencubicchunks.cubicchunks.core.lighting.LightingManager;
 import io.github.opencubicchunks.cubicchunks.core.util.AddressTools;
@@ -45,26 +46,36 @@ import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 
 public class PacketCubeSkyLightUpdates implements IMessage {
 
+    private static final int LIGHT_ARRAY_SIZE = Cube.SIZE * Cube.SIZE * Cube.SIZE / 2;
+
+    /**
+     * Written instead of isFullRelight=true for the compressed full relight format. Legacy clients would read it as
+     * true, but they only get the uncompressed sky light array.
+     */
+    private static final int COMPRESSED_FULL_RELIGHT = 2;
+
     private CubePos cube;
     private boolean isFullRelight;
+    private boolean isCompressed;
     private byte[] data;
 
     public PacketCubeSkyLightUpdates() {
     }
 
     public PacketCubeSkyLightUpdates(Cube cube, TShortList updates) {
+        this.cube = cube.getCoords();
         if (cube.getStorage() == null) {
             // no light
             this.isFullRelight = true;
             this.data = null;
             return;
         }
-        this.cube = cube.getCoords();
         this.data = new byte[updates.size() * 2];
         for (int i = 0; i < updates.size(); i++) {
             short packed = updates.get(i);
@@ -79,21 +90,40 @@ public class PacketCubeSkyLightUpdates implements IMessage {
         }
     }
 
-    public PacketCubeSkyLightUpdates(Cube cube) {
+    /**
+     * Creates a packet containing the whole skylight array of the cube. Since {@link CubePacketProtocol#PALETTE} it's
+     * compressed, together with the block light array.
+     *
+     * @param protocol {@link CubePacketProtocol} version of the client
+     */
+    public PacketCubeSkyLightUpdates(Cube cube, int protocol) {
         this.isFullRelight = true;
-        if (cube.getStorage() == null) {
+        this.cube = cube.getCoords();
+        ExtendedBlockStorage storage = cube.getStorage();
+        if (storage == null) {
             // no light
             this.data = null;
             return;
         }
-        this.cube = cube.getCoords();
-        this.data = Arrays.copyOf(cube.getStorage().getSkyLight().getData(), Cube.SIZE * Cube.SIZE * Cube.SIZE / 2);
+        if (protocol < CubePacketProtocol.PALETTE) {
+            this.data = Arrays.copyOf(storage.getSkyLight().getData(), LIGHT_ARRAY_SIZE);
+            return;
+        }
+        this.isCompressed = true;
+        byte[] light = new byte[LIGHT_ARRAY_SIZE * 2];
+        if (storage.getSkyLight() != null) {
+            System.arraycopy(storage.getSkyLight().getData(), 0, light, 0, LIGHT_ARRAY_SIZE);
+        }
+        System.arraycopy(storage.getBlockLight().getData(), 0, light, LIGHT_ARRAY_SIZE, LIGHT_ARRAY_SIZE);
+        this.data = WorldEncoder.compress(light);
     }
 
     @Override
     public void fromBytes(ByteBuf buf) {
         this.cube = new CubePos(buf.readInt(), buf.readInt(), buf.readInt());
-        this.isFullRelight = buf.readBoolean();
+        int fullRelight = buf.readUnsignedByte();
+        this.isFullRelight = fullRelight != 0;
+        this.isCompressed = fullRelight == COMPRESSED_FULL_RELIGHT;
         boolean hasData = buf.readBoolean();
         if (hasData) {
             int size = ByteBufUtils.readVarInt(buf, 3);
@@ -108,7 +138,7 @@ public class PacketCubeSkyLightUpdates implements IMessage {
         buf.writeInt(this.cube.getY());
         buf.writeInt(this.cube.getZ());
 
-        buf.writeBoolean(this.isFullRelight);
+        buf.writeByte(this.isCompressed ? COMPRESSED_FULL_RELIGHT : this.isFullRelight ? 1 : 0);
         buf.writeBoolean(this.data != null);
 
         if (this.data != null) {
@@ -125,6 +155,10 @@ public class PacketCubeSkyLightUpdates implements IMessage {
         return isFullRelight;
     }
 
+    boolean isCompressed() {
+        return isCompressed;
+    }
+
     byte[] getData() {
         return data;
     }
@@ -152,8 +186,20 @@ public class PacketCubeSkyLightUpdates implements IMessage {
                 cube.setStorage(storage = new ExtendedBlockStorage(cubeToMinBlock(cube.getY()), worldClient.provider.hasSkyLight()));
             }
             assert storage != null;
-            if (message.isFullRelight()) {
+            if (message.isFullRelight() && !message.isCompressed()) {
                 storage.setSkyLight(new NibbleArray(message.getData()));
+            } else if (message.isFullRelight()) {
+                byte[] light;
+                try {
+                    light = WorldEncoder.decompress(message.getData(), LIGHT_ARRAY_SIZE * 2);
+                } catch (DataFormatException e) {
+                    CubicChunks.LOGGER.error("Invalid light data for cube " + message.getCubePos(), e);
+                    return;
+                }
+                if (worldClient.provider.hasSkyLight()) {
+                    storage.setSkyLight(new NibbleArray(Arrays.copyOfRange(light, 0, LIGHT_ARRAY_SIZE)));
+                }
+                storage.setBlockLight(new NibbleArray(Arrays.copyOfRange(light, LIGHT_ARRAY_SIZE, LIGHT_ARRAY_SIZE * 2)));
             } else {
                 for (int i = 0; i < message.updateCount(); i++) {
                     int packed1 = message.getData()[i * 2] & 0xFF;
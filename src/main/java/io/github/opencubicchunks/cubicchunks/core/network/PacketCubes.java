@@ -24,12 +24,17 @@
  */
 package io.github.opencubicchunks.cubicchunks.core.network;
 
+import com.google.common.base.Preconditions;
 import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
+import io.github.opencubicchunks.cubicchunks.core.client.ClientCubeCache;
 import io.github.opencubicchunks.cubicchunks.core.client.CubeProviderClient;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.core.util.PacketUtils;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
 import mcp.MethodsReturnNonnullByDefault;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.entity.player.EntityPlayer;
@@ -38,14 +43,15 @@ import net.minecraft.network.PacketBuffer;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.fml.common.network.ByteBufUtils;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -54,40 +60,140 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @ParametersAreNonnullByDefault
 public class PacketCubes implements IMessage {
 
+    /**
+     * The protocol version is stored in the highest bits of the cube count. It's 0 for the legacy format, so that
+     * clients that don't know about protocol versions can still read it.
+     */
+    private static final int PROTOCOL_SHIFT = 12;
+    public static final int MAX_CUBES = (1 << PROTOCOL_SHIFT) - 1;
+
     private CubePos[] cubePos;
-    private byte[] data;
+    private int protocol;
+    private int dimension;
+    /**
+     * Size of the data before compression, or 0 if it's not compressed
+     */
+    private int uncompressedSize;
+
+    // serverside, the cubes are written directly into the packet buffer in toBytes
+    @Nullable private List<byte[]> encodedCubes;
+    @Nullable private byte[][] heightMaps;
+    private int dataSize;
+    @Nullable private byte[] compressedData;
+    /**
+     * Serverside, the data for clients using {@link CubePacketProtocol#LEGACY}, encoded all at once by
+     * {@link WorldEncoder#encodeLegacyCubes}
+     */
+    @Nullable private byte[] legacyData;
+
+    /**
+     * Clientside, data of legacy protocol packets that can only be decoded on the main thread. It's copied out of the
+     * received buffer, so nothing has to be released if the packet is never handled.
+     */
+    @Nullable private byte[] data;
+    /**
+     * Cubes decoded on the network thread, or null if they still need to be decoded from {@link #data}
+     */
+    @Nullable private WorldEncoder.DecodedCube[] decodedCubes;
     private List<List<NBTTagCompound>> tileEntityTags;
 
     public PacketCubes() {
     }
 
     public PacketCubes(List<Cube> cubes) {
+        this(cubes, column -> true, new EncodedCubeCache(), CubePacketProtocol.LEGACY, null);
+    }
+
+    /**
+     * @param cubes the cubes to send
+     * @param sendHeightMap called once for each column of the sent cubes, returns whether the heightmap of that column
+     * needs to be sent. Not used for {@link CubePacketProtocol#LEGACY}, which always sends it with every non-empty cube.
+     * @param cache cache of already encoded cubes, shared between packets sent in the same tick
+     * @param protocol {@link CubePacketProtocol} version of the client
+     * @param clientHashes cubes the client has cached, these are sent as a reference to the cached data. Null if the
+     * client doesn't use a cache.
+     */
+    public PacketCubes(List<Cube> cubes, Predicate<Chunk> sendHeightMap, EncodedCubeCache cache, int protocol,
+            @Nullable ClientCubeHashes clientHashes) {
+        Preconditions.checkArgument(cubes.size() <= MAX_CUBES, "Too many cubes in one packet: %s", cubes.size());
+        this.protocol = protocol;
+        this.dimension = cubes.isEmpty() ? 0 : cubes.get(0).getWorld().provider.getDimension();
         this.cubePos = new CubePos[cubes.size()];
+        List<byte[]> encodedCubes = new ArrayList<>(cubes.size());
+        this.tileEntityTags = new ArrayList<>(cubes.size());
         for (int i = 0; i < cubes.size(); i++) {
             cubePos[i] = cubes.get(i).getCoords();
+            EncodedCubeCache.Entry entry = cache.get(cubes.get(i));
+            tileEntityTags.add(entry.tileEntityTags);
+            if (protocol == CubePacketProtocol.LEGACY) {
+                continue;
+            }
+            byte[] encoded = entry.getData(protocol);
+            if (clientHashes != null && protocol >= CubePacketProtocol.CACHED_CUBES) {
+                long hash = entry.getHash(protocol);
+                if (clientHashes.isCached(cubePos[i], hash)) {
+                    encoded = WorldEncoder.encodeCachedReference(hash);
+                } else {
+                    // the client will cache what it receives
+                    clientHashes.put(cubePos[i], hash);
+                }
+            }
+            encodedCubes.add(encoded);
         }
-        this.data = new byte[WorldEncoder.getEncodedSize(cubes)];
-        PacketBuffer out = new PacketBuffer(WorldEncoder.createByteBufForWrite(this.data));
-
-        WorldEncoder.encodeCubes(out, cubes);
-
-        this.tileEntityTags = new ArrayList<>();
+        if (protocol == CubePacketProtocol.LEGACY) {
+            // the legacy format interleaves the data of all cubes, so it can't be put together from encoded cubes
+            this.legacyData = new byte[WorldEncoder.getLegacyEncodedSize(cubes)];
+            WorldEncoder.encodeLegacyCubes(new PacketBuffer(WorldEncoder.createByteBufForWrite(this.legacyData)), cubes);
+            return;
+        }
+        this.encodedCubes = encodedCubes;
+        this.heightMaps = WorldEncoder.getHeightMapsToSend(cubes, sendHeightMap);
+        this.dataSize = WorldEncoder.getEncodedSize(encodedCubes, heightMaps);
 
-        cubes.forEach(cube ->
-                tileEntityTags.add(cube.getTileEntityMap().values().stream().map(TileEntity::getUpdateTag).collect(Collectors.toList()))
-        );
+        if (protocol >= CubePacketProtocol.PALETTE && CubicChunksConfig.compressCubePackets) {
+            byte[] data = new byte[this.dataSize];
+            WorldEncoder.encodeCubes(new PacketBuffer(WorldEncoder.createByteBufForWrite(data)), encodedCubes, heightMaps);
+            this.uncompressedSize = data.length;
+            this.compressedData = WorldEncoder.compress(data);
+        }
     }
 
     @Override
     public void fromBytes(ByteBuf buf) {
-        int cubeCount = buf.readUnsignedShort();
+        int header = buf.readUnsignedShort();
+        int cubeCount = header & MAX_CUBES;
+        this.protocol = header >>> PROTOCOL_SHIFT;
         cubePos = new CubePos[cubeCount];
         for (int i = 0; i < this.cubePos.length; i++) {
             cubePos[i] = PacketUtils.readCubePos(buf);
         }
 
-        this.data = new byte[buf.readInt()];
-        buf.readBytes(this.data);
+        if (this.protocol >= CubePacketProtocol.PALETTE) {
+            this.uncompressedSize = ByteBufUtils.readVarInt(buf, 5);
+        }
+        if (this.protocol >= CubePacketProtocol.CACHED_CUBES) {
+            this.dimension = buf.readInt();
+        }
+        int length = buf.readInt();
+        if (this.protocol >= CubePacketProtocol.PALETTE) {
+            // the data doesn't depend on the client world since this protocol version, so it can be decoded here
+            // instead of on the main thread, directly from the received buffer
+            ByteBuf data = buf.readSlice(length);
+            if (this.uncompressedSize != 0) {
+                try {
+                    data = Unpooled.wrappedBuffer(WorldEncoder.decompress(data, this.uncompressedSize,
+                            WorldEncoder.getMaxEncodedSize(cubeCount)));
+                } catch (DataFormatException e) {
+                    throw new DecoderException(e);
+                }
+                this.uncompressedSize = 0;
+            }
+            ClientCubeCache cache = this.protocol >= CubePacketProtocol.CACHED_CUBES ? ClientCubeCache.get(this.dimension) : null;
+            this.decodedCubes = WorldEncoder.decodeCubes(new PacketBuffer(data), this.cubePos, this.protocol, cache);
+        } else {
+            this.data = new byte[length];
+            buf.readBytes(this.data);
+        }
 
         this.tileEntityTags = new ArrayList<>();
         for (int i = 0; i < cubeCount; i++) {
@@ -102,13 +208,30 @@ public class PacketCubes implements IMessage {
 
     @Override
     public void toBytes(ByteBuf buf) {
-        buf.writeShort(cubePos.length);
+        buf.writeShort(cubePos.length | this.protocol << PROTOCOL_SHIFT);
         for (CubePos pos : cubePos) {
             PacketUtils.write(buf, pos);
         }
 
-        buf.writeInt(this.data.length);
-        buf.writeBytes(this.data);
+        if (this.protocol >= CubePacketProtocol.PALETTE) {
+            ByteBufUtils.writeVarInt(buf, this.uncompressedSize, 5);
+        }
+        if (this.protocol >= CubePacketProtocol.CACHED_CUBES) {
+            buf.writeInt(this.dimension);
+        }
+        if (this.compressedData != null) {
+            buf.writeInt(this.compressedData.length);
+            buf.writeBytes(this.compressedData);
+        } else if (this.legacyData != null) {
+            buf.writeInt(this.legacyData.length);
+            buf.writeBytes(this.legacyData);
+        } else {
+            assert this.encodedCubes != null && this.heightMaps != null;
+            buf.writeInt(this.dataSize);
+            int start = buf.writerIndex();
+            WorldEncoder.encodeCubes(new PacketBuffer(buf), this.encodedCubes, this.heightMaps);
+            assert buf.writerIndex() - start == this.dataSize;
+        }
 
         this.tileEntityTags.forEach(tags -> {
             buf.writeInt(tags.size());
@@ -120,8 +243,25 @@ public class PacketCubes implements IMessage {
         return cubePos;
     }
 
-    byte[] getData() {
-        return data;
+    /**
+     * Returns the decoded cube data, decoding it now if that wasn't possible on the network thread.
+     */
+    WorldEncoder.DecodedCube[] getDecodedCubes(boolean hasSkyLight) {
+        if (decodedCubes == null) {
+            assert data != null;
+            decodedCubes = WorldEncoder.decodeLegacyCubes(new PacketBuffer(WorldEncoder.createByteBufForRead(data)), cubePos,
+                    hasSkyLight);
+            data = null;
+        }
+        return decodedCubes;
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    int getProtocol() {
+        return protocol;
     }
 
     List<List<NBTTagCompound>> getTileEntityTags() {
@@ -136,22 +276,26 @@ public class PacketCubes implements IMessage {
             CubeProviderClient cubeCache = (CubeProviderClient) worldClient.getChunkProvider();
 
             CubePos[] cubePos = message.getCubePos();
-            List<Cube> cubes = new ArrayList<>();
-            for (CubePos pos : cubePos) {
-                Cube cube = cubeCache.loadCube(pos); // new cube
+            WorldEncoder.DecodedCube[] decodedCubes = message.getDecodedCubes(worldClient.provider.hasSkyLight());
+            List<CubePos> cacheMisses = new ArrayList<>();
+            for (int i = 0; i < cubePos.length; i++) {
+                if (decodedCubes[i] == null) {
+                    // referenced cached data that this client doesn't have, the server will send it again
+                    cacheMisses.add(cubePos[i]);
+                    continue;
+                }
+                Cube cube = cubeCache.loadCube(cubePos[i]); // new cube
                 //isEmpty actually checks if the column is a BlankColumn
                 if (cube == null) {
-                    CubicChunks.LOGGER.error("Out of order cube received! No column for cube at {} exists!", pos);
+                    CubicChunks.LOGGER.error("Out of order cube received! No column for cube at {} exists!", cubePos[i]);
+                    continue;
                 }
-                cubes.add(cube);
+                WorldEncoder.installCube(cube, decodedCubes[i]);
+                cube.markForRenderUpdate();
+            }
+            if (!cacheMisses.isEmpty()) {
+                PacketDispatcher.sendToServer(new PacketCubeCacheMiss(message.getDimension(), cacheMisses));
             }
-
-
-            byte[] data = message.getData();
-            ByteBuf buf = WorldEncoder.createByteBufForRead(data);
-            WorldEncoder.decodeCube(new PacketBuffer(buf), cubes);
-
-            cubes.stream().filter(Objects::nonNull).forEach(Cube::markForRenderUpdate);
 
             message.getTileEntityTags().forEach(tags -> tags.forEach(tag -> {
                 int blockX = tag.getInteger("x");
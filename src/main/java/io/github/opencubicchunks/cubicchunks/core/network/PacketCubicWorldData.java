@@ -24,7 +24,11 @@
  */
 package io.github.opencubicchunks.cubicchunks.core.network;
 
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.api.util.IntRange;
+import io.github.opencubicchunks.cubicchunks.core.client.ClientCubeCache;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.core.client.INetHandlerPlayClient;
 import io.github.opencubicchunks.cubicchunks.api.world.ICubicWorld;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
@@ -40,6 +44,9 @@ import net.minecraftforge.fml.client.FMLClientHandler;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -52,6 +59,7 @@ public class PacketCubicWorldData implements IMessage {
     private int maxHeight;
     private int minGenerationHeight;
     private int maxGenerationHeight;
+    private int cubesProtocol = CubePacketProtocol.LATEST;
 
     public PacketCubicWorldData() {
     }
@@ -82,6 +90,8 @@ public class PacketCubicWorldData implements IMessage {
         this.maxHeight = buf.readInt();
         this.minGenerationHeight = buf.readInt();
         this.maxGenerationHeight = buf.readInt();
+        // older servers don't send it
+        this.cubesProtocol = buf.isReadable() ? buf.readUnsignedByte() : CubePacketProtocol.LEGACY;
     }
 
     @Override
@@ -91,6 +101,7 @@ public class PacketCubicWorldData implements IMessage {
         buf.writeInt(this.maxHeight);
         buf.writeInt(this.minGenerationHeight);
         buf.writeInt(this.maxGenerationHeight);
+        buf.writeByte(this.cubesProtocol);
     }
 
     public boolean isCubicWorld() {
@@ -113,6 +124,10 @@ public class PacketCubicWorldData implements IMessage {
         return maxGenerationHeight;
     }
 
+    public int getCubesProtocol() {
+        return cubesProtocol;
+    }
+
     public static class Handler extends AbstractClientMessageHandler<PacketCubicWorldData> {
 
         @Nullable @Override
@@ -132,7 +147,33 @@ public class PacketCubicWorldData implements IMessage {
                     Minecraft.getMinecraft().renderGlobal.setWorldAndLoadRenderers((WorldClient) world);
                 }
             }
+            int protocol = Math.min(message.getCubesProtocol(), CubePacketProtocol.LATEST);
+            if (protocol > CubePacketProtocol.LEGACY) {
+                PacketDispatcher.sendToServer(new PacketCubesProtocol(protocol));
+            }
+            if (protocol >= CubePacketProtocol.CACHED_CUBES) {
+                ClientCubeCache cache = ClientCubeCache.get(world.provider.getDimension());
+                if (cache != null) {
+                    sendCachedCubes(world.provider.getDimension(), cache);
+                }
+            }
+        }
 
+        private static void sendCachedCubes(int dimension, ClientCubeCache cache) {
+            List<CubePos> cubePos = new ArrayList<>();
+            TLongList hashes = new TLongArrayList();
+            cache.forEachEntry((pos, hash) -> {
+                cubePos.add(pos);
+                hashes.add(hash);
+            });
+            // an empty packet still tells the server that this client has a cache
+            int i = 0;
+            do {
+                int end = Math.min(cubePos.size(), i + PacketCubeCacheHashes.MAX_CUBES);
+                PacketDispatcher.sendToServer(new PacketCubeCacheHashes(dimension,
+                        cubePos.subList(i, end).toArray(new CubePos[0]), hashes.subList(i, end).toArray()));
+                i = end;
+            } while (i < cubePos.size());
         }
     }
 }
@@ -69,6 +69,10 @@ public class PacketDispatcher {
         registerMessage(PacketCubicWorldData.Handler.class, PacketCubicWorldData.class);
         registerMessage(PacketHeightMapUpdate.Handler.class, PacketHeightMapUpdate.class);
         registerMessage(PacketCubeSkyLightUpdates.Handler.class, PacketCubeSkyLightUpdates.class);
+        // register new packets at the end, so that ids of the others are the same for older versions
+        registerMessage(PacketCubesProtocol.Handler.class, PacketCubesProtocol.class);
+        registerMessage(PacketCubeCacheHashes.Handler.class, PacketCubeCacheHashes.class);
+        registerMessage(PacketCubeCacheMiss.Handler.class, PacketCubeCacheMiss.class);
 
     }
 
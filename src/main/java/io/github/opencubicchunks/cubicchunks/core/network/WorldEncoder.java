@@ -24,28 +24,266 @@
  */
 package io.github.opencubicchunks.cubicchunks.core.network;
 
+import com.google.common.hash.Hashing;
 import io.github.opencubicchunks.cubicchunks.api.util.Coords;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.client.ClientCubeCache;
+import io.github.opencubicchunks.cubicchunks.core.lighting.UniformSkyLight;
 import io.github.opencubicchunks.cubicchunks.core.world.ClientHeightMap;
 import io.github.opencubicchunks.cubicchunks.core.world.ServerHeightMap;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.SharedCubeStorage;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
 import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.BitArray;
+import net.minecraft.world.chunk.BlockStateContainer;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
 import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
 class WorldEncoder {
 
-    static void encodeCubes(PacketBuffer out, Collection<Cube> cubes) {
+    private static final int HEIGHTMAP_SIZE = Cube.SIZE * Cube.SIZE * Integer.BYTES;
+    private static final int BLOCKS_PER_CUBE = Cube.SIZE * Cube.SIZE * Cube.SIZE;
+    /**
+     * Set in the flags of cubes that are sent as a reference to data in the client cube cache
+     */
+    private static final int CACHED_FLAG = 128;
+    /**
+     * Upper bound of the size of one cube written by {@link #encodeCubes}: the length prefix, flags, a palette of up to
+     * one entry per block with indexes of at most 16 bits, both light arrays, biomes and the heightmap
+     */
+    private static final int MAX_ENCODED_CUBE_SIZE = 5 + 1
+            + 5 + BLOCKS_PER_CUBE * 5
+            + 5 + BLOCKS_PER_CUBE * Short.BYTES
+            + BLOCKS_PER_CUBE
+            + Coords.BIOMES_PER_CUBE
+            + HEIGHTMAP_SIZE;
+
+    /**
+     * Selects the cubes that carry the heightmap of their column. Only the first cube of each column is selected, and
+     * only if the given predicate says that the heightmap of the column needs to be sent.
+     *
+     * @return the heightmap data to send with each cube, null for cubes that don't carry the heightmap
+     */
+    static byte[][] getHeightMapsToSend(List<Cube> cubes, Predicate<Chunk> sendHeightMap) {
+        byte[][] heightMaps = new byte[cubes.size()][];
+        Set<Chunk> seenColumns = new HashSet<>();
+        for (int i = 0; i < cubes.size(); i++) {
+            Chunk column = cubes.get(i).getColumn();
+            if (seenColumns.add(column) && sendHeightMap.test(column)) {
+                heightMaps[i] = ((ServerHeightMap) cubes.get(i).getColumn().getOpacityIndex()).getDataForClient();
+                assert heightMaps[i].length == HEIGHTMAP_SIZE;
+            }
+        }
+        return heightMaps;
+    }
+
+    /**
+     * Encodes the parts of a cube that are the same for all players, so that they can be shared between packets.
+     * The heightmap of the column is not included, see {@link #encodeCubes}. Clients using
+     * {@link CubePacketProtocol#LEGACY} get {@link #encodeLegacyCubes} instead.
+     *
+     * @param protocol {@link CubePacketProtocol} version of the client
+     */
+    static byte[] encodeCube(Cube cube, int protocol) {
+        if (protocol < CubePacketProtocol.PALETTE) {
+            throw new IllegalArgumentException("Legacy cubes can't be encoded separately");
+        }
+        PacketBuffer out = new PacketBuffer(Unpooled.buffer(getEncodedSize(cube)));
+        ExtendedBlockStorage storage = cube.getStorage();
+        boolean hasSkyLight = storage != null && cube.getWorld().provider.hasSkyLight();
+        // uniform light arrays are sent as a single value
+        int blockLight = storage != null ? getUniformValue(storage.getBlockLight()) : -1;
+        int skyLight = hasSkyLight ? getUniformValue(storage.getSkyLight()) : -1;
+
+        // 1. emptiness
+        byte flags = 0;
+        if(cube.isEmpty())
+            flags |= 1;
+        if(storage != null)
+            flags |= 2;
+        if(cube.getBiomeArray() != null)
+            flags |= 4;
+        if(skyLight >= 0)
+            flags |= 8;
+        if(blockLight >= 0)
+            flags |= 32;
+        if(hasSkyLight)
+            flags |= 64;
+        out.writeByte(flags);
+
+        // 2. block IDs and metadata
+        if (!cube.isEmpty()) {
+            //noinspection ConstantConditions
+            writePalettedBlocks(out, storage.getData());
+        }
+
+        // 3. block light
+        if (storage != null) {
+            if (blockLight >= 0) {
+                out.writeByte(blockLight);
+            } else {
+                out.writeBytes(storage.getBlockLight().getData());
+            }
+        }
+
+        // 4. sky light
+        if (hasSkyLight) {
+            if (skyLight >= 0) {
+                out.writeByte(skyLight);
+            } else {
+                out.writeBytes(storage.getSkyLight().getData());
+            }
+        }
+
+        // 5. biomes
+        if (cube.getBiomeArray() != null) {
+            out.writeBytes(cube.getBiomeArray());
+        }
+
+        byte[] data = new byte[out.readableBytes()];
+        out.readBytes(data);
+        return data;
+    }
+
+    /**
+     * Writes the block states as a palette of the block state IDs used in this cube, followed by indexes into the
+     * palette using as few bits as possible. Cubes made of a single block state don't need the indexes.
+     */
+    private static void writePalettedBlocks(PacketBuffer out, BlockStateContainer data) {
+        IntList palette = new IntArrayList();
+        Int2IntMap paletteIndexes = new Int2IntOpenHashMap();
+        paletteIndexes.defaultReturnValue(-1);
+        int[] indexes = new int[BLOCKS_PER_CUBE];
+        for (int i = 0; i < BLOCKS_PER_CUBE; i++) {
+            int id = Block.BLOCK_STATE_IDS.get(data.get(i & 0xF, i >> 8, (i >> 4) & 0xF));
+            int index = paletteIndexes.get(id);
+            if (index < 0) {
+                index = palette.size();
+                palette.add(id);
+                paletteIndexes.put(id, index);
+            }
+            indexes[i] = index;
+        }
+
+        out.writeVarInt(palette.size());
+        for (int i = 0; i < palette.size(); i++) {
+            out.writeVarInt(palette.getInt(i));
+        }
+        int bits = getPaletteBits(palette.size());
+        if (bits == 0) {
+            return;
+        }
+        BitArray array = new BitArray(bits, BLOCKS_PER_CUBE);
+        for (int i = 0; i < BLOCKS_PER_CUBE; i++) {
+            array.setAt(i, indexes[i]);
+        }
+        out.writeLongArray(array.getBackingLongArray());
+    }
+
+    private static void readPalettedBlocks(PacketBuffer in, BlockStateContainer data) {
+        IBlockState[] palette = new IBlockState[in.readVarInt()];
+        for (int i = 0; i < palette.length; i++) {
+            IBlockState state = Block.BLOCK_STATE_IDS.getByValue(in.readVarInt());
+            palette[i] = state == null ? Blocks.AIR.getDefaultState() : state;
+        }
+        int bits = getPaletteBits(palette.length);
+        if (bits == 0) {
+            for (int i = 0; i < BLOCKS_PER_CUBE; i++) {
+                data.set(i & 0xF, i >> 8, (i >> 4) & 0xF, palette[0]);
+            }
+            return;
+        }
+        BitArray array = new BitArray(bits, BLOCKS_PER_CUBE);
+        in.readLongArray(array.getBackingLongArray());
+        for (int i = 0; i < BLOCKS_PER_CUBE; i++) {
+            data.set(i & 0xF, i >> 8, (i >> 4) & 0xF, palette[array.getAt(i)]);
+        }
+    }
+
+    static int getPaletteBits(int paletteSize) {
+        return paletteSize <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize - 1);
+    }
+
+    /**
+     * @return the value of all entries of the array if they are all the same, -1 otherwise
+     */
+    private static int getUniformValue(NibbleArray array) {
+        if (UniformSkyLight.isFullSkyLight(array)) {
+            return 15;
+        }
+        if (SharedCubeStorage.isZeroLight(array)) {
+            return 0;
+        }
+        byte[] data = array.getData();
+        byte first = data[0];
+        if ((first & 0xF) != ((first >> 4) & 0xF)) {
+            return -1;
+        }
+        for (byte value : data) {
+            if (value != first) {
+                return -1;
+            }
+        }
+        return first & 0xF;
+    }
+
+    private static void fillNibbleArray(NibbleArray array, int value) {
+        Arrays.fill(array.getData(), (byte) (value | value << 4));
+    }
+
+    /**
+     * Writes the cubes encoded by {@link #encodeCube}, each prefixed by its length so that the client can skip cubes
+     * it can't load. Cubes selected to carry the heightmap of their column get a flag and the heightmap appended.
+     *
+     * @param heightMaps heightmap data from {@link #getHeightMapsToSend}
+     */
+    static void encodeCubes(PacketBuffer out, List<byte[]> encodedCubes, byte[][] heightMaps) {
+        for (int i = 0; i < encodedCubes.size(); i++) {
+            byte[] encoded = encodedCubes.get(i);
+            byte[] heightMap = heightMaps[i];
+            out.writeVarInt(encoded.length + (heightMap != null ? HEIGHTMAP_SIZE : 0));
+            int start = out.writerIndex();
+            out.writeBytes(encoded);
+            if (heightMap != null) {
+                out.setByte(start, encoded[0] | 16);
+                out.writeBytes(heightMap);
+            }
+        }
+    }
+
+    /**
+     * Encodes cubes for clients that use {@link CubePacketProtocol#LEGACY}. This is the format of versions that don't
+     * know about protocol versions, so it must not change.
+     */
+    static void encodeLegacyCubes(PacketBuffer out, Collection<Cube> cubes) {
         // write first all the flags, then all the block data, then all the light data etc for better compression
 
         // 1. emptiness
@@ -89,11 +327,11 @@ class WorldEncoder {
         cubes.forEach(cube -> {
             if (!cube.isEmpty()) {
                 byte[] heightmaps = ((ServerHeightMap) cube.getColumn().getOpacityIndex()).getDataForClient();
-                assert heightmaps.length == Cube.SIZE * Cube.SIZE * Integer.BYTES;
+                assert heightmaps.length == HEIGHTMAP_SIZE;
                 out.writeBytes(heightmaps);
             }
         });
-        
+
         // 6. biomes
         cubes.forEach(cube -> {
             if (cube.getBiomeArray() != null)
@@ -111,78 +349,231 @@ class WorldEncoder {
         in.readBytes(column.getBiomeArray());
     }
 
-    static void decodeCube(PacketBuffer in, List<Cube> cubes) {
-        cubes.stream().filter(Objects::nonNull).forEach(Cube::setClientCube);
+    /**
+     * Decodes the cubes written by {@link #encodeCubes} into storages that are not attached to any cube yet. This
+     * doesn't access the world, so it can run on the network thread.
+     *
+     * @param cubePos positions of the cubes, in the order they were written
+     * @param cache the client cube cache to store received cubes in and to load referenced cubes from, if enabled
+     * @return the decoded cubes. Cubes that reference cached data that isn't in the cache are null.
+     */
+    static DecodedCube[] decodeCubes(PacketBuffer in, CubePos[] cubePos, int protocol, @Nullable ClientCubeCache cache) {
+        DecodedCube[] cubes = new DecodedCube[cubePos.length];
+        for (int i = 0; i < cubePos.length; i++) {
+            int length = in.readVarInt();
+            int start = in.readerIndex();
+            if ((in.getByte(start) & CACHED_FLAG) != 0) {
+                cubes[i] = decodeCachedCube(in, cubePos[i], cache);
+            } else {
+                cubes[i] = decodeCube(in, cubePos[i].getY());
+                if (cache != null) {
+                    byte[] data = getCacheableData(in, start, length);
+                    cache.store(cubePos[i], getContentHash(data, protocol), data);
+                }
+            }
+            if (in.readerIndex() - start != length) {
+                throw new DecoderException("Invalid cube data length " + (in.readerIndex() - start) + ", expected " + length);
+            }
+        }
+        return cubes;
+    }
 
+    /**
+     * Decodes the cubes written by {@link #encodeLegacyCubes}. The data doesn't say whether the world has sky light, so
+     * this has to be called on the main thread, once the client world is known.
+     */
+    static DecodedCube[] decodeLegacyCubes(PacketBuffer in, CubePos[] cubePos, boolean hasSkyLight) {
         // 1. emptiness
-        boolean[] isEmpty = new boolean[cubes.size()];
-        boolean[] hasStorage = new boolean[cubes.size()];
-        boolean[] hasCustomBiomeMap = new boolean[cubes.size()];
+        boolean[] isEmpty = new boolean[cubePos.length];
+        boolean[] hasStorage = new boolean[cubePos.length];
+        boolean[] hasCustomBiomeMap = new boolean[cubePos.length];
 
-        for (int i = 0; i < cubes.size(); i++) {
+        for (int i = 0; i < cubePos.length; i++) {
             byte flags = in.readByte();
-            isEmpty[i] = (flags & 1) != 0 || cubes.get(i) == null;
-            hasStorage[i] = (flags & 2) != 0 && cubes.get(i) != null;
-            hasCustomBiomeMap[i] = (flags & 4) != 0 && cubes.get(i) != null;
+            isEmpty[i] = (flags & 1) != 0;
+            hasStorage[i] = (flags & 2) != 0;
+            hasCustomBiomeMap[i] = (flags & 4) != 0;
         }
 
-        for (int i = 0; i < cubes.size(); i++) {
+        ExtendedBlockStorage[] storages = new ExtendedBlockStorage[cubePos.length];
+        for (int i = 0; i < cubePos.length; i++) {
             if (hasStorage[i]) {
-                Cube cube = cubes.get(i);
-                ExtendedBlockStorage storage = new ExtendedBlockStorage(Coords.cubeToMinBlock(cube.getY()),
-                        cube.getWorld().provider.hasSkyLight());
-                cube.setStorage(storage);
+                storages[i] = new ExtendedBlockStorage(Coords.cubeToMinBlock(cubePos[i].getY()), hasSkyLight);
             }
         }
 
         // 2. Block IDs and metadata
-        for (int i = 0; i < cubes.size(); i++) {
+        for (int i = 0; i < cubePos.length; i++) {
             if (!isEmpty[i]) {
                 //noinspection ConstantConditions
-                cubes.get(i).getStorage().getData().read(in);
+                storages[i].getData().read(in);
             }
         }
 
         // 3. block light
-        for (int i = 0; i < cubes.size(); i++) {
+        for (int i = 0; i < cubePos.length; i++) {
             if (hasStorage[i]) {
-                //noinspection ConstantConditions
-                byte[] data = cubes.get(i).getStorage().getBlockLight().getData();
-                in.readBytes(data);
+                in.readBytes(storages[i].getBlockLight().getData());
             }
         }
 
         // 4. sky light
-        for (int i = 0; i < cubes.size(); i++) {
-            if (hasStorage[i] && cubes.get(i).getWorld().provider.hasSkyLight()) {
-                //noinspection ConstantConditions
-                byte[] data = cubes.get(i).getStorage().getSkyLight().getData();
-                in.readBytes(data);
+        for (int i = 0; i < cubePos.length; i++) {
+            if (hasStorage[i] && hasSkyLight) {
+                in.readBytes(storages[i].getSkyLight().getData());
             }
         }
 
         // 5. heightmaps and after all that - update ref counts
-        for (int i = 0; i < cubes.size(); i++) {
+        byte[][] heightMaps = new byte[cubePos.length][];
+        for (int i = 0; i < cubePos.length; i++) {
             if (!isEmpty[i]) {
-                Cube cube = cubes.get(i);
-                byte[] heightmaps = new byte[Cube.SIZE * Cube.SIZE * Integer.BYTES];
-                in.readBytes(heightmaps);
-                ClientHeightMap coi = ((ClientHeightMap) cube.getColumn().getOpacityIndex());
-                coi.setData(heightmaps);
+                heightMaps[i] = new byte[HEIGHTMAP_SIZE];
+                in.readBytes(heightMaps[i]);
 
                 //noinspection ConstantConditions
-                cube.getStorage().recalculateRefCounts();
+                storages[i].recalculateRefCounts();
             }
         }
-        
+
         // 6. biomes
-        for (int i = 0; i < cubes.size(); i++) {
-            if (!hasCustomBiomeMap[i])
-                continue;
-            Cube cube = cubes.get(i);
-            byte[] blockBiomeArray = new byte[Coords.BIOMES_PER_CUBE];
-            in.readBytes(blockBiomeArray);
-            cube.setBiomeArray(blockBiomeArray);
+        DecodedCube[] cubes = new DecodedCube[cubePos.length];
+        for (int i = 0; i < cubePos.length; i++) {
+            byte[] biomes = null;
+            if (hasCustomBiomeMap[i]) {
+                biomes = new byte[Coords.BIOMES_PER_CUBE];
+                in.readBytes(biomes);
+            }
+            cubes[i] = new DecodedCube(storages[i], biomes, heightMaps[i]);
+        }
+        return cubes;
+    }
+
+    @Nullable
+    private static DecodedCube decodeCachedCube(PacketBuffer in, CubePos pos, @Nullable ClientCubeCache cache) {
+        byte flags = in.readByte();
+        long hash = in.readLong();
+        byte[] heightMap = null;
+        if ((flags & 16) != 0) {
+            heightMap = new byte[HEIGHTMAP_SIZE];
+            in.readBytes(heightMap);
+        }
+        byte[] data = cache == null ? null : cache.load(pos, hash);
+        if (data == null) {
+            return null;
+        }
+        DecodedCube decoded = decodeCube(new PacketBuffer(createByteBufForRead(data)), pos.getY());
+        return heightMap == null ? decoded : new DecodedCube(decoded.storage, decoded.biomes, heightMap);
+    }
+
+    /**
+     * @return the data of a cube as written by {@link #encodeCube}, without the heightmap of the column
+     */
+    private static byte[] getCacheableData(PacketBuffer in, int start, int length) {
+        byte flags = in.getByte(start);
+        byte[] data = new byte[(flags & 16) != 0 ? length - HEIGHTMAP_SIZE : length];
+        in.getBytes(start, data);
+        data[0] = (byte) (flags & ~16);
+        return data;
+    }
+
+    /**
+     * @return hash identifying cube data encoded with the given protocol version in the client cube cache
+     */
+    static long getContentHash(byte[] encoded, int protocol) {
+        return Hashing.murmur3_128().newHasher()
+                .putByte((byte) protocol)
+                .putBytes(encoded)
+                .hash().asLong();
+    }
+
+    /**
+     * Encodes a reference to cube data in the client cube cache, to use instead of the data from {@link #encodeCube}
+     */
+    static byte[] encodeCachedReference(long hash) {
+        byte[] data = new byte[1 + Long.BYTES];
+        PacketBuffer out = new PacketBuffer(createByteBufForWrite(data));
+        out.writeByte(CACHED_FLAG);
+        out.writeLong(hash);
+        return data;
+    }
+
+    private static DecodedCube decodeCube(PacketBuffer in, int cubeY) {
+        // 1. emptiness
+        byte flags = in.readByte();
+        boolean isEmpty = (flags & 1) != 0;
+        boolean hasStorage = (flags & 2) != 0;
+        boolean hasCustomBiomeMap = (flags & 4) != 0;
+        boolean hasUniformSkyLight = (flags & 8) != 0;
+        boolean hasHeightMap = (flags & 16) != 0;
+        boolean hasUniformBlockLight = (flags & 32) != 0;
+        boolean hasSkyLight = (flags & 64) != 0;
+
+        ExtendedBlockStorage storage = null;
+        if (hasStorage) {
+            storage = new ExtendedBlockStorage(Coords.cubeToMinBlock(cubeY), hasSkyLight);
+        }
+
+        // 2. Block IDs and metadata
+        if (!isEmpty) {
+            //noinspection ConstantConditions
+            readPalettedBlocks(in, storage.getData());
+        }
+
+        // 3. block light
+        if (hasStorage) {
+            if (hasUniformBlockLight) {
+                fillNibbleArray(storage.getBlockLight(), in.readUnsignedByte());
+            } else {
+                in.readBytes(storage.getBlockLight().getData());
+            }
+        }
+
+        // 4. sky light
+        if (hasStorage && hasSkyLight) {
+            int skyLight = hasUniformSkyLight ? in.readUnsignedByte() : -1;
+            if (skyLight == 15) {
+                storage.setSkyLight(UniformSkyLight.fullSkyLight());
+            } else if (skyLight >= 0) {
+                fillNibbleArray(storage.getSkyLight(), skyLight);
+            } else {
+                in.readBytes(storage.getSkyLight().getData());
+            }
+        }
+
+        // 5. biomes
+        byte[] biomes = null;
+        if (hasCustomBiomeMap) {
+            biomes = new byte[Coords.BIOMES_PER_CUBE];
+            in.readBytes(biomes);
+        }
+
+        // 6. heightmap and after all that - update ref counts
+        byte[] heightMap = null;
+        if (hasHeightMap) {
+            heightMap = new byte[HEIGHTMAP_SIZE];
+            in.readBytes(heightMap);
+        }
+        if (!isEmpty) {
+            //noinspection ConstantConditions
+            storage.recalculateRefCounts();
+        }
+        return new DecodedCube(storage, biomes, heightMap);
+    }
+
+    /**
+     * Attaches decoded data to a newly loaded client cube. Must be called on the main thread.
+     */
+    static void installCube(Cube cube, DecodedCube decoded) {
+        cube.setClientCube();
+        if (decoded.storage != null) {
+            cube.setStorage(decoded.storage);
+        }
+        if (decoded.biomes != null) {
+            cube.setBiomeArray(decoded.biomes);
+        }
+        if (decoded.heightMap != null) {
+            ((ClientHeightMap) cube.getColumn().getOpacityIndex()).setData(decoded.heightMap);
         }
     }
 
@@ -190,7 +581,34 @@ class WorldEncoder {
         return column.getBiomeArray().length;
     }
 
-    static int getEncodedSize(Collection<Cube> cubes) {
+    private static int getEncodedSize(Cube cube) {
+        // 1. isEmpty, hasStorage and hasBiomeArray flags packed in one byte
+        int size = 1;
+
+        // 2. block IDs and metadata
+        if (!cube.isEmpty()) {
+            //noinspection ConstantConditions
+            size += cube.getStorage().getData().getSerializedSize();
+        }
+        // 3. and 4. light
+        if (cube.getStorage() != null) {
+            size += cube.getStorage().getBlockLight().getData().length;
+            if (cube.getWorld().provider.hasSkyLight() && !hasFullSkyLight(cube)) {
+                size += cube.getStorage().getSkyLight().getData().length;
+            }
+        }
+        // 5. biomes
+        if (cube.getBiomeArray() != null) {
+            size += cube.getBiomeArray().length;
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of the data written by {@link #encodeLegacyCubes}. It assumes a heightmap for every cube, the
+     * legacy format has always been sent padded to this size.
+     */
+    static int getLegacyEncodedSize(Collection<Cube> cubes) {
         int size = 0;
 
         // 1. isEmpty, hasStorage and hasBiomeArray flags packed in one byte
@@ -211,7 +629,7 @@ class WorldEncoder {
         }
 
         // heightmaps
-        size += 256 * Integer.BYTES * cubes.size();
+        size += HEIGHTMAP_SIZE * cubes.size();
         // biomes
         for (Cube cube : cubes) {
             byte[] biomeArray = cube.getBiomeArray();
@@ -222,6 +640,87 @@ class WorldEncoder {
         return size;
     }
 
+    static int getEncodedSize(List<byte[]> encodedCubes, byte[][] heightMaps) {
+        int size = 0;
+        for (int i = 0; i < encodedCubes.size(); i++) {
+            int length = encodedCubes.get(i).length + (heightMaps[i] != null ? HEIGHTMAP_SIZE : 0);
+            size += PacketBuffer.getVarIntSize(length) + length;
+        }
+        return size;
+    }
+
+    /**
+     * @return the largest possible size of the data written by {@link #encodeCubes} for the given amount of cubes
+     */
+    static int getMaxEncodedSize(int cubeCount) {
+        return cubeCount * MAX_ENCODED_CUBE_SIZE;
+    }
+
+    private static boolean hasFullSkyLight(Cube cube) {
+        ExtendedBlockStorage storage = cube.getStorage();
+        return storage != null && cube.getWorld().provider.hasSkyLight() && UniformSkyLight.isFullSkyLight(storage.getSkyLight());
+    }
+
+    static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    static byte[] decompress(byte[] data, int size) throws DataFormatException {
+        return decompress(Unpooled.wrappedBuffer(data), size, size);
+    }
+
+    /**
+     * Decompresses the readable bytes of the buffer, without copying them first if the buffer is backed by an array
+     *
+     * @param size the expected size of the decompressed data, as received
+     * @param maxSize the largest size the decompressed data can legitimately have. Larger sizes are rejected before
+     * anything is allocated.
+     */
+    static byte[] decompress(ByteBuf data, int size, int maxSize) throws DataFormatException {
+        if (size < 0 || size > maxSize) {
+            throw new DataFormatException("Invalid decompressed size " + size + ", expected at most " + maxSize);
+        }
+        Inflater inflater = new Inflater();
+        if (data.hasArray()) {
+            inflater.setInput(data.array(), data.arrayOffset() + data.readerIndex(), data.readableBytes());
+        } else {
+            byte[] input = new byte[data.readableBytes()];
+            data.getBytes(data.readerIndex(), input);
+            inflater.setInput(input);
+        }
+        byte[] out = new byte[size];
+        try {
+            int read = 0;
+            while (!inflater.finished()) {
+                if (read < size) {
+                    read += inflater.inflate(out, read, size - read);
+                } else if (inflater.inflate(new byte[1]) != 0) {
+                    // only the end of the stream may follow once all the data is there
+                    throw new DataFormatException("More than " + size + " bytes of data");
+                }
+                if (!inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Unexpected end of data after " + read + " bytes, expected " + size);
+                }
+            }
+            if (read != size) {
+                throw new DataFormatException("Expected " + size + " bytes of data, but got " + read);
+            }
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
     static ByteBuf createByteBufForWrite(byte[] data) {
         ByteBuf bytebuf = Unpooled.wrappedBuffer(data);
         bytebuf.writerIndex(0);
@@ -233,4 +732,20 @@ class WorldEncoder {
         bytebuf.readerIndex(0);
         return bytebuf;
     }
+
+    /**
+     * Cube data decoded by {@link #decodeCubes}, not attached to any cube yet
+     */
+    static final class DecodedCube {
+
+        @Nullable private final ExtendedBlockStorage storage;
+        @Nullable private final byte[] biomes;
+        @Nullable private final byte[] heightMap;
+
+        private DecodedCube(@Nullable ExtendedBlockStorage storage, @Nullable byte[] biomes, @Nullable byte[] heightMap) {
+            this.storage = storage;
+            this.biomes = biomes;
+            this.heightMap = heightMap;
+        }
+    }
 }
@@ -29,6 +29,7 @@ import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.api.world.IColumn;
 import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
 import mcp.MethodsReturnNonnullByDefault;
 import net.minecraft.world.chunk.Chunk;
 
@@ -39,6 +40,16 @@ import javax.annotation.ParametersAreNonnullByDefault;
 
 /**
  * Chunk Garbage Collector, automatically unloads unused chunks.
+ * <p>
+ * Cubes become unload candidates when they are loaded and when they lose their last ticket, columns when they are
+ * loaded and when one of their cubes is unloaded. Candidates that are still unused {@link CubicChunksConfig#chunkGCInterval}
+ * ticks later are unloaded, a limited amount each tick, so that unloading is spread over time instead of happening all
+ * at once.
+ * <p>
+ * When {@link CubicChunksConfig#chunkGCRetentionHeapPercent} is set, unused cubes are kept loaded past that interval as
+ * long as heap usage stays below the budget. Candidates that are accessed are moved to the end of the queue, so once the
+ * budget is exceeded the least recently used cubes are unloaded first. They keep the time they became a candidate, so
+ * cubes that are accessed all the time are still unloaded eventually.
  */
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
@@ -46,7 +57,7 @@ public class ChunkGc {
 
     private final CubeProviderServer cubeCache;
 
-    private int tick = 0;
+    private boolean retaining;
 
     public ChunkGc(CubeProviderServer cubeCache) {
         this.cubeCache = cubeCache;
@@ -54,17 +65,88 @@ public class ChunkGc {
 
     public void tick() {
         cubeCache.world.profiler.startSection("chunkGc");
-        tick++;
-        if (tick > CubicChunksConfig.chunkGCInterval) {
-            tick = 0;
-            chunkGc();
-        }
+        unloadCandidates();
         if (CubicChunks.DEBUG_ENABLED) {
             verifyColumnConsistency();
         }
         cubeCache.world.profiler.endSection();
     }
 
+    private void unloadCandidates() {
+        long now = cubeCache.world.getTotalWorldTime();
+        long maxCandidateTime = now - CubicChunksConfig.chunkGCInterval;
+        long stopTime = System.nanoTime() + CubicChunksConfig.chunkGCTimeBudgetMicros * 1000L;
+        int maxUnloads = CubicChunksConfig.chunkGCMaxUnloadsPerTick;
+        retaining = isBelowRetentionBudget();
+
+        Object2LongLinkedOpenHashMap<Cube> cubes = cubeCache.getCubeUnloadCandidates();
+        int unloaded = 0;
+        while (!cubes.isEmpty() && unloaded < maxUnloads && System.nanoTime() < stopTime) {
+            Cube cube = cubes.firstKey();
+            if (cubes.getLong(cube) > maxCandidateTime) {
+                break;
+            }
+            boolean loaded = cubeCache.getLoadedCube(cube.getX(), cube.getY(), cube.getZ()) == cube;
+            if (retaining && loaded && cube.getTickets().canUnload()) {
+                break; // keep this and all more recently used cubes loaded while there is memory to spare
+            }
+            cubes.removeFirstLong();
+            if (!loaded) {
+                continue; // already unloaded
+            }
+            if (cubeCache.tryUnloadCube(cube)) {
+                cubeCache.removeUnloadedCube(cube);
+                unloaded++;
+            } else if (cube.getTickets().canUnload()) {
+                // kept loaded by forced chunks, check again later
+                cubeCache.queueUnloadCandidate(cube);
+            }
+        }
+
+        Object2LongLinkedOpenHashMap<Chunk> columns = cubeCache.getColumnUnloadCandidates();
+        while (!columns.isEmpty() && System.nanoTime() < stopTime) {
+            Chunk column = columns.firstKey();
+            if (columns.getLong(column) > maxCandidateTime) {
+                break;
+            }
+            columns.removeFirstLong();
+            if (cubeCache.getLoadedColumn(column.x, column.z) != column) {
+                continue; // already unloaded
+            }
+            if (cubeCache.tryUnloadColumn(column)) {
+                cubeCache.removeUnloadedColumn(column);
+            } else if (!((IColumn) column).hasLoadedCubes()) {
+                // kept loaded by forced chunks or cubes being loaded, check again later
+                cubeCache.queueUnloadCandidate(column);
+            }
+        }
+    }
+
+    /**
+     * @return the amount of cubes and columns waiting to be checked for unloading
+     */
+    public int getCandidateCount() {
+        return cubeCache.getCubeUnloadCandidates().size() + cubeCache.getColumnUnloadCandidates().size();
+    }
+
+    /**
+     * @return true if unused cubes were kept loaded during the last tick because heap usage was below
+     * {@link CubicChunksConfig#chunkGCRetentionHeapPercent}
+     */
+    public boolean isRetaining() {
+        return retaining;
+    }
+
+    private static boolean isBelowRetentionBudget() {
+        int percent = CubicChunksConfig.chunkGCRetentionHeapPercent;
+        if (percent <= 0) {
+            return false;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used < runtime.maxMemory() / 100 * Math.min(percent, 100);
+    }
+
     private void verifyColumnConsistency() {
         // currently do that every tick, until I'm sure it doesn't happen
         Iterator<Cube> cubeIt = cubeCache.cubesIterator();
@@ -26,17 +26,21 @@ package io.github.opencubicchunks.cubicchunks.core.server;
 
 import gnu.trove.list.TByteList;
 import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.api.util.XZAddressable;
 import io.github.opencubicchunks.cubicchunks.api.world.IColumn;
 import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.core.common.IPlayerChunkMapEntry;
+import io.github.opencubicchunks.cubicchunks.core.network.CubePacketProtocol;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketColumn;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketDispatcher;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketHeightMapUpdate;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketUnloadColumn;
 import io.github.opencubicchunks.cubicchunks.core.server.chunkio.async.forge.AsyncWorldIOExecutor;
 import io.github.opencubicchunks.cubicchunks.core.util.AddressTools;
+import io.github.opencubicchunks.cubicchunks.core.world.ServerHeightMap;
 import mcp.MethodsReturnNonnullByDefault;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.server.management.PlayerChunkMapEntry;
@@ -55,6 +59,16 @@ class ColumnWatcher extends PlayerChunkMapEntry implements XZAddressable {
 
     @Nonnull private PlayerCubeMap playerCubeMap;
     @Nonnull private final TByteList dirtyColumns = new TByteArrayList(64);
+    /**
+     * Heightmap version each player has last received with cubes, see {@link ServerHeightMap#getVersion()}. Later
+     * changes reach the players through {@link PacketHeightMapUpdate}, so the full heightmap is sent with cubes only
+     * if the version has changed since then.
+     */
+    @Nonnull private final TObjectIntMap<EntityPlayerMP> sentHeightMapVersions = new TObjectIntHashMap<>();
+    /**
+     * Amount of non-spectator players close enough for this column to be ticked, see {@link TickableWatchers}
+     */
+    private int tickingPlayers = 0;
 
     ColumnWatcher(PlayerCubeMap playerCubeMap, ChunkPos pos) {
         super(playerCubeMap, pos.x, pos.z);
@@ -65,6 +79,14 @@ class ColumnWatcher extends PlayerChunkMapEntry implements XZAddressable {
         return (IPlayerChunkMapEntry) this;
     }
 
+    int getTickingPlayers() {
+        return tickingPlayers;
+    }
+
+    void setTickingPlayers(int tickingPlayers) {
+        this.tickingPlayers = tickingPlayers;
+    }
+
     // CHECKED: 1.10.2-12.18.1.2092
     public void addPlayer(EntityPlayerMP player) {
         if (self().getPlayerList().contains(player)) {
@@ -111,6 +133,7 @@ class ColumnWatcher extends PlayerChunkMapEntry implements XZAddressable {
         }
 
         self().getPlayerList().remove(player);
+        this.sentHeightMapVersions.remove(player);
 
         MinecraftForge.EVENT_BUS.post(new ChunkWatchEvent.UnWatch(this.getChunk(), player));
 
@@ -182,6 +205,24 @@ class ColumnWatcher extends PlayerChunkMapEntry implements XZAddressable {
         return this.getPos().z;
     }
 
+    /**
+     * Records that the current heightmap of this column is sent to the given player. Only for players using
+     * {@link CubePacketProtocol#PALETTE} or later, older clients get the heightmap with every cube.
+     *
+     * @return true if the player doesn't have the current heightmap yet, and it has to be sent
+     */
+    boolean markHeightMapSent(EntityPlayerMP player) {
+        if (getChunk() == null) {
+            return true;
+        }
+        int version = ((ServerHeightMap) ((IColumn) getChunk()).getOpacityIndex()).getVersion();
+        if (this.sentHeightMapVersions.containsKey(player) && this.sentHeightMapVersions.get(player) == version) {
+            return false;
+        }
+        this.sentHeightMapVersions.put(player, version);
+        return true;
+    }
+
     void heightChanged(int localX, int localZ) {
         if (!isSentToPlayers()) {
             return;
@@ -41,6 +41,7 @@ import io.github.opencubicchunks.cubicchunks.core.world.ICubeProviderInternal;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
 import io.github.opencubicchunks.cubicchunks.api.world.IColumn;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
 import mcp.MethodsReturnNonnullByDefault;
 import net.minecraft.entity.EnumCreatureType;
 import net.minecraft.profiler.Profiler;
@@ -59,7 +60,6 @@ import java.io.UncheckedIOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
-import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
 import javax.annotation.Detainted;
@@ -86,8 +86,16 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
     // TODO: Use a better hash map!
     @Nonnull private XYZMap<Cube> cubeMap = new XYZMap<>(0.7f, 8000);
 
+    /**
+     * Cubes and columns that may be possible to unload, with the world time when they became candidates. In the order
+     * they became candidates. Processed by {@link ChunkGc}.
+     */
+    @Nonnull private final Object2LongLinkedOpenHashMap<Cube> cubeUnloadCandidates = new Object2LongLinkedOpenHashMap<>();
+    @Nonnull private final Object2LongLinkedOpenHashMap<Chunk> columnUnloadCandidates = new Object2LongLinkedOpenHashMap<>();
+
     @Nonnull private ICubeGenerator cubeGen;
     @Nonnull private Profiler profiler;
+    @Nullable private LightUpdateScheduler lightUpdateScheduler;
 
     public CubeProviderServer(WorldServer worldServer, ICubeGenerator cubeGen) {
         super(worldServer,
@@ -178,6 +186,7 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
     public boolean saveChunks(boolean alwaysTrue) {
         for (Cube cube : cubeMap) { // save cubes
             if (cube.needsSaving()) {
+                cube.compactStorage();
                 this.cubeIO.saveCube(cube);
             }
         }
@@ -195,14 +204,17 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
     public boolean tick() {
         // NOTE: the return value is completely ignored
         profiler.startSection("providerTick");
-        long i = System.currentTimeMillis();
         Random rand = this.world.rand;
+        LightUpdateScheduler lightScheduler = getLightUpdateScheduler();
         PlayerCubeMap playerCubeMap = ((PlayerCubeMap) this.world.getPlayerChunkMap());
         Iterator<Cube> watchersIterator = playerCubeMap.getCubeIterator();
-        BooleanSupplier tickFaster = () -> System.currentTimeMillis() - i > 40;
         while (watchersIterator.hasNext()) {
-            watchersIterator.next().tickCubeServer(tickFaster, rand);
+            Cube cube = watchersIterator.next();
+            cube.tickCubeServer(rand);
+            lightScheduler.offer(cube);
         }
+        profiler.endStartSection("lightUpdates");
+        lightScheduler.tick();
         profiler.endSection();
         return false;
     }
@@ -210,7 +222,16 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
     @Override
     public String makeString() {
         return "CubeProviderServer: " + this.loadedChunks.size() + " columns, "
-                + this.cubeMap.getSize() + " cubes";
+                + this.cubeMap.getSize() + " cubes, "
+                + (lightUpdateScheduler == null ? 0 : lightUpdateScheduler.getBacklogSize()) + " delayed light updates, "
+                + cubeUnloadCandidates.size() + " cubes and " + columnUnloadCandidates.size() + " columns to check for unloading";
+    }
+
+    public LightUpdateScheduler getLightUpdateScheduler() {
+        if (lightUpdateScheduler == null) {
+            lightUpdateScheduler = new LightUpdateScheduler((PlayerCubeMap) this.world.getPlayerChunkMap());
+        }
+        return lightUpdateScheduler;
     }
 
     @Override
@@ -274,6 +295,9 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
      */
     public void asyncGetCube(int cubeX, int cubeY, int cubeZ, Requirement req, Consumer<Cube> callback) {
         Cube cube = getLoadedCube(cubeX, cubeY, cubeZ);
+        if (cube != null) {
+            touchUnloadCandidate(cube);
+        }
         if (req == Requirement.GET_CACHED || (cube != null && req.compareTo(Requirement.GENERATE) <= 0)) {
             callback.accept(cube);
             return;
@@ -294,6 +318,9 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
     @Nullable @Override
     public Cube getCube(int cubeX, int cubeY, int cubeZ, Requirement req) {
         Cube cube = getLoadedCube(cubeX, cubeY, cubeZ);
+        if (cube != null) {
+            touchUnloadCandidate(cube);
+        }
         if (req == Requirement.GET_CACHED ||
                 (cube != null && req.compareTo(Requirement.GENERATE) <= 0)) {
             return cube;
@@ -335,6 +362,8 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
             if (!((IColumn) column).getLoadedCubes().contains(cube)) {
                 ((IColumn) column).addCube(cube);
                 cube.onLoad(); // init the Cube
+                queueUnloadCandidate(cube); // it will stay loaded if something adds a ticket in the meantime
+                ((ICubicWorldInternal) worldServer).getLightingManager().getRelighter().onCubeLoaded(cube);
             }
         }
     }
@@ -558,6 +587,7 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
             loadedChunks.put(ChunkPos.asLong(columnX, columnZ), (Chunk) column);
             column.setLastSaveTime(this.worldServer.getTotalWorldTime()); // the column was just loaded
             column.onLoad();
+            queueUnloadCandidate(column);
             return column;
         } else if (req == Requirement.LOAD) {
             return null;
@@ -569,6 +599,7 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
         loadedChunks.put(ChunkPos.asLong(columnX, columnZ), (Chunk) column);
         column.setLastSaveTime(this.worldServer.getTotalWorldTime()); // the column was just generated
         column.onLoad();
+        queueUnloadCandidate(column);
         return column;
     }
 
@@ -601,6 +632,53 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
         return cubeIO;
     }
 
+    /**
+     * Marks the cube as possibly unloadable, called when it's loaded and when it loses its last ticket. It's unloaded
+     * by {@link ChunkGc} after {@link CubicChunksConfig#chunkGCInterval} ticks, unless it has tickets by then.
+     */
+    public void queueUnloadCandidate(Cube cube) {
+        cubeUnloadCandidates.putAndMoveToLast(cube, worldServer.getTotalWorldTime());
+    }
+
+    /**
+     * Moves a cube that is waiting to be unloaded to the end of the queue, so that cubes which are still accessed are
+     * unloaded after the ones that aren't. Only needed when unused cubes are retained, see
+     * {@link CubicChunksConfig#chunkGCRetentionHeapPercent}.
+     * <p>
+     * The time it became a candidate is kept, so a cube that keeps being accessed still becomes old enough to unload.
+     */
+    private void touchUnloadCandidate(Cube cube) {
+        if (CubicChunksConfig.chunkGCRetentionHeapPercent > 0) {
+            cubeUnloadCandidates.getAndMoveToLast(cube);
+        }
+    }
+
+    void queueUnloadCandidate(Chunk column) {
+        columnUnloadCandidates.putAndMoveToLast(column, worldServer.getTotalWorldTime());
+    }
+
+    Object2LongLinkedOpenHashMap<Cube> getCubeUnloadCandidates() {
+        return cubeUnloadCandidates;
+    }
+
+    Object2LongLinkedOpenHashMap<Chunk> getColumnUnloadCandidates() {
+        return columnUnloadCandidates;
+    }
+
+    /**
+     * Removes a cube unloaded with {@link #tryUnloadCube(Cube)} from the loaded cubes
+     */
+    void removeUnloadedCube(Cube cube) {
+        cubeMap.remove(cube.getX(), cube.getY(), cube.getZ());
+    }
+
+    /**
+     * Removes a column unloaded with {@link #tryUnloadColumn(Chunk)} from the loaded columns
+     */
+    void removeUnloadedColumn(Chunk column) {
+        loadedChunks.remove(ChunkPos.asLong(column.x, column.z));
+    }
+
     Iterator<Cube> cubesIterator() {
         return cubeMap.iterator();
     }
@@ -628,6 +706,8 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
         if (cube.getColumn().removeCube(cube.getY()) == null) {
             throw new RuntimeException();
         }
+        cubeUnloadCandidates.removeLong(cube);
+        queueUnloadCandidate((Chunk) cube.getColumn()); // the column may be empty now
         return true;
     }
 
@@ -645,6 +725,7 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
             return false;
         }
         column.unloadQueued = true;
+        columnUnloadCandidates.removeLong(column);
 
         // unload the Column!
         column.onUnload();
@@ -662,4 +743,8 @@ public class CubeProviderServer extends ChunkProviderServer implements ICubeProv
     public int getLoadedCubeCount() {
         return cubeMap.getSize();
     }
+
+    int getCubeMapCapacity() {
+        return cubeMap.getCapacity();
+    }
 }
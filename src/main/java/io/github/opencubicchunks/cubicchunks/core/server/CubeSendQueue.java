@@ -0,0 +1,165 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.server;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import io.netty.channel.Channel;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.math.Vec3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Cubes waiting to be sent to a single player, sent within a per-tick byte budget.
+ * <p>
+ * The budget grows while the player's connection keeps up, faster for players with low ping, and is halved as soon as
+ * netty reports the channel as not writable, so that slow clients don't build up a large backlog of queued packets.
+ * Cubes in front of the player and close to it are sent first.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+class CubeSendQueue {
+
+    private static final int MIN_BUDGET = 16 * 1024;
+    private static final int INITIAL_BUDGET = 256 * 1024;
+    private static final int MAX_BUDGET = 8 * 1024 * 1024;
+    private static final int BUDGET_INCREMENT = 32 * 1024;
+
+    @Nonnull private final EntityPlayerMP player;
+    @Nonnull private final Set<Cube> queued = new LinkedHashSet<>();
+
+    @Nonnull private Cube[] cubes = new Cube[64];
+    @Nonnull private double[] priorities = new double[64];
+
+    private int budget = INITIAL_BUDGET;
+
+    CubeSendQueue(EntityPlayerMP player) {
+        this.player = player;
+    }
+
+    void add(Cube cube) {
+        queued.add(cube);
+    }
+
+    void remove(Cube cube) {
+        queued.remove(cube);
+    }
+
+    boolean contains(Cube cube) {
+        return queued.contains(cube);
+    }
+
+    boolean isEmpty() {
+        return queued.isEmpty();
+    }
+
+    /**
+     * Removes and returns the cubes to send this tick, most important first. Nothing is returned while the player's
+     * channel isn't writable, otherwise at least one cube is returned so that sending can't stall completely.
+     *
+     * @param encodedSize function returning the amount of bytes a cube will take in the packet
+     */
+    List<Cube> poll(ToIntFunction<Cube> encodedSize) {
+        if (queued.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        if (!isWritable()) {
+            budget = Math.max(MIN_BUDGET, budget / 2);
+            return new ArrayList<>(0);
+        }
+        int size = queued.size();
+        if (cubes.length < size) {
+            cubes = new Cube[Math.max(size, cubes.length * 2)];
+            priorities = new double[cubes.length];
+        }
+        Vec3d look = player.getLookVec();
+        int i = 0;
+        for (Cube cube : queued) {
+            cubes[i] = cube;
+            priorities[i] = getPriority(cube.getCoords(), look);
+            i++;
+        }
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, size, (a, b) -> Double.compare(priorities[a], priorities[b]), this::swap);
+
+        List<Cube> toSend = new ArrayList<>();
+        int remaining = budget;
+        for (i = 0; i < size && (remaining > 0 || toSend.isEmpty()); i++) {
+            remaining -= encodedSize.applyAsInt(cubes[i]);
+            toSend.add(cubes[i]);
+            queued.remove(cubes[i]);
+        }
+        Arrays.fill(cubes, 0, size, null);
+
+        if (!queued.isEmpty()) {
+            // the connection kept up so far and there is more to send, allow more data next tick
+            int increment = BUDGET_INCREMENT * 100 / Math.max(100, player.ping);
+            budget = Math.min(MAX_BUDGET, budget + increment);
+        }
+        return toSend;
+    }
+
+    private boolean isWritable() {
+        // fake players have no real connection
+        if (player.connection == null) {
+            return true;
+        }
+        Channel channel = player.connection.getNetworkManager().channel();
+        return channel == null || channel.isWritable();
+    }
+
+    /**
+     * Squared distance to the player, up to twice as large for cubes behind the player.
+     */
+    private double getPriority(CubePos pos, Vec3d look) {
+        double dx = pos.getXCenter() - player.posX;
+        double dy = pos.getYCenter() - player.posY;
+        double dz = pos.getZCenter() - player.posZ;
+        double distSq = dx * dx + dy * dy + dz * dz;
+        if (distSq < 1) {
+            return distSq;
+        }
+        double cos = (dx * look.x + dy * look.y + dz * look.z) / Math.sqrt(distSq);
+        return distSq * (1.5 - cos * 0.5);
+    }
+
+    private void swap(int a, int b) {
+        Cube cube = cubes[a];
+        cubes[a] = cubes[b];
+        cubes[b] = cube;
+        double priority = priorities[a];
+        priorities[a] = priorities[b];
+        priorities[b] = priority;
+    }
+}
@@ -24,7 +24,6 @@
  */
 package io.github.opencubicchunks.cubicchunks.core.server;
 
-import com.google.common.base.Predicate;
 import gnu.trove.list.TShortList;
 import gnu.trove.list.array.TShortArrayList;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
@@ -35,6 +34,7 @@ import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
 import io.github.opencubicchunks.cubicchunks.core.entity.ICubicEntityTracker;
 import io.github.opencubicchunks.cubicchunks.core.lighting.LightingManager;
+import io.github.opencubicchunks.cubicchunks.core.network.CubePacketProtocol;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketCubeBlockChange;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketDispatcher;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketUnloadCube;
@@ -55,7 +55,11 @@ import net.minecraftforge.common.ForgeModContainer;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -70,12 +74,20 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
     private PlayerCubeMap playerCubeMap;
     @Nullable private Cube cube;
     private final ObjectArrayList<EntityPlayerMP> players = ObjectArrayList.wrap(new EntityPlayerMP[0]);
+    /**
+     * Indices of the players in {@link #players}, see {@link PlayerCubeMap#getPlayerIndex(EntityPlayerMP)}
+     */
+    private final BitSet playerIndices = new BitSet();
     private final TShortList dirtyBlocks = new TShortArrayList(64);
     private final CubePos cubePos;
     private long previousWorldTime = 0;
     private boolean sentToPlayers = false;
     private boolean loading = true;
     private boolean invalid = false;
+    /**
+     * Amount of non-spectator players close enough for this cube to be ticked, see {@link TickableWatchers}
+     */
+    private int tickingPlayers = 0;
 
     // CHECKED: 1.10.2-12.18.1.2092
     CubeWatcher(PlayerCubeMap playerCubeMap, CubePos cubePos) {
@@ -100,7 +112,8 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
 
     // CHECKED: 1.10.2-12.18.1.2092
     void addPlayer(EntityPlayerMP player) {
-        if (this.players.contains(player)) {
+        int index = playerCubeMap.getPlayerIndex(player);
+        if (containsPlayer(player, index)) {
             CubicChunks.LOGGER.debug("Failed to add player. {} already is in cube at {}", player, cubePos);
             return;
         }
@@ -108,6 +121,9 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
             this.previousWorldTime = this.getWorldTime();
         }
         this.players.add(player);
+        if (index >= 0) {
+            this.playerIndices.set(index);
+        }
 
         if (this.sentToPlayers) {
             this.sendToPlayer(player);
@@ -118,9 +134,13 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
 
     // CHECKED: 1.10.2-12.18.1.2092
     void removePlayer(EntityPlayerMP player) {
-        if (!this.players.contains(player)) {
+        int index = playerCubeMap.getPlayerIndex(player);
+        if (!containsPlayer(player, index)) {
             return;
         }
+        if (index >= 0) {
+            this.playerIndices.clear(index);
+        }
         // If we haven't loaded yet don't load the chunk just so we can clean it up
         if (this.cube == null) {
             this.players.remove(player);
@@ -138,6 +158,8 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
         }
 
         if (this.sentToPlayers) {
+            // the cube may still be waiting in the player's send queue
+            playerCubeMap.cancelSendCubeToPlayer(cube, player);
             PacketDispatcher.sendTo(new PacketUnloadCube(this.cubePos), player);
         }
 
@@ -241,6 +263,7 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
 
     // CHECKED: 1.10.2-12.18.1.2092
     void blockChanged(int localX, int localY, int localZ) {
+        playerCubeMap.getEncodedCubeCache().invalidate(cubePos.getX(), cubePos.getY(), cubePos.getZ());
         //if we are adding the first one, add it to update list
         if (this.dirtyBlocks.isEmpty()) {
             playerCubeMap.addToUpdateEntry(this);
@@ -265,65 +288,83 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
         }
 
         World world = this.cube.getWorld();
-
-        if (this.dirtyBlocks.size() >= ForgeModContainer.clumpingThreshold) {
-            // send whole cube
-            this.players.forEach(entry -> playerCubeMap.scheduleSendCubeToPlayer(cube, entry));
-        } else {
+        boolean clump = this.dirtyBlocks.size() >= ForgeModContainer.clumpingThreshold;
+
+        // index 1 is for clients that support the bitmask encoding
+        PacketCubeBlockChange[] packets = new PacketCubeBlockChange[2];
+        List<Packet<?>> blockEntityPackets = null;
+        for (EntityPlayerMP player : this.players) {
+            int protocol = CubePacketProtocol.getVersion(player);
+            boolean allowMask = protocol >= CubePacketProtocol.BLOCK_CHANGE_MASK;
+            if (clump && !allowMask) {
+                // send whole cube
+                playerCubeMap.scheduleSendCubeToPlayer(cube, player);
+                continue;
+            }
+            int index = allowMask ? 1 : 0;
+            if (packets[index] == null) {
+                packets[index] = new PacketCubeBlockChange(this.cube, this.dirtyBlocks, allowMask);
+            }
+            PacketCubeBlockChange packet = packets[index];
+            // above the clumping threshold, send the changes only if that's smaller than sending the whole cube
+            if (clump && packet.getEncodedSize() >= playerCubeMap.getEncodedCubeCache().getEncodedSize(cube, protocol)) {
+                playerCubeMap.scheduleSendCubeToPlayer(cube, player);
+                continue;
+            }
             // send all the dirty blocks
-            sendPacketToAllPlayers(new PacketCubeBlockChange(this.cube, this.dirtyBlocks));
+            PacketDispatcher.sendTo(packet, player);
             // send the block entites on those blocks too
-            this.dirtyBlocks.forEach(localAddress -> {
-                BlockPos pos = cube.localAddressToBlockPos(localAddress);
-
-                IBlockState state = this.cube.getBlockState(pos);
-                if (state.getBlock().hasTileEntity(state)) {
-                    sendBlockEntityToAllPlayers(world.getTileEntity(pos));
-                }
-                return true;
-            });
+            if (blockEntityPackets == null) {
+                blockEntityPackets = getBlockEntityPackets(world);
+            }
+            for (Packet<?> blockEntityPacket : blockEntityPackets) {
+                player.connection.sendPacket(blockEntityPacket);
+            }
         }
         this.dirtyBlocks.clear();
     }
 
-    private void sendBlockEntityToAllPlayers(@Nullable TileEntity blockEntity) {
-        if (blockEntity == null) {
-            return;
-        }
-        Packet packet = blockEntity.getUpdatePacket();
-        if (packet == null) {
-            return;
-        }
-        sendPacketToAllPlayers(packet);
+    private List<Packet<?>> getBlockEntityPackets(World world) {
+        List<Packet<?>> packets = new ArrayList<>();
+        this.dirtyBlocks.forEach(localAddress -> {
+            BlockPos pos = cube.localAddressToBlockPos(localAddress);
+
+            IBlockState state = this.cube.getBlockState(pos);
+            if (state.getBlock().hasTileEntity(state)) {
+                TileEntity blockEntity = world.getTileEntity(pos);
+                Packet<?> packet = blockEntity == null ? null : blockEntity.getUpdatePacket();
+                if (packet != null) {
+                    packets.add(packet);
+                }
+            }
+            return true;
+        });
+        return packets;
     }
 
     boolean containsPlayer(EntityPlayerMP player) {
-        return this.players.contains(player);
+        return containsPlayer(player, playerCubeMap.getPlayerIndex(player));
     }
 
-    boolean hasPlayerMatching(Predicate<EntityPlayerMP> predicate) {
-        for (EntityPlayerMP e : players.elements()) {
-            if (e == null) {
-                break;
-            }
-            if (predicate.apply(e)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean containsPlayer(EntityPlayerMP player, int index) {
+        // players not known to PlayerCubeMap don't have an index
+        return index >= 0 ? this.playerIndices.get(index) : this.players.contains(player);
     }
-    
-    boolean hasPlayerMatchingInRange(Predicate<EntityPlayerMP> predicate, int range) {
-        double d = range*range;
-        for (EntityPlayerMP e : players.elements()) {
-            if (e == null) {
-                break;
-            }
-            if (predicate.apply(e) && getDistanceSq(cubePos, e) <= d) {
-                return true;
-            }
-        }
-        return false;
+
+    /**
+     * @param playerIndices indices of players, see {@link PlayerCubeMap#getPlayerIndex(EntityPlayerMP)}
+     * @return true if any of the given players is watching this cube
+     */
+    boolean hasAnyPlayer(BitSet playerIndices) {
+        return this.playerIndices.intersects(playerIndices);
+    }
+
+    int getTickingPlayers() {
+        return tickingPlayers;
+    }
+
+    void setTickingPlayers(int tickingPlayers) {
+        this.tickingPlayers = tickingPlayers;
     }
 
     private double getDistanceSq(CubePos cubePos, Entity entity) {
@@ -361,15 +402,24 @@ public class CubeWatcher implements ITicket, ICubeWatcher {
         return playerCubeMap.getWorldServer().getWorldTime();
     }
 
-    private void sendPacketToAllPlayers(Packet<?> packet) {
+    @Override public void sendPacketToAllPlayers(IMessage packet) {
         for (EntityPlayerMP entry : this.players) {
-            entry.connection.sendPacket(packet);
+            PacketDispatcher.sendTo(packet, entry);
         }
     }
 
-    @Override public void sendPacketToAllPlayers(IMessage packet) {
+    /**
+     * Sends a packet whose encoding depends on the {@link CubePacketProtocol} version of the player. The packet is
+     * created once for each version in use.
+     */
+    public void sendPacketToAllPlayers(IntFunction<IMessage> packetForProtocol) {
+        IMessage[] packets = new IMessage[CubePacketProtocol.LATEST + 1];
         for (EntityPlayerMP entry : this.players) {
-            PacketDispatcher.sendTo(packet, entry);
+            int protocol = CubePacketProtocol.getVersion(entry);
+            if (packets[protocol] == null) {
+                packets[protocol] = packetForProtocol.apply(protocol);
+            }
+            PacketDispatcher.sendTo(packets[protocol], entry);
         }
     }
 
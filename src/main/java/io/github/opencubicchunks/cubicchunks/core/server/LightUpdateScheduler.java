@@ -0,0 +1,121 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.server;
+
+import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import mcp.MethodsReturnNonnullByDefault;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Runs queued cube lighting updates within a per-tick time budget, starting with the cubes closest to players.
+ * <p>
+ * Cubes are offered every tick by {@link CubeProviderServer#tick()}. Updates that don't fit into the budget stay queued
+ * in their cube and will be offered again in the next tick.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public class LightUpdateScheduler {
+
+    @Nonnull private final PlayerCubeMap playerCubeMap;
+
+    @Nonnull private Cube[] cubes = new Cube[64];
+    @Nonnull private double[] distances = new double[64];
+    private int size;
+
+    private int backlog;
+
+    LightUpdateScheduler(PlayerCubeMap playerCubeMap) {
+        this.playerCubeMap = playerCubeMap;
+    }
+
+    /**
+     * Queues lighting updates of the given cube for this tick, if it has any. Like the rest of cube ticking, lighting
+     * updates wait until the cube is fully populated.
+     */
+    void offer(Cube cube) {
+        if (!cube.isFullyPopulated() || !cube.hasLightUpdates()) {
+            return;
+        }
+        if (size == cubes.length) {
+            cubes = Arrays.copyOf(cubes, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+        }
+        CubeWatcher watcher = playerCubeMap.getCubeWatcher(cube.getCoords());
+        cubes[size] = cube;
+        // forced cubes may not be watched by anyone, update them last
+        distances[size] = watcher == null ? Double.MAX_VALUE : watcher.getClosestPlayerDistance();
+        size++;
+    }
+
+    /**
+     * Runs the queued updates in order of distance to the nearest player until the time budget runs out. At least one
+     * cube is always updated, so that lighting can't stall completely.
+     */
+    void tick() {
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, size, (a, b) -> Double.compare(distances[a], distances[b]), this::swap);
+
+        long deadline = System.nanoTime() + CubicChunksConfig.lightUpdateTimeBudgetMicros * 1000L;
+        int i = 0;
+        while (i < size) {
+            cubes[i].tickLightUpdates();
+            i++;
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        backlog = size - i;
+
+        Arrays.fill(cubes, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @return the amount of cubes whose lighting updates didn't fit into the time budget in the last tick
+     */
+    public int getBacklogSize() {
+        return backlog;
+    }
+
+    /**
+     * @return the amount of cubes that can be queued without growing the queue
+     */
+    public int getCapacity() {
+        return cubes.length;
+    }
+
+    private void swap(int a, int b) {
+        Cube cube = cubes[a];
+        cubes[a] = cubes[b];
+        cubes[b] = cube;
+        double dist = distances[a];
+        distances[a] = distances[b];
+        distances[b] = dist;
+    }
+}
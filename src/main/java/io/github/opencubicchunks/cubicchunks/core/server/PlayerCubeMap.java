@@ -26,14 +26,15 @@ package io.github.opencubicchunks.cubicchunks.core.server;
 
 import static io.github.opencubicchunks.cubicchunks.api.util.Coords.blockToCube;
 import static io.github.opencubicchunks.cubicchunks.api.util.Coords.blockToLocal;
+import static io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector.unpackOffsetX;
+import static io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector.unpackOffsetY;
+import static io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector.unpackOffsetZ;
 import static net.minecraft.util.math.MathHelper.clamp;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+import com.google.common.collect.Lists;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
@@ -47,12 +48,19 @@ import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
 import io.github.opencubicchunks.cubicchunks.core.entity.ICubicEntityTracker;
 import io.github.opencubicchunks.cubicchunks.core.lighting.LightingManager;
+import io.github.opencubicchunks.cubicchunks.core.network.ClientCubeHashes;
+import io.github.opencubicchunks.cubicchunks.core.network.CubePacketProtocol;
+import io.github.opencubicchunks.cubicchunks.core.network.EncodedCubeCache;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketCubes;
 import io.github.opencubicchunks.cubicchunks.core.network.PacketDispatcher;
-import io.github.opencubicchunks.cubicchunks.core.util.WatchersSortingList;
+import io.github.opencubicchunks.cubicchunks.core.server.chunkio.async.forge.AsyncWorldIOExecutor;
+import io.github.opencubicchunks.cubicchunks.core.util.DistanceBucketQueue;
 import io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector;
 import io.github.opencubicchunks.cubicchunks.core.visibility.CuboidalCubeSelector;
+import io.github.opencubicchunks.cubicchunks.core.visibility.EllipsoidalCubeSelector;
+import io.github.opencubicchunks.cubicchunks.core.visibility.SphericalCubeSelector;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
@@ -70,15 +78,19 @@ import net.minecraftforge.common.ForgeChunkManager.Ticket;
 import net.minecraftforge.common.MinecraftForge;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -93,39 +105,59 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @MethodsReturnNonnullByDefault
 public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHeightChangeListener {
 
-    private static final Predicate<EntityPlayerMP> NOT_SPECTATOR = player -> player != null && !player.isSpectator();
     private static final Predicate<EntityPlayerMP> CAN_GENERATE_CHUNKS = player -> player != null &&
             (!player.isSpectator() || player.getServerWorld().getGameRules().getBoolean("spectatorsGenerateChunks"));
 
     /**
-     * Comparator that specifies order in which cubes will be generated and sent to clients
+     * Highest priority of watchers in the queues, in cubes from the nearest player. Watchers further away than that
+     * (or without players) are processed last, in no particular order.
      */
-    private static final Comparator<CubeWatcher> CUBE_ORDER = (watcher1, watcher2) ->
-            ComparisonChain.start().compare(
-                    watcher1.getClosestPlayerDistance(),
-                    watcher2.getClosestPlayerDistance()
-            ).result();
+    private static final int MAX_WATCHER_PRIORITY = 1024;
 
     /**
-     * Comparator that specifies order in which columns will be generated and sent to clients
+     * Priority that specifies order in which cubes will be generated and sent to clients
      */
-    private static final Comparator<ColumnWatcher> COLUMN_ORDER = (watcher1, watcher2) ->
-            ComparisonChain.start().compare(
-                    watcher1.getClosestPlayerDistance(),
-                    watcher2.getClosestPlayerDistance()
-            ).result();
+    private static final ToIntFunction<CubeWatcher> CUBE_PRIORITY = watcher -> getDistancePriority(watcher.getClosestPlayerDistance());
+
+    /**
+     * Priority that specifies order in which columns will be generated and sent to clients
+     */
+    private static final ToIntFunction<ColumnWatcher> COLUMN_PRIORITY = watcher -> getDistancePriority(watcher.getClosestPlayerDistance());
 
     /**
      * Cube selector is used to find which cube positions need to be loaded/unloaded
-     * By default use CuboidalCubeSelector.
+     * Selected by {@link CubicChunksConfig#viewVolumeShape}, by default use CuboidalCubeSelector.
+     */
+    private final CubeSelector cubeSelector = createCubeSelector(CubicChunksConfig.viewVolumeShape);
+
+    /**
+     * Buffers reused by {@link #updatePlayer(PlayerWrapper, CubePos, CubePos)} for positions that entered or left the
+     * view, packed with {@link CubeSelector#packOffset(int, int, int)}.
      */
-    private final CubeSelector cubeSelector = new CuboidalCubeSelector();
+    private final LongArrayList cubesToRemoveBuffer = new LongArrayList();
+    private final LongArrayList cubesToLoadBuffer = new LongArrayList();
+    private final LongArrayList columnsToRemoveBuffer = new LongArrayList();
+    private final LongArrayList columnsToLoadBuffer = new LongArrayList();
+    private final LongConsumer cubesToRemoveConsumer = cubesToRemoveBuffer::add;
+    private final LongConsumer cubesToLoadConsumer = cubesToLoadBuffer::add;
+    private final LongConsumer columnsToRemoveConsumer = columnsToRemoveBuffer::add;
+    private final LongConsumer columnsToLoadConsumer = columnsToLoadBuffer::add;
 
     /**
      * Mapping if entityId to PlayerCubeMap.PlayerWrapper objects.
      */
     private final TIntObjectMap<PlayerWrapper> players = new TIntObjectHashMap<>();
 
+    /**
+     * Indices assigned to players in {@link #players}, freed indices are reused so that they stay small
+     */
+    private final BitSet usedPlayerIndices = new BitSet();
+
+    /**
+     * Indices of players that can generate chunks, updated each tick before generating
+     */
+    private final BitSet generatingPlayers = new BitSet();
+
     /**
      * Mapping of Cube positions to CubeWatchers (Cube equivalent of PlayerManager.PlayerInstance).
      * Contains cube positions of all cubes loaded by players.
@@ -157,7 +189,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
      * Note that this is not the same as cubesToGenerate list.
      * Cube can be loaded while not being fully generated yet (not in the last GeneratorStageRegistry stage).
      */
-    private final WatchersSortingList<CubeWatcher> cubesToSendToClients = new WatchersSortingList<CubeWatcher>(CUBE_ORDER);
+    private final DistanceBucketQueue<CubeWatcher> cubesToSendToClients = new DistanceBucketQueue<>(CUBE_PRIORITY, MAX_WATCHER_PRIORITY);
 
     /**
      * Contains all CubeWatchers that still need to be loaded/generated.
@@ -165,7 +197,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
      * Technically it can generate it, using the world's IGeneratorPipeline,
      * but spectator players can't generate chunks if spectatorsGenerateChunks gamerule is set.
      */
-    private final WatchersSortingList<CubeWatcher> cubesToGenerate = new WatchersSortingList<CubeWatcher>(CUBE_ORDER);
+    private final DistanceBucketQueue<CubeWatcher> cubesToGenerate = new DistanceBucketQueue<>(CUBE_PRIORITY, MAX_WATCHER_PRIORITY);
 
     /**
      * Contains all ColumnWatchers that need to be sent to clients,
@@ -174,17 +206,25 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
      * Note that this is not the same as columnsToGenerate list.
      * Columns can be loaded while not being fully generated yet
      */
-    private final WatchersSortingList<ColumnWatcher> columnsToSendToClients = new WatchersSortingList<ColumnWatcher>(COLUMN_ORDER);
+    private final DistanceBucketQueue<ColumnWatcher> columnsToSendToClients = new DistanceBucketQueue<>(COLUMN_PRIORITY, MAX_WATCHER_PRIORITY);
 
     /**
      * Contains all ColumnWatchers that still need to be loaded/generated.
      * ColumnWatcher constructor attempts to load column from disk, but it won't generate it.
      */
-    private final WatchersSortingList<ColumnWatcher> columnsToGenerate = new WatchersSortingList<ColumnWatcher>(COLUMN_ORDER);
+    private final DistanceBucketQueue<ColumnWatcher> columnsToGenerate = new DistanceBucketQueue<>(COLUMN_PRIORITY, MAX_WATCHER_PRIORITY);
 
     private int horizontalViewDistance;
     private int verticalViewDistance;
 
+    /**
+     * View distances set by the server or the client, before being lowered by {@link #viewDistanceController}
+     */
+    private int requestedHorizontalViewDistance;
+    private int requestedVerticalViewDistance;
+
+    private final ViewDistanceController viewDistanceController = new ViewDistanceController();
+
     /**
      * This is used only to force update of all CubeWatchers every 8000 ticks
      */
@@ -195,7 +235,15 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
 
     private final CubeProviderServer cubeCache;
 
-    private final Multimap<EntityPlayerMP, Cube> cubesToSend = Multimaps.newSetMultimap(new HashMap<>(), HashSet::new);
+    /**
+     * Cubes waiting to be sent to each player, sent within a per-player byte budget
+     */
+    private final Map<EntityPlayerMP, CubeSendQueue> cubesToSend = new HashMap<>();
+
+    /**
+     * Cubes encoded for sending this tick, shared by all players that receive the same cube
+     */
+    private final EncodedCubeCache encodedCubeCache = new EncodedCubeCache();
 
     // these player adds will be processed on the next tick
     // this exists as temporary workaround to player respawn code calling addPlayer() before spawning
@@ -208,6 +256,13 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
 
     private final TickableChunkContainer tickableChunksCubesToReturn = new TickableChunkContainer();
 
+    /**
+     * Watchers close enough to non-spectator players to be ticked, updated when players move into another cube
+     */
+    private final TickableWatchers tickableWatchers = new TickableWatchers(cubeWatchers, columnWatchers);
+
+    private final ObjectArrayList<Cube> tickableCubesBuffer = new ObjectArrayList<>();
+
     // see comment in updateMovingPlayer() for explnation why it's in this class
     private final ChunkGc chunkGc;
 
@@ -246,6 +301,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
     public TickableChunkContainer getTickableChunks() {
         TickableChunkContainer tickableChunksCubes = this.tickableChunksCubesToReturn;
         tickableChunksCubes.clear();
+        updateTickingPlayers();
         addTickableColumns(tickableChunksCubes);
         addTickableCubes(tickableChunksCubes);
         addForcedColumns(tickableChunksCubes);
@@ -264,9 +320,9 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
     }
 
     private void addTickableCubes(TickableChunkContainer tickableChunksCubes) {
-        for (CubeWatcher watcher : cubeWatchers) {
+        for (CubeWatcher watcher : tickableWatchers.getCubes()) {
             ICube cube = watcher.getCube();
-            if (cube == null || !watcher.hasPlayerMatchingInRange(NOT_SPECTATOR, 128)) {
+            if (cube == null) {
                 continue;
             }
             tickableChunksCubes.addCube(cube);
@@ -274,15 +330,79 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
     }
 
     private void addTickableColumns(TickableChunkContainer tickableChunksCubes) {
-        for (ColumnWatcher watcher : columnWatchers) {
+        for (ColumnWatcher watcher : tickableWatchers.getColumns()) {
             Chunk chunk = watcher.getChunk();
-            if (chunk == null || !watcher.hasPlayerMatchingInRange(128.0D, NOT_SPECTATOR)) {
+            if (chunk == null) {
                 continue;
             }
             tickableChunksCubes.addColumn(chunk);
         }
     }
 
+    /**
+     * Starts, stops or moves the player's contribution to {@link #tickableWatchers} if the player has moved into
+     * another cube or has become or stopped being a spectator since the last call.
+     */
+    private void updateTickingPlayer(PlayerWrapper playerWrapper) {
+        boolean ticking = !playerWrapper.playerEntity.isSpectator();
+        int cubeX = playerWrapper.getManagedCubePosX();
+        int cubeY = playerWrapper.getManagedCubePosY();
+        int cubeZ = playerWrapper.getManagedCubePosZ();
+        if (ticking == playerWrapper.ticking && (!ticking
+                || cubeX == playerWrapper.tickingCubeX && cubeY == playerWrapper.tickingCubeY && cubeZ == playerWrapper.tickingCubeZ)) {
+            return;
+        }
+        if (ticking && playerWrapper.ticking) {
+            tickableWatchers.movePlayer(playerWrapper.tickingCubeX, playerWrapper.tickingCubeY, playerWrapper.tickingCubeZ,
+                    cubeX, cubeY, cubeZ);
+        } else if (ticking) {
+            tickableWatchers.addPlayer(cubeX, cubeY, cubeZ);
+        } else {
+            tickableWatchers.removePlayer(playerWrapper.tickingCubeX, playerWrapper.tickingCubeY, playerWrapper.tickingCubeZ);
+        }
+        playerWrapper.ticking = ticking;
+        playerWrapper.tickingCubeX = cubeX;
+        playerWrapper.tickingCubeY = cubeY;
+        playerWrapper.tickingCubeZ = cubeZ;
+    }
+
+    /**
+     * Picks up players that became or stopped being spectators, movement is handled in updateMovingPlayer
+     */
+    private void updateTickingPlayers() {
+        for (PlayerWrapper playerWrapper : this.players.valueCollection()) {
+            updateTickingPlayer(playerWrapper);
+        }
+    }
+
+    private void stopTickingPlayer(PlayerWrapper playerWrapper) {
+        if (playerWrapper.ticking) {
+            tickableWatchers.removePlayer(playerWrapper.tickingCubeX, playerWrapper.tickingCubeY, playerWrapper.tickingCubeZ);
+            playerWrapper.ticking = false;
+        }
+    }
+
+    private int countTickingPlayers(int cubeX, int cubeY, int cubeZ) {
+        int count = 0;
+        for (PlayerWrapper playerWrapper : this.players.valueCollection()) {
+            if (playerWrapper.ticking && TickableWatchers.isInRange(
+                    cubeX - playerWrapper.tickingCubeX, cubeY - playerWrapper.tickingCubeY, cubeZ - playerWrapper.tickingCubeZ)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int countTickingPlayers(int cubeX, int cubeZ) {
+        int count = 0;
+        for (PlayerWrapper playerWrapper : this.players.valueCollection()) {
+            if (playerWrapper.ticking && TickableWatchers.isInRange(cubeX - playerWrapper.tickingCubeX, cubeZ - playerWrapper.tickingCubeZ)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Updates all CubeWatchers and ColumnWatchers.
      * Also sends packets to clients.
@@ -302,6 +422,10 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
                 addPlayer(player);
             }
         }
+        getWorldServer().profiler.endStartSection("dynamicViewDistance");
+        if (currentTime % ViewDistanceController.UPDATE_INTERVAL == 0) {
+            updateDynamicViewDistance();
+        }
         getWorldServer().profiler.endStartSection("tickEntries");
         //force update-all every 8000 ticks (400 seconds)
         if (currentTime - this.previousWorldTime > 8000L) {
@@ -322,21 +446,33 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         this.columnWatchersToUpdate.clear();
 
         getWorldServer().profiler.endStartSection("sortToGenerate");
-        //sort toLoadPending if needed, but at most every 4 ticks
+        //update priorities of toLoadPending if needed, but at most every 4 ticks
         if (this.toGenerateNeedSort && currentTime % 4L == 0L) {
             this.toGenerateNeedSort = false;
-            this.cubesToGenerate.sort();
-            this.columnsToGenerate.sort();
+            this.cubesToGenerate.updatePriorities();
+            this.columnsToGenerate.updatePriorities();
+        } else {
+            this.cubesToGenerate.compactIfNeeded();
+            this.columnsToGenerate.compactIfNeeded();
         }
         getWorldServer().profiler.endStartSection("sortToSend");
-        //sort cubesToSendToClients every other 4 ticks
+        //update priorities of cubesToSendToClients every other 4 ticks
         if (this.toSendToClientNeedSort && currentTime % 4L == 2L) {
             this.toSendToClientNeedSort = false;
-            this.cubesToSendToClients.sort();
-            this.columnsToSendToClients.sort();
+            this.cubesToSendToClients.updatePriorities();
+            this.columnsToSendToClients.updatePriorities();
+        } else {
+            this.cubesToSendToClients.compactIfNeeded();
+            this.columnsToSendToClients.compactIfNeeded();
         }
 
         getWorldServer().profiler.endStartSection("generate");
+        this.generatingPlayers.clear();
+        for (PlayerWrapper playerWrapper : this.players.valueCollection()) {
+            if (CAN_GENERATE_CHUNKS.apply(playerWrapper.playerEntity)) {
+                this.generatingPlayers.set(playerWrapper.index);
+            }
+        }
         if (!this.columnsToGenerate.isEmpty()) {
             getWorldServer().profiler.startSection("columns");
             Iterator<ColumnWatcher> iter = this.columnsToGenerate.iterator();
@@ -374,7 +510,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
                 boolean success = watcher.getCube() != null && watcher.getCube().isFullyPopulated() && watcher.getCube().isInitialLightingDone() &&
                         !watcher.getCube().hasLightUpdates();
                 if (!success) {
-                    boolean canGenerate = watcher.hasPlayerMatching(CAN_GENERATE_CHUNKS);
+                    boolean canGenerate = watcher.hasAnyPlayer(this.generatingPlayers);
                     getWorldServer().profiler.startSection("generate");
                     success = watcher.providePlayerCube(canGenerate);
                     getWorldServer().profiler.endSection();
@@ -403,16 +539,15 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         }
         if (!this.cubesToSendToClients.isEmpty()) {
             getWorldServer().profiler.startSection("cubes");
-            int toSend = 81 * 8;//sending cubes, so send 8x more at once
+            // this only queues the cubes, the amount actually sent is limited by each player's send queue
             Iterator<CubeWatcher> it = this.cubesToSendToClients.iterator();
 
-            while (it.hasNext() && toSend >= 0) {
+            while (it.hasNext()) {
                 CubeWatcher playerInstance = it.next();
 
                 CubeWatcher.SendToPlayersResult state = playerInstance.sendToPlayers();
                 if (state == CubeWatcher.SendToPlayersResult.ALREADY_DONE || state == CubeWatcher.SendToPlayersResult.CUBE_SENT) {
                     it.remove();
-                    --toSend;
                 } else if (state == CubeWatcher.SendToPlayersResult.WAITING_LIGHT) {
                     if (!cubesToGenerate.contains(playerInstance)) {
                         cubesToGenerate.appendToStart(playerInstance);
@@ -432,10 +567,29 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
             }
         }
         getWorldServer().profiler.endStartSection("sendCubes");//unload
-        for (EntityPlayerMP player : cubesToSend.keySet()) {
-            Collection<Cube> cubes = cubesToSend.get(player);
-            PacketCubes packet = new PacketCubes(new ArrayList<>(cubes));
-            PacketDispatcher.sendTo(packet, player);
+        for (Iterator<Map.Entry<EntityPlayerMP, CubeSendQueue>> it = cubesToSend.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<EntityPlayerMP, CubeSendQueue> entry = it.next();
+            EntityPlayerMP player = entry.getKey();
+            CubeSendQueue queue = entry.getValue();
+            int protocol = CubePacketProtocol.getVersion(player);
+            List<Cube> cubes = queue.poll(cube -> encodedCubeCache.getEncodedSize(cube, protocol));
+            if (queue.isEmpty()) {
+                it.remove();
+            }
+            if (cubes.isEmpty()) {
+                continue;
+            }
+            for (List<Cube> packetCubes : Lists.partition(cubes, PacketCubes.MAX_CUBES)) {
+                // legacy clients expect the heightmap with every cube, so they don't take part in the version tracking
+                PacketCubes packet = new PacketCubes(packetCubes, column -> {
+                    if (protocol == CubePacketProtocol.LEGACY) {
+                        return true;
+                    }
+                    ColumnWatcher columnWatcher = this.columnWatchers.get(column.x, column.z);
+                    return columnWatcher == null || columnWatcher.markHeightMapSent(player);
+                }, encodedCubeCache, protocol, ClientCubeHashes.get(player));
+                PacketDispatcher.sendTo(packet, player);
+            }
             //Sending entities per cube.
             for (Cube cube : cubes) {
                 ((ICubicEntityTracker) getWorldServer().getEntityTracker()).sendLeashedEntitiesInCube(player, cube);
@@ -444,7 +598,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
                 MinecraftForge.EVENT_BUS.post(new CubeWatchEvent(cube, cube.getCoords(), watcher, player));
             }
         }
-        cubesToSend.clear();
+        encodedCubeCache.clear();
         getWorldServer().profiler.endSection();//sendCubes
         getWorldServer().profiler.endSection();//playerCubeMapTick
     }
@@ -467,12 +621,17 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
      * If it can't load it or send it to client - adds it to cubesToGenerate/cubesToSendToClients
      */
     private CubeWatcher getOrCreateCubeWatcher(@Nonnull CubePos cubePos) {
-        CubeWatcher cubeWatcher = this.cubeWatchers.get(cubePos.getX(), cubePos.getY(), cubePos.getZ());
+        return getOrCreateCubeWatcher(cubePos.getX(), cubePos.getY(), cubePos.getZ());
+    }
+
+    private CubeWatcher getOrCreateCubeWatcher(int cubeX, int cubeY, int cubeZ) {
+        CubeWatcher cubeWatcher = this.cubeWatchers.get(cubeX, cubeY, cubeZ);
 
         if (cubeWatcher == null) {
             // make a new watcher
-            cubeWatcher = new CubeWatcher(this, cubePos);
+            cubeWatcher = new CubeWatcher(this, new CubePos(cubeX, cubeY, cubeZ));
             this.cubeWatchers.put(cubeWatcher);
+            this.tickableWatchers.onWatcherCreated(cubeWatcher, countTickingPlayers(cubeX, cubeY, cubeZ));
 
 
             if (cubeWatcher.getCube() == null ||
@@ -496,10 +655,15 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
      * Always creates the Column.
      */
     private ColumnWatcher getOrCreateColumnWatcher(ChunkPos chunkPos) {
-        ColumnWatcher columnWatcher = this.columnWatchers.get(chunkPos.x, chunkPos.z);
+        return getOrCreateColumnWatcher(chunkPos.x, chunkPos.z);
+    }
+
+    private ColumnWatcher getOrCreateColumnWatcher(int cubeX, int cubeZ) {
+        ColumnWatcher columnWatcher = this.columnWatchers.get(cubeX, cubeZ);
         if (columnWatcher == null) {
-            columnWatcher = new ColumnWatcher(this, chunkPos);
+            columnWatcher = new ColumnWatcher(this, new ChunkPos(cubeX, cubeZ));
             this.columnWatchers.put(columnWatcher);
+            this.tickableWatchers.onWatcherCreated(columnWatcher, countTickingPlayers(cubeX, cubeZ));
             if (columnWatcher.getChunk() == null) {
                 this.columnsToGenerate.appendToEnd(columnWatcher);
             }
@@ -546,8 +710,11 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
             return;
         }
 
-        PlayerWrapper playerWrapper = new PlayerWrapper(player);
+        PlayerWrapper playerWrapper = new PlayerWrapper(player, this.usedPlayerIndices.nextClearBit(0));
         playerWrapper.updateManagedPos();
+        // registered first, so that the watchers can find the player index
+        this.usedPlayerIndices.set(playerWrapper.index);
+        this.players.put(player.getEntityId(), playerWrapper);
 
         CubePos playerCubePos = CubePos.fromEntity(player);
 
@@ -563,7 +730,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
 
             cubeWatcher.addPlayer(player);
         });
-        this.players.put(player.getEntityId(), playerWrapper);
+        this.updateTickingPlayer(playerWrapper);
         this.setNeedSort();
     }
 
@@ -575,6 +742,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
             CubicChunks.bigWarning("PlayerCubeMap#removePlayer got called when there is no player in this world! Things may break!");
             return;
         }
+        this.stopTickingPlayer(playerWrapper);
         // Minecraft does something evil there: this method is called *after* changing the player's position
         // so we need to use managerPosition there
         CubePos playerCubePos = CubePos.fromEntityCoords(player.managedPosX, playerWrapper.managedPosY, player.managedPosZ);
@@ -602,6 +770,8 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
                 .filter(watcher->watcher.containsPlayer(player))
                 .forEach(watcher->watcher.removePlayer(player));
         this.players.remove(player.getEntityId());
+        this.usedPlayerIndices.clear(playerWrapper.index);
+        this.cubesToSend.remove(player);
         this.setNeedSort();
     }
 
@@ -626,6 +796,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
 
         this.updatePlayer(playerWrapper, playerWrapper.getManagedCubePos(), CubePos.fromEntity(player));
         playerWrapper.updateManagedPos();
+        this.updateTickingPlayer(playerWrapper);
         this.setNeedSort();
 
         // With ChunkGc being separate from PlayerCubeMap, there are 2 issues:
@@ -646,45 +817,53 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
 
     private void updatePlayer(PlayerWrapper entry, CubePos oldPos, CubePos newPos) {
         getWorldServer().profiler.startSection("updateMovedPlayer");
-        Set<CubePos> cubesToRemove = new HashSet<>();
-        Set<CubePos> cubesToLoad = new HashSet<>();
-        Set<ChunkPos> columnsToRemove = new HashSet<>();
-        Set<ChunkPos> columnsToLoad = new HashSet<>();
+        LongArrayList cubesToRemove = this.cubesToRemoveBuffer;
+        LongArrayList cubesToLoad = this.cubesToLoadBuffer;
+        LongArrayList columnsToRemove = this.columnsToRemoveBuffer;
+        LongArrayList columnsToLoad = this.columnsToLoadBuffer;
+        cubesToRemove.clear();
+        cubesToLoad.clear();
+        columnsToRemove.clear();
+        columnsToLoad.clear();
 
         getWorldServer().profiler.startSection("findChanges");
-        // calculate new visibility
-        this.cubeSelector.findChanged(oldPos, newPos, horizontalViewDistance, verticalViewDistance, cubesToRemove, cubesToLoad, columnsToRemove,
-                columnsToLoad);
+        // calculate new visibility, removed positions are relative to oldPos and loaded ones relative to newPos
+        this.cubeSelector.findChanged(oldPos, newPos, horizontalViewDistance, verticalViewDistance,
+                cubesToRemoveConsumer, cubesToLoadConsumer, columnsToRemoveConsumer, columnsToLoadConsumer);
 
         getWorldServer().profiler.endStartSection("createColumns");
         //order is important, columns first
-        columnsToLoad.forEach(pos -> {
-            ColumnWatcher columnWatcher = this.getOrCreateColumnWatcher(pos);
-            assert columnWatcher.getPos().equals(pos);
+        for (int i = 0, size = columnsToLoad.size(); i < size; i++) {
+            long offset = columnsToLoad.getLong(i);
+            ColumnWatcher columnWatcher = this.getOrCreateColumnWatcher(
+                    newPos.getX() + unpackOffsetX(offset), newPos.getZ() + unpackOffsetZ(offset));
             columnWatcher.addPlayer(entry.playerEntity);
-        });
+        }
         getWorldServer().profiler.endStartSection("createCubes");
-        cubesToLoad.forEach(pos -> {
-            CubeWatcher cubeWatcher = this.getOrCreateCubeWatcher(pos);
-            assert cubeWatcher.getCubePos().equals(pos);
+        for (int i = 0, size = cubesToLoad.size(); i < size; i++) {
+            long offset = cubesToLoad.getLong(i);
+            CubeWatcher cubeWatcher = this.getOrCreateCubeWatcher(newPos.getX() + unpackOffsetX(offset),
+                    newPos.getY() + unpackOffsetY(offset), newPos.getZ() + unpackOffsetZ(offset));
             cubeWatcher.addPlayer(entry.playerEntity);
-        });
+        }
         getWorldServer().profiler.endStartSection("removeCubes");
-        cubesToRemove.forEach(pos -> {
-            CubeWatcher cubeWatcher = this.getCubeWatcher(pos);
+        for (int i = 0, size = cubesToRemove.size(); i < size; i++) {
+            long offset = cubesToRemove.getLong(i);
+            CubeWatcher cubeWatcher = this.cubeWatchers.get(oldPos.getX() + unpackOffsetX(offset),
+                    oldPos.getY() + unpackOffsetY(offset), oldPos.getZ() + unpackOffsetZ(offset));
             if (cubeWatcher != null) {
-                assert cubeWatcher.getCubePos().equals(pos);
                 cubeWatcher.removePlayer(entry.playerEntity);
             }
-        });
+        }
         getWorldServer().profiler.endStartSection("removeColumns");
-        columnsToRemove.forEach(pos -> {
-            ColumnWatcher columnWatcher = this.getColumnWatcher(pos);
+        for (int i = 0, size = columnsToRemove.size(); i < size; i++) {
+            long offset = columnsToRemove.getLong(i);
+            ColumnWatcher columnWatcher = this.columnWatchers.get(
+                    oldPos.getX() + unpackOffsetX(offset), oldPos.getZ() + unpackOffsetZ(offset));
             if (columnWatcher != null) {
-                assert columnWatcher.getPos().equals(pos);
                 columnWatcher.removePlayer(entry.playerEntity);
             }
-        });
+        }
         getWorldServer().profiler.endSection();//removeColumns
         getWorldServer().profiler.endSection();//updateMovedPlayer
     }
@@ -698,11 +877,18 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
                 columnWatcher.isSentToPlayers();
     }
 
+    /**
+     * @return true if the cube has actually been sent to the player, and not just queued for sending
+     */
     public boolean isPlayerWatchingCube(EntityPlayerMP player, int cubeX, int cubeY, int cubeZ) {
         CubeWatcher watcher = this.getCubeWatcher(new CubePos(cubeX, cubeY, cubeZ));
-        return watcher != null &&
-                watcher.containsPlayer(player) &&
-                watcher.isSentToPlayers();
+        if (watcher == null || !watcher.containsPlayer(player) || !watcher.isSentToPlayers()) {
+            return false;
+        }
+        // entities in the cube are sent to the player once the cube leaves the send queue, see sendLeashedEntitiesInCube
+        CubeSendQueue queue = cubesToSend.get(player);
+        Cube cube = watcher.getCube();
+        return queue == null || cube == null || !queue.contains(cube);
     }
 
     // CHECKED: 1.10.2-12.18.1.2092
@@ -719,6 +905,26 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         if (this.players == null) {
             return;
         }
+        this.requestedHorizontalViewDistance = newHorizontalViewDistance;
+        this.requestedVerticalViewDistance = newVerticalViewDistance;
+        this.applyViewDistance(viewDistanceController.getHorizontalViewDistance(newHorizontalViewDistance),
+                viewDistanceController.getVerticalViewDistance(newVerticalViewDistance));
+    }
+
+    private void updateDynamicViewDistance() {
+        WorldServer world = getWorldServer();
+        int queuedIO = AsyncWorldIOExecutor.getQueuedLoadCount() + this.cubeCache.getCubeIO().getPendingCubeCount();
+        if (viewDistanceController.update(world.getMinecraftServer().tickTimeArray, this.cubesToGenerate.size(), queuedIO,
+                requestedHorizontalViewDistance, requestedVerticalViewDistance)) {
+            int newHorizontalViewDistance = viewDistanceController.getHorizontalViewDistance(requestedHorizontalViewDistance);
+            int newVerticalViewDistance = viewDistanceController.getVerticalViewDistance(requestedVerticalViewDistance);
+            CubicChunks.LOGGER.info("Dynamic view distance: changing view distance in dimension {} to {} horizontal, {} vertical",
+                    world.provider.getDimension(), newHorizontalViewDistance, newVerticalViewDistance);
+            this.applyViewDistance(newHorizontalViewDistance, newVerticalViewDistance);
+        }
+    }
+
+    private void applyViewDistance(int newHorizontalViewDistance, int newVerticalViewDistance) {
 
         newHorizontalViewDistance = clamp(newHorizontalViewDistance, 3, CubicChunks.hasOptifine() ? 64 : 32);
         newVerticalViewDistance = clamp(newVerticalViewDistance, 3, CubicChunks.hasOptifine() ? 64 : 32);
@@ -733,8 +939,8 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         if ((newHorizontalViewDistance < oldHorizontalViewDistance && newVerticalViewDistance > oldVerticalViewDistance) ||
                 (newHorizontalViewDistance > oldHorizontalViewDistance && newVerticalViewDistance < oldVerticalViewDistance)) {
             // Adjust the values separately to avoid imploding
-            setPlayerViewDistance(newHorizontalViewDistance, oldVerticalViewDistance);
-            setPlayerViewDistance(newHorizontalViewDistance, newVerticalViewDistance);
+            applyViewDistance(newHorizontalViewDistance, oldVerticalViewDistance);
+            applyViewDistance(newHorizontalViewDistance, newVerticalViewDistance);
             return;
         }
 
@@ -789,6 +995,25 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         this.setNeedSort();
     }
 
+    private static CubeSelector createCubeSelector(CubicChunksConfig.ViewVolumeShape shape) {
+        switch (shape) {
+            case SPHERE:
+                return new SphericalCubeSelector();
+            case ELLIPSOID:
+                return new EllipsoidalCubeSelector();
+            case CUBOID:
+            default:
+                return new CuboidalCubeSelector();
+        }
+    }
+
+    private static int getDistancePriority(double distanceSq) {
+        if (distanceSq >= Double.MAX_VALUE) {
+            return MAX_WATCHER_PRIORITY;
+        }
+        return (int) Math.sqrt(distanceSq) >> 4;
+    }
+
     private void setNeedSort() {
         this.toGenerateNeedSort = true;
         this.toSendToClientNeedSort = true;
@@ -819,6 +1044,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         CubeWatcher removed = this.cubeWatchers.remove(cubePos.getX(), cubePos.getY(), cubePos.getZ());
         assert removed == cubeWatcher : "Removed unexpected cube watcher";
         this.cubeWatchersToUpdate.remove(cubeWatcher);
+        this.tickableWatchers.onWatcherRemoved(cubeWatcher);
         this.cubesToGenerate.remove(cubeWatcher);
         this.cubesToSendToClients.remove(cubeWatcher);
         if (cubeWatcher.getCube() != null) {
@@ -832,12 +1058,39 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         ChunkPos pos = entry.getPos();
         entry.updateChunkInhabitedTime();
         this.columnWatchers.remove(pos.x, pos.z);
+        this.tickableWatchers.onWatcherRemoved(entry);
         this.columnsToGenerate.remove(entry);
         this.columnsToSendToClients.remove(entry);
     }
 
     public void scheduleSendCubeToPlayer(Cube cube, EntityPlayerMP player) {
-        cubesToSend.put(player, cube);
+        cubesToSend.computeIfAbsent(player, CubeSendQueue::new).add(cube);
+    }
+
+    /**
+     * Sends the cube to the player again, if the player is watching it and it has already been sent.
+     */
+    public void resendCubeToPlayer(CubePos pos, EntityPlayerMP player) {
+        CubeWatcher watcher = getCubeWatcher(pos);
+        if (watcher != null && watcher.isSentToPlayers() && watcher.containsPlayer(player)) {
+            Cube cube = watcher.getCube();
+            assert cube != null;
+            scheduleSendCubeToPlayer(cube, player);
+        }
+    }
+
+    /**
+     * Removes the cube from the player's send queue if it hasn't been sent yet.
+     */
+    void cancelSendCubeToPlayer(Cube cube, EntityPlayerMP player) {
+        CubeSendQueue queue = cubesToSend.get(player);
+        if (queue != null) {
+            queue.remove(cube);
+        }
+    }
+
+    public EncodedCubeCache getEncodedCubeCache() {
+        return this.encodedCubeCache;
     }
 
     @Nullable public CubeWatcher getCubeWatcher(CubePos pos) {
@@ -848,6 +1101,30 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
         return this.columnWatchers.get(pos.x, pos.z);
     }
 
+    XYZMap<CubeWatcher> getCubeWatchers() {
+        return this.cubeWatchers;
+    }
+
+    XZMap<ColumnWatcher> getColumnWatchers() {
+        return this.columnWatchers;
+    }
+
+    /**
+     * @return the amount of watchers waiting to be generated or sent to players
+     */
+    int getQueuedWatcherCount() {
+        return this.cubesToGenerate.size() + this.cubesToSendToClients.size()
+                + this.columnsToGenerate.size() + this.columnsToSendToClients.size();
+    }
+
+    /**
+     * @return the index of the player in {@link CubeWatcher} player sets, or -1 if the player isn't in this PlayerCubeMap
+     */
+    int getPlayerIndex(EntityPlayerMP player) {
+        PlayerWrapper playerWrapper = this.players.get(player.getEntityId());
+        return playerWrapper == null || playerWrapper.playerEntity != player ? -1 : playerWrapper.index;
+    }
+
     public boolean contains(CubePos coords) {
         return this.cubeWatchers.get(coords.getX(), coords.getY(), coords.getZ()) != null;
     }
@@ -855,10 +1132,22 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
     private static final class PlayerWrapper {
 
         final EntityPlayerMP playerEntity;
+        /**
+         * Small number identifying the player in {@link CubeWatcher} player sets, unique within this PlayerCubeMap
+         */
+        final int index;
         private double managedPosY;
-
-        PlayerWrapper(EntityPlayerMP player) {
+        /**
+         * Whether the player is counted in {@link PlayerCubeMap#tickableWatchers}, and the cube position it's counted at
+         */
+        boolean ticking;
+        int tickingCubeX;
+        int tickingCubeY;
+        int tickingCubeZ;
+
+        PlayerWrapper(EntityPlayerMP player, int index) {
             this.playerEntity = player;
+            this.index = index;
         }
 
         void updateManagedPos() {
@@ -904,7 +1193,17 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
     
     public Iterator<Cube> getCubeIterator() {
         WorldServer world = this.getWorldServer();
-        final Iterator<CubeWatcher> iterator = this.cubeWatchers.iterator();
+        // copied, so that watchers can be added and removed while ticking cubes
+        updateTickingPlayers();
+        ObjectArrayList<Cube> tickableCubes = this.tickableCubesBuffer;
+        tickableCubes.clear();
+        for (CubeWatcher watcher : tickableWatchers.getCubes()) {
+            Cube cube = watcher.getCube();
+            if (cube != null) {
+                tickableCubes.add(cube);
+            }
+        }
+        final Iterator<Cube> iterator = tickableCubes.iterator();
         ImmutableSetMultimap<ChunkPos, Ticket> persistentChunksFor = ForgeChunkManager.getPersistentChunksFor(world);
         world.profiler.startSection("forcedChunkLoading");
         final Iterator<Cube> persistentCubesIterator = persistentChunksFor.keys().stream()
@@ -936,12 +1235,9 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
                 }
                 
                 while (iterator.hasNext()) {
-                    CubeWatcher watcher = iterator.next();
-                    Cube cube = watcher.getCube();
+                    Cube cube = iterator.next();
                     if(shouldSkip(cube))
                         continue;
-                    if(!watcher.hasPlayerMatchingInRange(NOT_SPECTATOR, 128))
-                        continue;
                     return cube;
                 }
                 return this.endOfData();
@@ -951,7 +1247,7 @@ public class PlayerCubeMap extends PlayerChunkMap implements LightingManager.IHe
 
     public class TickableChunkContainer {
 
-        private final ObjectArrayList<ICube> cubes = ObjectArrayList.wrap(new ICube[64*1024]);
+        private final ObjectArrayList<ICube> cubes = new ObjectArrayList<>();
         private XYZMap<ICube> forcedCubes;
         private final Set<Chunk> columns = Collections.newSetFromMap(new IdentityHashMap<>());
 
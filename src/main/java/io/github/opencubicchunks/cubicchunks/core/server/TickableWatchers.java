@@ -0,0 +1,179 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.server;
+
+import io.github.opencubicchunks.cubicchunks.api.util.XYZMap;
+import io.github.opencubicchunks.cubicchunks.api.util.XZMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceSet;
+import mcp.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Cube and column watchers close enough to a non-spectator player to be ticked.
+ * <p>
+ * Each watcher counts the ticking players in range. The counts are only updated when a player moves into another cube,
+ * starts or stops ticking, or a watcher is created, so finding the tickable watchers doesn't depend on the amount of
+ * watched cubes.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+class TickableWatchers {
+
+    /**
+     * Distance in cubes from the player's cube to the cubes it ticks, 128 blocks like in vanilla
+     */
+    static final int TICK_RADIUS = 8;
+    private static final int TICK_RADIUS_SQ = TICK_RADIUS * TICK_RADIUS;
+
+    @Nonnull private final XYZMap<CubeWatcher> cubeWatchers;
+    @Nonnull private final XZMap<ColumnWatcher> columnWatchers;
+
+    @Nonnull private final ReferenceSet<CubeWatcher> cubes = new ReferenceOpenHashSet<>();
+    @Nonnull private final ReferenceSet<ColumnWatcher> columns = new ReferenceOpenHashSet<>();
+
+    TickableWatchers(XYZMap<CubeWatcher> cubeWatchers, XZMap<ColumnWatcher> columnWatchers) {
+        this.cubeWatchers = cubeWatchers;
+        this.columnWatchers = columnWatchers;
+    }
+
+    ReferenceSet<CubeWatcher> getCubes() {
+        return cubes;
+    }
+
+    ReferenceSet<ColumnWatcher> getColumns() {
+        return columns;
+    }
+
+    static boolean isInRange(int dx, int dy, int dz) {
+        return dx * dx + dy * dy + dz * dz <= TICK_RADIUS_SQ;
+    }
+
+    static boolean isInRange(int dx, int dz) {
+        return dx * dx + dz * dz <= TICK_RADIUS_SQ;
+    }
+
+    /**
+     * Adds a ticking player at the given cube position to all existing watchers in range.
+     */
+    void addPlayer(int cubeX, int cubeY, int cubeZ) {
+        update(cubeX, cubeY, cubeZ, false, 0, 0, 0, true);
+    }
+
+    /**
+     * Removes a ticking player at the given cube position from all existing watchers in range.
+     */
+    void removePlayer(int cubeX, int cubeY, int cubeZ) {
+        update(cubeX, cubeY, cubeZ, false, 0, 0, 0, false);
+    }
+
+    /**
+     * Moves a ticking player, only changing watchers that are in range of exactly one of the positions.
+     */
+    void movePlayer(int oldX, int oldY, int oldZ, int newX, int newY, int newZ) {
+        update(oldX, oldY, oldZ, true, newX, newY, newZ, false);
+        update(newX, newY, newZ, true, oldX, oldY, oldZ, true);
+    }
+
+    /**
+     * Sets the amount of ticking players in range of a new watcher.
+     */
+    void onWatcherCreated(CubeWatcher watcher, int tickingPlayers) {
+        watcher.setTickingPlayers(tickingPlayers);
+        if (tickingPlayers > 0) {
+            cubes.add(watcher);
+        }
+    }
+
+    void onWatcherCreated(ColumnWatcher watcher, int tickingPlayers) {
+        watcher.setTickingPlayers(tickingPlayers);
+        if (tickingPlayers > 0) {
+            columns.add(watcher);
+        }
+    }
+
+    void onWatcherRemoved(CubeWatcher watcher) {
+        cubes.remove(watcher);
+    }
+
+    void onWatcherRemoved(ColumnWatcher watcher) {
+        columns.remove(watcher);
+    }
+
+    private void update(int x, int y, int z, boolean hasExcluded, int excludedX, int excludedY, int excludedZ, boolean add) {
+        for (int dx = -TICK_RADIUS; dx <= TICK_RADIUS; dx++) {
+            for (int dz = -TICK_RADIUS; dz <= TICK_RADIUS; dz++) {
+                if (!isInRange(dx, dz)) {
+                    continue;
+                }
+                int cubeX = x + dx;
+                int cubeZ = z + dz;
+                if (!hasExcluded || !isInRange(cubeX - excludedX, cubeZ - excludedZ)) {
+                    ColumnWatcher column = columnWatchers.get(cubeX, cubeZ);
+                    if (column != null) {
+                        update(column, add);
+                    }
+                }
+                for (int dy = -TICK_RADIUS; dy <= TICK_RADIUS; dy++) {
+                    if (!isInRange(dx, dy, dz)) {
+                        continue;
+                    }
+                    int cubeY = y + dy;
+                    if (hasExcluded && isInRange(cubeX - excludedX, cubeY - excludedY, cubeZ - excludedZ)) {
+                        continue;
+                    }
+                    CubeWatcher cube = cubeWatchers.get(cubeX, cubeY, cubeZ);
+                    if (cube != null) {
+                        update(cube, add);
+                    }
+                }
+            }
+        }
+    }
+
+    private void update(CubeWatcher watcher, boolean add) {
+        int count = watcher.getTickingPlayers() + (add ? 1 : -1);
+        assert count >= 0 : "Negative ticking player count at " + watcher.getCubePos();
+        watcher.setTickingPlayers(count);
+        if (count == 0) {
+            cubes.remove(watcher);
+        } else if (add && count == 1) {
+            cubes.add(watcher);
+        }
+    }
+
+    private void update(ColumnWatcher watcher, boolean add) {
+        int count = watcher.getTickingPlayers() + (add ? 1 : -1);
+        assert count >= 0 : "Negative ticking player count at " + watcher.getPos();
+        watcher.setTickingPlayers(count);
+        if (count == 0) {
+            columns.remove(watcher);
+        } else if (add && count == 1) {
+            columns.add(watcher);
+        }
+    }
+}
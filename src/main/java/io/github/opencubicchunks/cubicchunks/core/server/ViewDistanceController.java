@@ -0,0 +1,138 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.server;
+
+import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
+import mcp.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Lowers the view distance of a world while the server is overloaded and raises it back when there is headroom.
+ * <p>
+ * The server is overloaded when the average tick time is above the target, or when generation or I/O can't keep up.
+ * It has headroom when all of them are well below the limits. The view distance goes down by one after a short
+ * overload and up by one only after a long time with headroom. Every change is followed by a cooldown, because
+ * changing the view distance causes load by itself.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+class ViewDistanceController {
+
+    /**
+     * Ticks between updates
+     */
+    static final int UPDATE_INTERVAL = 20;
+
+    private static final int UPDATES_TO_DECREASE = 3;
+    private static final int UPDATES_TO_INCREASE = 30;
+    private static final int COOLDOWN_UPDATES = 10;
+    private static final double HEADROOM_FACTOR = 0.7;
+    private static final int MAX_QUEUED_IO = 4096;
+
+    private int reduction = 0;
+    private int overloadedUpdates = 0;
+    private int headroomUpdates = 0;
+    private int cooldown = 0;
+
+    /**
+     * @param tickTimes the recent tick times in nanoseconds, see MinecraftServer.tickTimeArray
+     * @param generationBacklog the amount of cubes waiting to be generated
+     * @param queuedIO the amount of queued loads and saves
+     * @return true if the view distance has changed
+     */
+    boolean update(long[] tickTimes, int generationBacklog, int queuedIO, int horizontalViewDistance, int verticalViewDistance) {
+        if (!CubicChunksConfig.dynamicViewDistance) {
+            overloadedUpdates = 0;
+            headroomUpdates = 0;
+            cooldown = 0;
+            return setReduction(0);
+        }
+        double mspt = getAverage(tickTimes) * 1.0E-6D;
+        int targetMspt = CubicChunksConfig.dynamicViewDistanceTargetMspt;
+        int maxGenerationBacklog = Math.max(1, CubicChunksConfig.maxGeneratedCubesPerTick * UPDATE_INTERVAL);
+
+        boolean overloaded = mspt > targetMspt || generationBacklog > maxGenerationBacklog || queuedIO > MAX_QUEUED_IO;
+        boolean headroom = mspt < targetMspt * HEADROOM_FACTOR
+                && generationBacklog < maxGenerationBacklog / 4 && queuedIO < MAX_QUEUED_IO / 4;
+
+        overloadedUpdates = overloaded ? overloadedUpdates + 1 : 0;
+        headroomUpdates = headroom ? headroomUpdates + 1 : 0;
+        if (cooldown > 0) {
+            cooldown--;
+            return false;
+        }
+        int maxReduction = Math.max(
+                horizontalViewDistance - getHorizontalViewDistance(horizontalViewDistance, Integer.MAX_VALUE),
+                verticalViewDistance - getVerticalViewDistance(verticalViewDistance, Integer.MAX_VALUE));
+        if (overloadedUpdates >= UPDATES_TO_DECREASE && reduction < maxReduction) {
+            return setReduction(reduction + 1);
+        }
+        if (headroomUpdates >= UPDATES_TO_INCREASE && reduction > 0) {
+            return setReduction(Math.min(reduction - 1, maxReduction));
+        }
+        return false;
+    }
+
+    int getHorizontalViewDistance(int configured) {
+        return getHorizontalViewDistance(configured, reduction);
+    }
+
+    int getVerticalViewDistance(int configured) {
+        return getVerticalViewDistance(configured, reduction);
+    }
+
+    private static int getHorizontalViewDistance(int configured, int reduction) {
+        return reduce(configured, reduction, CubicChunksConfig.dynamicViewDistanceMinHorizontal);
+    }
+
+    private static int getVerticalViewDistance(int configured, int reduction) {
+        return reduce(configured, reduction, CubicChunksConfig.dynamicViewDistanceMinVertical);
+    }
+
+    private static int reduce(int configured, int reduction, int min) {
+        // never raise a view distance that is already below the minimum
+        return Math.max(Math.min(configured, min), configured - reduction);
+    }
+
+    private boolean setReduction(int newReduction) {
+        if (newReduction == reduction) {
+            return false;
+        }
+        reduction = newReduction;
+        overloadedUpdates = 0;
+        headroomUpdates = 0;
+        cooldown = COOLDOWN_UPDATES;
+        return true;
+    }
+
+    private static double getAverage(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return (double) sum / values.length;
+    }
+}
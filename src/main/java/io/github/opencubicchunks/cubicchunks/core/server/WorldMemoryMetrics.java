@@ -0,0 +1,158 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.server;
+
+import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.core.CubicChunksConfig;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.world.WorldServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the estimated memory usage of each cubic chunks world as a JMX MBean named
+ * {@code io.github.opencubicchunks.cubicchunks:type=WorldMemory,dimension=<id>}, so that it can be collected by
+ * monitoring tools.
+ * <p>
+ * The estimate is updated on the server thread every {@link CubicChunksConfig#memoryMetricsInterval} ticks, JMX clients
+ * only read the last result.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class WorldMemoryMetrics implements WorldMemoryMXBean {
+
+    private static final String DOMAIN = "io.github.opencubicchunks.cubicchunks";
+
+    private static final Int2ObjectMap<WorldMemoryMetrics> registered = new Int2ObjectOpenHashMap<>();
+    // set when registering the MBean fails, so that it's not retried every interval
+    private static boolean disabled;
+
+    private final ObjectName name;
+    @Nullable private volatile WorldMemoryUsage usage;
+    private volatile long lastUpdateTime;
+
+    private WorldMemoryMetrics(ObjectName name) {
+        this.name = name;
+    }
+
+    /**
+     * Updates the published estimate of the given world when it's time to do so. Called each tick of a cubic chunks
+     * world.
+     */
+    public static void tick(WorldServer world) {
+        int dimension = world.provider.getDimension();
+        int interval = CubicChunksConfig.memoryMetricsInterval;
+        if (interval <= 0 || disabled) {
+            if (registered.containsKey(dimension)) {
+                unregister(dimension);
+            }
+            return;
+        }
+        long time = world.getTotalWorldTime();
+        if (time % interval != 0) {
+            return;
+        }
+        WorldMemoryMetrics metrics = registered.get(dimension);
+        if (metrics == null) {
+            metrics = register(dimension);
+            if (metrics == null) {
+                return;
+            }
+        }
+        metrics.usage = WorldMemoryUsage.estimate(world);
+        metrics.lastUpdateTime = time;
+    }
+
+    public static void onWorldUnload(WorldServer world) {
+        unregister(world.provider.getDimension());
+    }
+
+    @Nullable private static WorldMemoryMetrics register(int dimension) {
+        try {
+            WorldMemoryMetrics metrics = new WorldMemoryMetrics(new ObjectName(DOMAIN + ":type=WorldMemory,dimension=" + dimension));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metrics.name);
+            registered.put(dimension, metrics);
+            return metrics;
+        } catch (JMException e) {
+            CubicChunks.LOGGER.error("Failed to register memory metrics for dimension " + dimension + ", disabling them", e);
+            disabled = true;
+            return null;
+        }
+    }
+
+    private static void unregister(int dimension) {
+        WorldMemoryMetrics metrics = registered.remove(dimension);
+        if (metrics == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metrics.name);
+        } catch (JMException e) {
+            CubicChunks.LOGGER.catching(e);
+        }
+    }
+
+    @Override public Map<String, Long> getEstimatedBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        WorldMemoryUsage usage = this.usage;
+        for (WorldMemoryUsage.Component component : WorldMemoryUsage.Component.values()) {
+            bytes.put(component.getKey(), usage == null ? 0 : usage.getBytes(component));
+        }
+        return bytes;
+    }
+
+    @Override public long getTotalEstimatedBytes() {
+        WorldMemoryUsage usage = this.usage;
+        return usage == null ? 0 : usage.getTotalBytes();
+    }
+
+    @Override public int getLoadedCubes() {
+        WorldMemoryUsage usage = this.usage;
+        return usage == null ? 0 : usage.getLoadedCubes();
+    }
+
+    @Override public int getLoadedColumns() {
+        WorldMemoryUsage usage = this.usage;
+        return usage == null ? 0 : usage.getLoadedColumns();
+    }
+
+    @Override public int getPendingSaves() {
+        WorldMemoryUsage usage = this.usage;
+        return usage == null ? 0 : usage.getPendingSaves();
+    }
+
+    @Override public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.server;
+
+import io.github.opencubicchunks.cubicchunks.api.util.XYZMap;
+import io.github.opencubicchunks.cubicchunks.api.util.XZMap;
+import io.github.opencubicchunks.cubicchunks.api.world.IColumn;
+import io.github.opencubicchunks.cubicchunks.api.world.IHeightMap;
+import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
+import io.github.opencubicchunks.cubicchunks.core.asm.mixin.core.common.IBlockStateContainer;
+import io.github.opencubicchunks.cubicchunks.core.lighting.BlockLightEngine;
+import io.github.opencubicchunks.cubicchunks.core.lighting.UniformSkyLight;
+import io.github.opencubicchunks.cubicchunks.core.server.chunkio.ICubeIO;
+import io.github.opencubicchunks.cubicchunks.core.server.chunkio.RegionCubeIO;
+import io.github.opencubicchunks.cubicchunks.core.world.ServerHeightMap;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.SharedCubeStorage;
+import it.unimi.dsi.fastutil.HashCommon;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagString;
+import net.minecraft.util.BitArray;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraftforge.common.util.Constants;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Estimated heap usage of the cubic chunks data structures of one world, split into components.
+ * <p>
+ * Sizes are computed from the shape of each structure, assuming a 64-bit JVM with compressed references, instead of
+ * being measured. Objects that aren't owned by cubic chunks, like entities and tile entities, aren't included. When
+ * there are many loaded cubes only a part of them is walked and the result is scaled up, the save queue is always
+ * estimated from a small sample.
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class WorldMemoryUsage {
+
+    public enum Component {
+        CUBES("cubes"),
+        BLOCK_DATA("blockData"),
+        LIGHT("light"),
+        COLUMNS("columns"),
+        HEIGHT_MAPS("heightMaps"),
+        LOOKUP_TABLES("lookupTables"),
+        WATCHERS("watchers"),
+        SAVE_QUEUE("saveQueue");
+
+        private final String key;
+
+        Component(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final int MAX_WALKED_CUBES = 16384;
+    private static final int MAX_SAVE_SAMPLES = 32;
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    /**
+     * Cube object with its position, tickets, entity container, tile entity map and queue, not counting entities and
+     * tile entities themselves. Rough estimate for a cube without entities, the real size varies.
+     */
+    private static final long CUBE = 1024;
+    private static final long CUBE_LIGHT_UPDATE_INFO = object(2 * REFERENCE + 1) + array(Cube.SIZE * Cube.SIZE, 1);
+    private static final long EXTENDED_BLOCK_STORAGE = object(3 * Integer.BYTES + 3 * REFERENCE);
+    private static final long BLOCK_STATE_CONTAINER = object(2 * REFERENCE + Integer.BYTES);
+    private static final long BIT_ARRAY = object(REFERENCE + 2 * Integer.BYTES + Long.BYTES);
+    private static final long NIBBLE_ARRAY = object(REFERENCE) + array(Cube.SIZE * Cube.SIZE * Cube.SIZE / 2, 1);
+    /**
+     * Vanilla Chunk with its height maps, biome array and per-section entity lists, and the cube map added by cubic
+     * chunks. Rough estimate, like {@link #CUBE}.
+     */
+    private static final long COLUMN = 7 * 1024;
+    private static final long SERVER_HEIGHT_MAP = object(4 * REFERENCE + 2 * Integer.BYTES)
+            + array(Cube.SIZE * Cube.SIZE, Integer.BYTES) + array(Cube.SIZE * Cube.SIZE + 1, Integer.BYTES) + object(REFERENCE);
+    private static final long CUBE_WATCHER = 384;
+    private static final long COLUMN_WATCHER = 512;
+    /**
+     * Entry in a {@link io.github.opencubicchunks.cubicchunks.core.util.DistanceBucketQueue}: a bucket list slot and
+     * a hash map slot with the position.
+     */
+    private static final long QUEUED_WATCHER = 2 * REFERENCE + Long.BYTES * 2;
+    /**
+     * Entry in the {@link java.util.LinkedHashSet} of queued block light updates: the linked map entry and the
+     * position it holds.
+     */
+    private static final long QUEUED_BLOCK_LIGHT_UPDATE = object(5 * REFERENCE + Integer.BYTES) + object(3 * Integer.BYTES);
+
+    private final long[] bytes;
+    private final int loadedCubes;
+    private final int loadedColumns;
+    private final int cubeWatchers;
+    private final int columnWatchers;
+    private final int pendingSaves;
+    private final boolean sampled;
+
+    private WorldMemoryUsage(long[] bytes, int loadedCubes, int loadedColumns, int cubeWatchers, int columnWatchers, int pendingSaves,
+            boolean sampled) {
+        this.bytes = bytes;
+        this.loadedCubes = loadedCubes;
+        this.loadedColumns = loadedColumns;
+        this.cubeWatchers = cubeWatchers;
+        this.columnWatchers = columnWatchers;
+        this.pendingSaves = pendingSaves;
+        this.sampled = sampled;
+    }
+
+    /**
+     * Estimates the memory usage of the given cubic chunks world. Must be called from the server thread.
+     */
+    public static WorldMemoryUsage estimate(WorldServer world) {
+        long[] bytes = new long[Component.values().length];
+        ICubicWorldInternal.Server cubicWorld = (ICubicWorldInternal.Server) world;
+        CubeProviderServer cubeCache = cubicWorld.getCubeCache();
+
+        // cubes, every n-th one if there are too many
+        int loadedCubes = cubeCache.getLoadedCubeCount();
+        int stride = Math.max(1, (loadedCubes + MAX_WALKED_CUBES - 1) / MAX_WALKED_CUBES);
+        long cubeBytes = 0, blockDataBytes = 0, lightBytes = 0;
+        int walked = 0;
+        Iterator<Cube> cubes = cubeCache.cubesIterator();
+        for (int i = 0; cubes.hasNext(); i++) {
+            Cube cube = cubes.next();
+            if (i % stride != 0) {
+                continue;
+            }
+            walked++;
+            cubeBytes += CUBE;
+            lightBytes += CUBE_LIGHT_UPDATE_INFO;
+            ExtendedBlockStorage ebs = cube.getStorage();
+            if (ebs != null) {
+                blockDataBytes += EXTENDED_BLOCK_STORAGE + blockData((IBlockStateContainer) ebs.getData());
+                lightBytes += light(ebs.getBlockLight()) + light(ebs.getSkyLight());
+            }
+        }
+        double scale = walked == 0 ? 0 : (double) loadedCubes / walked;
+        bytes[Component.CUBES.ordinal()] = (long) (cubeBytes * scale);
+        bytes[Component.BLOCK_DATA.ordinal()] = (long) (blockDataBytes * scale);
+        bytes[Component.LIGHT.ordinal()] = (long) (lightBytes * scale);
+
+        // queued light updates
+        LightUpdateScheduler lightScheduler = cubeCache.getLightUpdateScheduler();
+        BlockLightEngine blockLightEngine = cubicWorld.getLightingManager().getBlockLightEngine();
+        int queuedBlockLight = blockLightEngine.getQueuedCount();
+        bytes[Component.LIGHT.ordinal()] += array(lightScheduler.getCapacity(), REFERENCE) + array(lightScheduler.getCapacity(), Double.BYTES)
+                + hashTable(queuedBlockLight, REFERENCE) + queuedBlockLight * QUEUED_BLOCK_LIGHT_UPDATE;
+
+        // columns and their height maps
+        int loadedColumns = 0;
+        Iterator<Chunk> columns = cubeCache.columnsIterator();
+        while (columns.hasNext()) {
+            IHeightMap heightMap = ((IColumn) columns.next()).getOpacityIndex();
+            loadedColumns++;
+            bytes[Component.COLUMNS.ordinal()] += COLUMN;
+            if (heightMap instanceof ServerHeightMap) {
+                int segments = ((ServerHeightMap) heightMap).getSegmentCapacity();
+                bytes[Component.HEIGHT_MAPS.ordinal()] += SERVER_HEIGHT_MAP + array(segments, Integer.BYTES);
+            }
+        }
+
+        // cube and column lookup, unload queues and forced cubes
+        bytes[Component.LOOKUP_TABLES.ordinal()] = xyzMap(cubeCache.getCubeMapCapacity())
+                + hashTable(cubeCache.loadedChunks.size(), Long.BYTES + REFERENCE)
+                + hashTable(cubeCache.getCubeUnloadCandidates().size(), REFERENCE + 3 * Long.BYTES)
+                + hashTable(cubeCache.getColumnUnloadCandidates().size(), REFERENCE + 3 * Long.BYTES)
+                + xyzMap(cubicWorld.getForcedCubes().getCapacity())
+                + xzMap(cubicWorld.getForcedColumns().getCapacity());
+
+        // player watchers
+        PlayerCubeMap playerCubeMap = (PlayerCubeMap) world.getPlayerChunkMap();
+        XYZMap<CubeWatcher> cubeWatchers = playerCubeMap.getCubeWatchers();
+        XZMap<ColumnWatcher> columnWatchers = playerCubeMap.getColumnWatchers();
+        bytes[Component.WATCHERS.ordinal()] = cubeWatchers.getSize() * CUBE_WATCHER + xyzMap(cubeWatchers.getCapacity())
+                + columnWatchers.getSize() * COLUMN_WATCHER + xzMap(columnWatchers.getCapacity())
+                + playerCubeMap.getQueuedWatcherCount() * QUEUED_WATCHER;
+
+        // data waiting to be written to disk
+        ICubeIO cubeIO = cubeCache.getCubeIO();
+        int pendingSaves = cubeIO.getPendingCubeCount() + cubeIO.getPendingColumnCount();
+        if (cubeIO instanceof RegionCubeIO) {
+            RegionCubeIO regionIO = (RegionCubeIO) cubeIO;
+            bytes[Component.SAVE_QUEUE.ordinal()] = averageNbt(regionIO.getPendingCubeSamples(MAX_SAVE_SAMPLES)) * cubeIO.getPendingCubeCount()
+                    + averageNbt(regionIO.getPendingColumnSamples(MAX_SAVE_SAMPLES)) * cubeIO.getPendingColumnCount();
+        }
+
+        return new WorldMemoryUsage(bytes, loadedCubes, loadedColumns, cubeWatchers.getSize(), columnWatchers.getSize(), pendingSaves,
+                stride > 1 || pendingSaves > 0);
+    }
+
+    public long getBytes(Component component) {
+        return bytes[component.ordinal()];
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long b : bytes) {
+            total += b;
+        }
+        return total;
+    }
+
+    public int getLoadedCubes() {
+        return loadedCubes;
+    }
+
+    public int getLoadedColumns() {
+        return loadedColumns;
+    }
+
+    public int getCubeWatchers() {
+        return cubeWatchers;
+    }
+
+    public int getColumnWatchers() {
+        return columnWatchers;
+    }
+
+    public int getPendingSaves() {
+        return pendingSaves;
+    }
+
+    /**
+     * @return true if some components were estimated from a sample instead of walking everything
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    private static long blockData(IBlockStateContainer data) {
+        int bits = data.getBits();
+        long size = BLOCK_STATE_CONTAINER;
+        if (bits <= 4) {
+            // linear palette
+            size += object(2 * REFERENCE + Integer.BYTES) + array(1 << bits, REFERENCE);
+        } else if (bits <= 8) {
+            // hash map palette, backed by an IntIdentityHashBiMap
+            size += object(2 * REFERENCE + Integer.BYTES) + object(3 * REFERENCE + 2 * Integer.BYTES)
+                    + 2 * array(1 << bits, REFERENCE) + array(1 << bits, Integer.BYTES);
+        } // otherwise the global palette is used
+        BitArray storage = data.getStorage();
+        if (!SharedCubeStorage.isShared(storage)) {
+            size += BIT_ARRAY + array(storage.getBackingLongArray().length, Long.BYTES);
+        }
+        return size;
+    }
+
+    private static long light(@Nullable NibbleArray array) {
+        if (array == null || UniformSkyLight.isFullSkyLight(array) || SharedCubeStorage.isZeroLight(array)) {
+            return 0;
+        }
+        return NIBBLE_ARRAY;
+    }
+
+    private static long averageNbt(List<NBTTagCompound> samples) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        long total = 0;
+        for (NBTTagCompound nbt : samples) {
+            total += nbt(nbt);
+        }
+        return total / samples.size();
+    }
+
+    private static long nbt(NBTBase tag) {
+        switch (tag.getId()) {
+            case Constants.NBT.TAG_COMPOUND: {
+                NBTTagCompound compound = (NBTTagCompound) tag;
+                long size = object(REFERENCE) + hashTable(compound.getSize(), REFERENCE);
+                for (String key : compound.getKeySet()) {
+                    size += object(3 * REFERENCE + Integer.BYTES) + string(key) + nbt(compound.getTag(key));
+                }
+                return size;
+            }
+            case Constants.NBT.TAG_LIST: {
+                NBTTagList list = (NBTTagList) tag;
+                long size = object(2 * REFERENCE + 1) + object(REFERENCE + Integer.BYTES) + array(list.tagCount(), REFERENCE);
+                for (int i = 0; i < list.tagCount(); i++) {
+                    size += nbt(list.get(i));
+                }
+                return size;
+            }
+            case Constants.NBT.TAG_BYTE_ARRAY:
+                return object(REFERENCE) + array(((NBTTagByteArray) tag).getByteArray().length, 1);
+            case Constants.NBT.TAG_INT_ARRAY:
+                return object(REFERENCE) + array(((NBTTagIntArray) tag).getIntArray().length, Integer.BYTES);
+            case Constants.NBT.TAG_STRING:
+                return object(REFERENCE) + string(((NBTTagString) tag).getString());
+            default:
+                return object(Long.BYTES);
+        }
+    }
+
+    private static long string(String value) {
+        return object(REFERENCE + Integer.BYTES) + array(value.length(), Character.BYTES);
+    }
+
+    private static long xyzMap(int capacity) {
+        return object(3 * REFERENCE + 4 * Integer.BYTES) + 2 * array(capacity, REFERENCE) + array(capacity, Integer.BYTES);
+    }
+
+    private static long xzMap(int capacity) {
+        return object(REFERENCE + 4 * Integer.BYTES) + array(capacity, REFERENCE);
+    }
+
+    /**
+     * Open addressing hash table with the given amount of entries, like the ones in fastutil and {@link java.util.HashMap}
+     */
+    private static long hashTable(int size, int bytesPerSlot) {
+        return object(4 * REFERENCE + 4 * Integer.BYTES) + align(ARRAY_HEADER + (long) HashCommon.arraySize(size, 0.75f) * bytesPerSlot);
+    }
+
+    private static long object(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    private static long array(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -32,9 +32,11 @@ import io.github.opencubicchunks.cubicchunks.api.world.IHeightMap;
 import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.core.asm.mixin.ICubicWorldInternal;
 import io.github.opencubicchunks.cubicchunks.core.lighting.LightingManager;
+import io.github.opencubicchunks.cubicchunks.core.lighting.UniformSkyLight;
 import io.github.opencubicchunks.cubicchunks.core.world.ClientHeightMap;
 import io.github.opencubicchunks.cubicchunks.core.world.ServerHeightMap;
 import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.SharedCubeStorage;
 import mcp.MethodsReturnNonnullByDefault;
 import net.minecraft.block.Block;
 import net.minecraft.nbt.NBTTagCompound;
@@ -202,10 +204,11 @@ public class IONbtReader {
             ebs.setBlockLight(new NibbleArray(nbt.getByteArray("BlockLight")));
 
             if (world.provider.hasSkyLight()) {
-                ebs.setSkyLight(new NibbleArray(nbt.getByteArray("SkyLight")));
+                ebs.setSkyLight(UniformSkyLight.wrap(nbt.getByteArray("SkyLight")));
             }
 
             ebs.recalculateRefCounts();
+            SharedCubeStorage.compact(ebs);
             cube.setStorage(ebs);
         }
     }
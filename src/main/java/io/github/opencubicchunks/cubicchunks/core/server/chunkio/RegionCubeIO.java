@@ -48,7 +48,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -87,12 +89,19 @@ public class RegionCubeIO implements ICubeIO {
                 path = path.resolve(prov.getSaveFolder());
             }
         } else {
-            path = Paths.get(".").toAbsolutePath().resolve("clientCache").resolve("DIM" + world.provider.getDimension());
+            path = getClientCachePath(world.provider.getDimension());
         }
 
         this.save = SaveCubeColumns.create(path);
     }
 
+    /**
+     * @return the directory used for cube data cached by the client in the given dimension
+     */
+    public static Path getClientCachePath(int dimension) {
+        return Paths.get(".").toAbsolutePath().resolve("clientCache").resolve("DIM" + dimension);
+    }
+
     @Override public void flush() throws IOException {
         if (columnsToSave.size() != 0 || cubesToSave.size() != 0) {
             LOGGER.error("Attempt to flush() CubeIO when there are remaining cubes to save! Saving remaining cubes to avoid corruption");
@@ -208,6 +217,28 @@ public class RegionCubeIO implements ICubeIO {
         return cubesToSave.size();
     }
 
+    /**
+     * @return up to maxCount of the cubes waiting to be saved, used to estimate the memory taken by the save queue
+     */
+    public List<NBTTagCompound> getPendingCubeSamples(int maxCount) {
+        return getSamples(cubesToSave, maxCount);
+    }
+
+    /**
+     * @return up to maxCount of the columns waiting to be saved, used to estimate the memory taken by the save queue
+     */
+    public List<NBTTagCompound> getPendingColumnSamples(int maxCount) {
+        return getSamples(columnsToSave, maxCount);
+    }
+
+    private static List<NBTTagCompound> getSamples(ConcurrentMap<?, ? extends SaveEntry<?>> toSave, int maxCount) {
+        List<NBTTagCompound> samples = new ArrayList<>();
+        for (Iterator<? extends SaveEntry<?>> it = toSave.values().iterator(); it.hasNext() && samples.size() < maxCount; ) {
+            samples.add(it.next().nbt);
+        }
+        return samples;
+    }
+
     @Override
     public boolean writeNextIO() {
         try {
@@ -345,6 +345,13 @@ public class AsyncWorldIOExecutor {
         cubeThreadPool.setCorePoolSize(Math.max(BASE_THREADS, players / PLAYERS_PER_THREAD));
     }
 
+    /**
+     * @return the amount of cube and column loads queued or in progress, in all worlds
+     */
+    public static int getQueuedLoadCount() {
+        return cubeTasks.size() + columnTasks.size();
+    }
+
     public static boolean canDropColumn(World world, int x, int z) {
         return !loadingCubesColumnMap.containsKey(new QueuedColumn(x, z, world));
     }
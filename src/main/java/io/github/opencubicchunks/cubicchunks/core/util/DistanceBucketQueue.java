@@ -0,0 +1,257 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.util;
+
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Queue of watchers ordered by distance to the nearest player, which never needs a full sort.
+ * <p>
+ * Elements are kept in buckets by a priority computed once per element in {@link #updatePriorities()}, instead of on
+ * every comparison. Elements whose priority didn't change stay where they are. Elements within a bucket are in no
+ * particular order. Removed elements are only marked as removed and cleaned up later, so removing elements while
+ * iterating is allowed.
+ */
+@SuppressWarnings("unchecked")
+public class DistanceBucketQueue<T> implements Iterable<T> {
+
+    /**
+     * Bucket for elements added with {@link #appendToStart(Object)}, iterated before all others
+     */
+    private static final int FIRST_BUCKET = 0;
+
+    private final ToIntFunction<T> priority;
+    private final int maxPriority;
+
+    /**
+     * Buckets with elements of the same priority, shifted by one. Removed elements are null.
+     */
+    private final ObjectArrayList<ObjectArrayList<T>> buckets = new ObjectArrayList<>();
+    /**
+     * Bucket index in the high 32 bits and index within the bucket in the low 32 bits, for each element
+     */
+    private final Object2LongMap<T> positions = new Object2LongOpenHashMap<>();
+    /**
+     * Amount of removed elements that weren't cleaned up yet
+     */
+    private int removed = 0;
+
+    /**
+     * @param priority function returning the priority of an element, lower values are iterated first
+     * @param maxPriority the highest priority, higher values are clamped to it
+     */
+    public DistanceBucketQueue(ToIntFunction<T> priority, int maxPriority) {
+        this.priority = priority;
+        this.maxPriority = maxPriority;
+        this.positions.defaultReturnValue(-1);
+    }
+
+    public boolean isEmpty() {
+        return positions.isEmpty();
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    public boolean contains(T element) {
+        return positions.containsKey(element);
+    }
+
+    /**
+     * Adds the element before all other elements, until the next {@link #updatePriorities()}.
+     *
+     * @throws IllegalArgumentException if the element is already in the queue
+     */
+    public void appendToStart(T element) {
+        add(element, FIRST_BUCKET);
+    }
+
+    /**
+     * Adds the element into the bucket for its current priority.
+     *
+     * @throws IllegalArgumentException if the element is already in the queue
+     */
+    public void appendToEnd(T element) {
+        add(element, getBucket(element));
+    }
+
+    public void remove(T element) {
+        long pos = positions.removeLong(element);
+        if (pos >= 0) {
+            buckets.get((int) (pos >>> 32)).set((int) pos, null);
+            removed++;
+        }
+    }
+
+    /**
+     * Removes all elements matching the predicate.
+     */
+    public void removeIf(Predicate<T> predicate) {
+        for (Iterator<T> it = iterator(); it.hasNext(); ) {
+            if (predicate.test(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Computes the priority of each element once and moves elements whose priority changed into the right bucket.
+     * Also cleans up removed elements. Must not be called while iterating.
+     */
+    public void updatePriorities() {
+        for (int b = 0; b < buckets.size(); b++) {
+            ObjectArrayList<T> bucket = buckets.get(b);
+            for (int i = 0; i < bucket.size(); i++) {
+                T element = bucket.get(i);
+                if (element == null) {
+                    continue;
+                }
+                int newBucket = getBucket(element);
+                if (newBucket != b) {
+                    bucket.set(i, null);
+                    positions.removeLong(element);
+                    add(element, newBucket);
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Cleans up removed elements if there are more of them than elements in the queue. Must not be called while
+     * iterating.
+     */
+    public void compactIfNeeded() {
+        if (removed > positions.size()) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        for (int b = 0; b < buckets.size(); b++) {
+            compact(b);
+        }
+        removed = 0;
+    }
+
+    private void add(T element, int bucketIndex) {
+        if (element == null) {
+            throw new NullPointerException("This queue does not allow null elements.");
+        }
+        if (positions.containsKey(element)) {
+            throw new IllegalArgumentException("Element " + element + " is already in the queue");
+        }
+        while (buckets.size() <= bucketIndex) {
+            buckets.add(new ObjectArrayList<>());
+        }
+        ObjectArrayList<T> bucket = buckets.get(bucketIndex);
+        positions.put(element, (long) bucketIndex << 32 | bucket.size());
+        bucket.add(element);
+    }
+
+    private void compact(int bucketIndex) {
+        ObjectArrayList<T> bucket = buckets.get(bucketIndex);
+        int size = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            T element = bucket.get(i);
+            if (element != null) {
+                if (size != i) {
+                    bucket.set(size, element);
+                    positions.put(element, (long) bucketIndex << 32 | size);
+                }
+                size++;
+            }
+        }
+        bucket.size(size);
+    }
+
+    private int getBucket(T element) {
+        int p = priority.applyAsInt(element);
+        return Math.max(0, Math.min(p, maxPriority)) + 1;
+    }
+
+    /**
+     * Elements added while iterating may or may not be returned by the iterator.
+     */
+    @Nonnull @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+
+            int bucket = 0;
+            int index = 0;
+            @Nullable T prev = null;
+            @Nullable T next = null;
+
+            private void peekNext() {
+                while (next == null && bucket < buckets.size()) {
+                    ObjectArrayList<T> list = buckets.get(bucket);
+                    if (index >= list.size()) {
+                        bucket++;
+                        index = 0;
+                        continue;
+                    }
+                    next = list.get(index++);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                peekNext();
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                peekNext();
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                prev = next;
+                next = null;
+                return prev;
+            }
+
+            @Override
+            public void remove() {
+                if (prev == null) {
+                    throw new IllegalStateException();
+                }
+                DistanceBucketQueue.this.remove(prev);
+                prev = null;
+            }
+        };
+    }
+}
@@ -234,6 +234,10 @@ public class FastCubeBlockAccess implements ILightBlockAccess {
                 CubePos.fromBlockCoords(startPos), CubePos.fromBlockCoords(endPos));
     }
 
+    public static FastCubeBlockAccess forCubeRegion(World world, ICubeProviderInternal prov, CubePos start, CubePos end) {
+        return new FastCubeBlockAccess(world, prov, start, end);
+    }
+
     private interface GetLoadedChunksProxy {
 
         Iterable<Chunk> getLoadedChunks(ICubeProvider prov);
@@ -261,8 +265,7 @@ public class FastCubeBlockAccess implements ILightBlockAccess {
 
     @Override
     public void markEdgeNeedLightUpdate(BlockPos pos, EnumSkyBlock type) {
-        if (type == EnumSkyBlock.BLOCK)
-            return;
+        // the edge flags are used for both light types, the relighter fixes both
         int x = pos.getX();
         int y = pos.getY();
         int z = pos.getZ();
@@ -58,13 +58,19 @@ public class TicketList {
         if (cube == null) {
             return;
         }
-        if (tickets.remove(ticket) && ticket.shouldTick()) {
+        if (!tickets.remove(ticket)) {
+            return;
+        }
+        if (ticket.shouldTick()) {
             tickRefs--;
             assert tickRefs >= 0;
             if (tickRefs == 0) {
                 ((ICubicWorldInternal.Server) cube.getWorld()).removeForcedCube(cube);
             }
         }
+        if (tickets.isEmpty()) {
+            ((ICubicWorldInternal.Server) cube.getWorld()).getCubeCache().queueUnloadCandidate(cube);
+        }
     }
 
     /**
@@ -30,6 +30,7 @@ import net.minecraft.util.math.ChunkPos;
 
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -42,6 +43,35 @@ public abstract class CubeSelector {
     public abstract void findChanged(CubePos oldAddress, CubePos newAddress, int horizontalViewDistance, int verticalViewDistance,
             Set<CubePos> cubesToRemove, Set<CubePos> cubesToLoad, Set<ChunkPos> columnsToRemove, Set<ChunkPos> columnsToLoad);
 
+    /**
+     * Finds cubes and columns that entered or left the view when moving from oldPos to newPos, without allocating
+     * positions. Only the changed positions are visited. Each position is reported as an offset packed with
+     * {@link #packOffset(int, int, int)}: positions that left the view are relative to oldPos, and positions that
+     * entered the view are relative to newPos. Column offsets always have Y offset 0.
+     */
+    public abstract void findChanged(CubePos oldPos, CubePos newPos, int horizontalViewDistance, int verticalViewDistance,
+            LongConsumer cubesToRemove, LongConsumer cubesToLoad, LongConsumer columnsToRemove, LongConsumer columnsToLoad);
+
     public abstract void findAllUnloadedOnViewDistanceDecrease(CubePos playerAddress, int oldHorizontalViewDistance, int newHorizontalViewDistance,
             int oldVerticalViewDistance, int newVerticalViewDistance, Set<CubePos> cubesToUnload, Set<ChunkPos> columnsToUnload);
+
+    /**
+     * Packs offset from a view center. Each offset must fit in a short, which is always the case for offsets within
+     * view distance.
+     */
+    public static long packOffset(int dx, int dy, int dz) {
+        return (dx & 0xFFFFL) << 32 | (dy & 0xFFFFL) << 16 | dz & 0xFFFFL;
+    }
+
+    public static int unpackOffsetX(long packed) {
+        return (short) (packed >>> 32);
+    }
+
+    public static int unpackOffsetY(long packed) {
+        return (short) (packed >>> 16);
+    }
+
+    public static int unpackOffsetZ(long packed) {
+        return (short) packed;
+    }
 }
@@ -30,6 +30,7 @@ import net.minecraft.util.math.ChunkPos;
 
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -97,6 +98,51 @@ public class CuboidalCubeSelector extends CubeSelector {
         assert columnsToLoad.stream().allMatch(pos -> !columnsToRemove.contains(pos)) : "columnsToRemove contains element from columnsToLoad!";
     }
 
+    @Override
+    public void findChanged(CubePos oldPos, CubePos newPos,
+            int horizontalViewDistance, int verticalViewDistance,
+            LongConsumer cubesToRemove, LongConsumer cubesToLoad,
+            LongConsumer columnsToRemove, LongConsumer columnsToLoad) {
+        // what was left behind is the old volume without the new one, seen from the old position
+        findDifference(oldPos, newPos, horizontalViewDistance, verticalViewDistance, cubesToRemove, columnsToRemove);
+        findDifference(newPos, oldPos, horizontalViewDistance, verticalViewDistance, cubesToLoad, columnsToLoad);
+    }
+
+    /**
+     * Visits all positions within view distance from center that aren't within view distance from other, as offsets
+     * from center. Only iterates over the slabs that differ, and over a single layer of columns in the overlapping part.
+     */
+    private void findDifference(CubePos center, CubePos other, int horizontal, int vertical,
+            LongConsumer cubes, LongConsumer columns) {
+        // bounds of the other volume, relative to center
+        int minX = other.getX() - center.getX() - horizontal;
+        int maxX = other.getX() - center.getX() + horizontal;
+        int minY = other.getY() - center.getY() - vertical;
+        int maxY = other.getY() - center.getY() + vertical;
+        int minZ = other.getZ() - center.getZ() - horizontal;
+        int maxZ = other.getZ() - center.getZ() + horizontal;
+
+        for (int dx = -horizontal; dx <= horizontal; dx++) {
+            boolean xOutside = dx < minX || dx > maxX;
+            for (int dz = -horizontal; dz <= horizontal; dz++) {
+                if (xOutside || dz < minZ || dz > maxZ) {
+                    columns.accept(packOffset(dx, 0, dz));
+                    for (int dy = -vertical; dy <= vertical; dy++) {
+                        cubes.accept(packOffset(dx, dy, dz));
+                    }
+                    continue;
+                }
+                // the column is in both volumes, only the cubes above and below the other volume differ
+                for (int dy = -vertical, end = Math.min(vertical, minY - 1); dy <= end; dy++) {
+                    cubes.accept(packOffset(dx, dy, dz));
+                }
+                for (int dy = Math.max(-vertical, maxY + 1); dy <= vertical; dy++) {
+                    cubes.accept(packOffset(dx, dy, dz));
+                }
+            }
+        }
+    }
+
     @Override
     public void findAllUnloadedOnViewDistanceDecrease(CubePos playerPos,
             int oldHorizontalViewDistance, int newHorizontalViewDistance,
@@ -0,0 +1,49 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.visibility;
+
+import mcp.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Selects cubes within an ellipsoid with horizontal semi-axes equal to horizontal view distance and vertical semi-axis
+ * equal to vertical view distance.
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class EllipsoidalCubeSelector extends RadialCubeSelector {
+
+    @Override
+    protected int getVerticalExtent(int dx, int dz, int horizontalViewDistance, int verticalViewDistance) {
+        // semi-axes extended by 0.5, so that the cubes on the axes are included the same way as in a cuboid
+        double horizontalRadius = horizontalViewDistance + 0.5;
+        double remaining = 1 - (dx * dx + dz * dz) / (horizontalRadius * horizontalRadius);
+        if (remaining < 0) {
+            return -1;
+        }
+        return Math.min(verticalViewDistance, (int) ((verticalViewDistance + 0.5) * Math.sqrt(remaining)));
+    }
+}
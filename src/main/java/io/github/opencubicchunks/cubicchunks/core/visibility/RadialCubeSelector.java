@@ -0,0 +1,142 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.visibility;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Base class for cube selectors with a view volume that is symmetric around the vertical axis, described by how far
+ * up and down it reaches in each column.
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public abstract class RadialCubeSelector extends CubeSelector {
+
+    /**
+     * Returns the vertical extent of the view volume in the column at the given offset from the view center. Cubes
+     * with Y offset from -extent to extent (inclusive) are visible in that column.
+     *
+     * @param dx X offset of the column, within horizontal view distance
+     * @param dz Z offset of the column, within horizontal view distance
+     * @return the vertical extent, at most verticalViewDistance, or -1 if the column isn't visible
+     */
+    protected abstract int getVerticalExtent(int dx, int dz, int horizontalViewDistance, int verticalViewDistance);
+
+    @Override
+    public void forAllVisibleFrom(CubePos cubePos, int horizontalViewDistance, int verticalViewDistance, Consumer<CubePos> consumer) {
+        int cubeX = cubePos.getX();
+        int cubeY = cubePos.getY();
+        int cubeZ = cubePos.getZ();
+        for (int dx = -horizontalViewDistance; dx <= horizontalViewDistance; dx++) {
+            for (int dz = -horizontalViewDistance; dz <= horizontalViewDistance; dz++) {
+                int extent = getVerticalExtent(dx, dz, horizontalViewDistance, verticalViewDistance);
+                for (int dy = -extent; dy <= extent; dy++) {
+                    consumer.accept(new CubePos(cubeX + dx, cubeY + dy, cubeZ + dz));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void findChanged(CubePos oldPos, CubePos newPos, int horizontalViewDistance, int verticalViewDistance,
+            Set<CubePos> cubesToRemove, Set<CubePos> cubesToLoad, Set<ChunkPos> columnsToRemove, Set<ChunkPos> columnsToLoad) {
+        findChanged(oldPos, newPos, horizontalViewDistance, verticalViewDistance,
+                cubes(oldPos, cubesToRemove), cubes(newPos, cubesToLoad), columns(oldPos, columnsToRemove), columns(newPos, columnsToLoad));
+    }
+
+    @Override
+    public void findChanged(CubePos oldPos, CubePos newPos, int horizontalViewDistance, int verticalViewDistance,
+            LongConsumer cubesToRemove, LongConsumer cubesToLoad, LongConsumer columnsToRemove, LongConsumer columnsToLoad) {
+        findDifference(oldPos, horizontalViewDistance, verticalViewDistance,
+                newPos, horizontalViewDistance, verticalViewDistance, cubesToRemove, columnsToRemove);
+        findDifference(newPos, horizontalViewDistance, verticalViewDistance,
+                oldPos, horizontalViewDistance, verticalViewDistance, cubesToLoad, columnsToLoad);
+    }
+
+    @Override
+    public void findAllUnloadedOnViewDistanceDecrease(CubePos playerPos,
+            int oldHorizontalViewDistance, int newHorizontalViewDistance,
+            int oldVerticalViewDistance, int newVerticalViewDistance,
+            Set<CubePos> cubesToUnload, Set<ChunkPos> columnsToUnload) {
+        findDifference(playerPos, oldHorizontalViewDistance, oldVerticalViewDistance,
+                playerPos, newHorizontalViewDistance, newVerticalViewDistance,
+                cubes(playerPos, cubesToUnload), columns(playerPos, columnsToUnload));
+    }
+
+    /**
+     * Visits all positions in the view volume around center that aren't in the view volume around other, as offsets
+     * from center packed with {@link #packOffset(int, int, int)}.
+     */
+    private void findDifference(CubePos center, int horizontal, int vertical,
+            CubePos other, int otherHorizontal, int otherVertical,
+            LongConsumer cubes, LongConsumer columns) {
+        int otherX = other.getX() - center.getX();
+        int otherY = other.getY() - center.getY();
+        int otherZ = other.getZ() - center.getZ();
+
+        for (int dx = -horizontal; dx <= horizontal; dx++) {
+            for (int dz = -horizontal; dz <= horizontal; dz++) {
+                int extent = getVerticalExtent(dx, dz, horizontal, vertical);
+                if (extent < 0) {
+                    continue;
+                }
+                int otherDx = dx - otherX;
+                int otherDz = dz - otherZ;
+                int otherExtent = Math.abs(otherDx) > otherHorizontal || Math.abs(otherDz) > otherHorizontal ? -1
+                        : getVerticalExtent(otherDx, otherDz, otherHorizontal, otherVertical);
+                if (otherExtent < 0) {
+                    columns.accept(packOffset(dx, 0, dz));
+                    for (int dy = -extent; dy <= extent; dy++) {
+                        cubes.accept(packOffset(dx, dy, dz));
+                    }
+                    continue;
+                }
+                // the column is in both volumes, only the cubes above and below the other volume differ
+                for (int dy = -extent, end = Math.min(extent, otherY - otherExtent - 1); dy <= end; dy++) {
+                    cubes.accept(packOffset(dx, dy, dz));
+                }
+                for (int dy = Math.max(-extent, otherY + otherExtent + 1); dy <= extent; dy++) {
+                    cubes.accept(packOffset(dx, dy, dz));
+                }
+            }
+        }
+    }
+
+    private static LongConsumer cubes(CubePos center, Set<CubePos> out) {
+        return packed -> out.add(center.add(unpackOffsetX(packed), unpackOffsetY(packed), unpackOffsetZ(packed)));
+    }
+
+    private static LongConsumer columns(CubePos center, Set<ChunkPos> out) {
+        return packed -> out.add(new ChunkPos(center.getX() + unpackOffsetX(packed), center.getZ() + unpackOffsetZ(packed)));
+    }
+}
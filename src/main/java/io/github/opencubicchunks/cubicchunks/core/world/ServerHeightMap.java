@@ -35,6 +35,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -63,17 +64,32 @@ public class ServerHeightMap implements IHeightMap {
     @Nonnull private final HeightMap ymax;
 
     /**
-     * Array containing an array of segments for each x/z position in a column.
+     * Segments of all block columns, packed into one array. Segments of block column i are stored between
+     * segmentOffsets[i] (inclusive) and segmentOffsets[i + 1] (exclusive), unused entries at the end are
+     * {@link #NONE_SEGMENT}. Block columns without segments rely only on ymin and ymax.
      */
-    @Nonnull private final int[][] segments;
+    @Nonnull private int[] segmentData;
+
+    /**
+     * Offset table for {@link #segmentData}. It has one more entry than there are block columns, the last one is the
+     * amount of used entries in segmentData.
+     */
+    @Nonnull private final int[] segmentOffsets;
 
     private int heightMapLowest;
 
+    /**
+     * Incremented each time the top block of any block column changes, so that it's possible to tell whether a copy
+     * of the top blocks sent earlier is still up to date.
+     */
+    private int version;
+
     public ServerHeightMap(int[] heightmap) {
         this.ymin = new int[Cube.SIZE * Cube.SIZE];
         this.ymax = new HeightMap(heightmap);
 
-        this.segments = new int[Cube.SIZE * Cube.SIZE][];
+        this.segmentData = new int[0];
+        this.segmentOffsets = new int[Cube.SIZE * Cube.SIZE + 1];
 
         // init to empty
         for (int i = 0; i < Cube.SIZE * Cube.SIZE; i++) {
@@ -89,10 +105,11 @@ public class ServerHeightMap implements IHeightMap {
         return (segmentIndex + 1) % 2;
     }
 
-    private static int getLastSegmentIndex(int[] segments) {
-        for (int i = segments.length - 1; i >= 0; i--) {
-            if (segments[i] != NONE_SEGMENT) {
-                return i;
+    private int getLastSegmentIndex(int xzIndex) {
+        int offset = this.segmentOffsets[xzIndex];
+        for (int i = this.segmentOffsets[xzIndex + 1] - 1; i >= offset; i--) {
+            if (this.segmentData[i] != NONE_SEGMENT) {
+                return i - offset;
             }
         }
         throw new Error("Invalid segments state");
@@ -106,7 +123,7 @@ public class ServerHeightMap implements IHeightMap {
      * @return True if the number of segments is correct.
      */
     private boolean parityCheck(int xzIndex) {
-        return getLastSegmentIndex(segments[xzIndex]) % 2 == 0;
+        return getLastSegmentIndex(xzIndex) % 2 == 0;
     }
 
     // Interface: IHeightMap ----------------------------------------------------------------------------------------
@@ -118,17 +135,59 @@ public class ServerHeightMap implements IHeightMap {
         }
         int xzIndex = getIndex(localX, localZ);
 
+        int oldTopY = this.ymax.get(xzIndex);
+
         // try to stay in no-segments mode as long as we can, this is the simple case
         boolean isOpaque = opacity != 0;
-        if (this.segments[xzIndex] == null) {
+        if (!this.hasSegments(xzIndex)) {
             this.setNoSegments(xzIndex, blockY, isOpaque);
         } else {
             this.setOpacityWithSegments(xzIndex, blockY, isOpaque);
         }
 
+        if (this.ymax.get(xzIndex) != oldTopY) {
+            this.version++;
+        }
         this.heightMapLowest = Coords.NO_HEIGHT;
     }
 
+    @Override
+    public void onOpacityChange(int minBlockY, short[] opaqueMasks) {
+        int maxBlockY = minBlockY + Cube.SIZE - 1;
+        if (maxBlockY > CubicChunks.MAX_BLOCK_Y || minBlockY < CubicChunks.MIN_BLOCK_Y) {
+            IHeightMap.super.onOpacityChange(minBlockY, opaqueMasks);
+            return;
+        }
+        for (int xzIndex = 0; xzIndex < Cube.SIZE * Cube.SIZE; xzIndex++) {
+            int mask = opaqueMasks[xzIndex] & 0xFFFF;
+            // nothing opaque in the range before and after?
+            if (mask == 0 && !this.hasSegments(xzIndex)
+                    && (this.ymin[xzIndex] == Coords.NO_HEIGHT || this.ymin[xzIndex] > maxBlockY || this.ymax.get(xzIndex) < minBlockY)) {
+                continue;
+            }
+            int oldTopY = this.ymax.get(xzIndex);
+            this.mergeOpaqueRange(xzIndex, minBlockY, maxBlockY, mask);
+            if (this.ymax.get(xzIndex) != oldTopY) {
+                this.version++;
+            }
+        }
+        this.heightMapLowest = Coords.NO_HEIGHT;
+    }
+
+    /**
+     * @return the current version of the top block data, changes each time the top block of any block column changes
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the length of the array all segments are stored in, including unused entries at the end
+     */
+    public int getSegmentCapacity() {
+        return this.segmentData.length;
+    }
+
     @Override
     public boolean isOccluded(int localX, int blockY, int localZ) {
         return blockY <= this.getTopBlockY(localX, localZ);
@@ -155,17 +214,16 @@ public class ServerHeightMap implements IHeightMap {
 
         // There are no opacity changes, everything is opaque from ymin to ymax. blockY is between ymin and ymax, thus
         // the next opaque block below blockY is blockY - 1.
-        int[] segments = this.segments[i];
-        if (segments == null) {
+        if (!hasSegments(i)) {
             return blockY - 1;
         }
 
         // binary search for the segment containing blockY
         int mini = 0;
-        int maxi = getLastSegmentIndex(segments);
+        int maxi = getLastSegmentIndex(i);
         while (mini <= maxi) {
             int midi = (mini + maxi) >>> 1;
-            int midPos = segments[midi];
+            int midPos = getSegment(i, midi);
 
             if (midPos < blockY) {
                 mini = midi + 1;
@@ -186,7 +244,7 @@ public class ServerHeightMap implements IHeightMap {
         if (segmentIndex < 0) {
             return Coords.NO_HEIGHT;
         }
-        int blockYSegment = segments[segmentIndex];
+        int blockYSegment = getSegment(i, segmentIndex);
         int blockYSegmentOpacity = getOpacity(segmentIndex);
 
         // The lowest segment is always opaque. Thus, if blockY is in the lowest segment, the next opaque block is
@@ -211,7 +269,7 @@ public class ServerHeightMap implements IHeightMap {
 
         // If blockY is the lowest block in its segment, the next opaque block is the highest block in the next opaque
         // segment.
-        int belowYSegment = segments[segmentIndex - 1];
+        int belowYSegment = getSegment(i, segmentIndex - 1);
         return belowYSegment - 1;
     }
     @Override
@@ -233,6 +291,98 @@ public class ServerHeightMap implements IHeightMap {
 
     // Helper ----------------------------------------------------------------------------------------------------------
 
+    /**
+     * Replaces the opacity of blocks between minBlockY and maxBlockY in the given block column with the given mask of
+     * opaque blocks. The block column is converted into a list of opaque block ranges, the changed range is cut out and
+     * replaced, and the result is written back as segments once.
+     */
+    private void mergeOpaqueRange(int xzIndex, int minBlockY, int maxBlockY, int mask) {
+        // existing ranges, at most one of them split in two, and at most 8 new ones
+        int existingRanges = this.hasSegments(xzIndex) ? getLastSegmentIndex(xzIndex) / 2 + 1 : 1;
+        int[] ranges = new int[(existingRanges + 1 + Cube.SIZE / 2) * 2];
+        int count = 0;
+        boolean maskAdded = false;
+
+        for (int j = 0; j < existingRanges; j++) {
+            int start, end;
+            if (!this.hasSegments(xzIndex)) {
+                if (this.ymin[xzIndex] == Coords.NO_HEIGHT) {
+                    break;
+                }
+                start = this.ymin[xzIndex];
+                end = this.ymax.get(xzIndex);
+            } else {
+                start = getSegment(xzIndex, j * 2);
+                end = j == existingRanges - 1 ? this.ymax.get(xzIndex) : getSegment(xzIndex, j * 2 + 1) - 1;
+            }
+            if (end < minBlockY) {
+                count = addOpaqueRange(ranges, count, start, end);
+                continue;
+            }
+            if (start < minBlockY) {
+                count = addOpaqueRange(ranges, count, start, minBlockY - 1);
+            }
+            if (!maskAdded) {
+                count = addOpaqueRanges(ranges, count, minBlockY, mask);
+                maskAdded = true;
+            }
+            if (end > maxBlockY) {
+                count = addOpaqueRange(ranges, count, Math.max(start, maxBlockY + 1), end);
+            }
+        }
+        if (!maskAdded) {
+            count = addOpaqueRanges(ranges, count, minBlockY, mask);
+        }
+
+        if (count == 0) {
+            this.ymin[xzIndex] = Coords.NO_HEIGHT;
+            this.ymax.set(xzIndex, Coords.NO_HEIGHT);
+            this.clearSegments(xzIndex);
+            return;
+        }
+        this.ymin[xzIndex] = ranges[0];
+        this.ymax.set(xzIndex, ranges[count * 2 - 1]);
+        if (count == 1) {
+            this.clearSegments(xzIndex);
+            return;
+        }
+        // opaque segments start at the start of each range, transparent ones right after the end
+        int segmentCount = count * 2 - 1;
+        this.ensureSegmentCapacity(xzIndex, segmentCount);
+        int offset = this.segmentOffsets[xzIndex];
+        for (int j = 0; j < segmentCount; j++) {
+            this.segmentData[offset + j] = ranges[j] + (j & 1);
+        }
+        Arrays.fill(this.segmentData, offset + segmentCount, this.segmentOffsets[xzIndex + 1], NONE_SEGMENT);
+        assert parityCheck(xzIndex) : "The number of segments was wrong!";
+    }
+
+    /**
+     * Adds all ranges of set bits in the mask as opaque block ranges.
+     */
+    private static int addOpaqueRanges(int[] ranges, int count, int minBlockY, int mask) {
+        while (mask != 0) {
+            int start = Integer.numberOfTrailingZeros(mask);
+            int length = Integer.numberOfTrailingZeros(~(mask >>> start));
+            count = addOpaqueRange(ranges, count, minBlockY + start, minBlockY + start + length - 1);
+            mask &= ~(((1 << length) - 1) << start);
+        }
+        return count;
+    }
+
+    /**
+     * Adds an opaque block range above all the existing ones, merging it with the previous one if they touch.
+     */
+    private static int addOpaqueRange(int[] ranges, int count, int start, int end) {
+        if (count > 0 && ranges[count * 2 - 1] == start - 1) {
+            ranges[count * 2 - 1] = end;
+            return count;
+        }
+        ranges[count * 2] = start;
+        ranges[count * 2 + 1] = end;
+        return count + 1;
+    }
+
     private void setNoSegments(int xzIndex, int blockY, boolean isOpaque) {
         if (isOpaque) {
             this.setNoSegmentsOpaque(xzIndex, blockY);
@@ -286,11 +436,11 @@ public class ServerHeightMap implements IHeightMap {
              [ ]
               ^ going up from there
              */
-            this.segments[xzIndex] = new int[]{
+            this.setSegments(xzIndex,
                     this.ymin[xzIndex],
                     this.ymax.get(xzIndex) + 1,
                     blockY
-            };
+            );
             this.ymax.set(xzIndex, blockY);
             return;
             //more than one block below ymin?
@@ -317,11 +467,11 @@ public class ServerHeightMap implements IHeightMap {
              [ ]
               ^ going up from there
              */
-            this.segments[xzIndex] = new int[]{
+            this.setSegments(xzIndex,
                     blockY,
                     blockY + 1,
                     this.ymin[xzIndex]
-            };
+            );
             this.ymin[xzIndex] = blockY;
             return;
         }
@@ -387,21 +537,20 @@ public class ServerHeightMap implements IHeightMap {
          [ ]
           ^ going up
         */
-        this.segments[xzIndex] = new int[]{
+        this.setSegments(xzIndex,
                 this.ymin[xzIndex],
                 blockY,
                 blockY + 1
-        };
+        );
     }
 
     private void setOpacityWithSegments(int xzIndex, int blockY, boolean isOpaque) {
         // binary search to find the insertion point
-        int[] segments = this.segments[xzIndex];
         int minj = 0;
-        int maxj = getLastSegmentIndex(segments);
+        int maxj = getLastSegmentIndex(xzIndex);
         while (minj <= maxj) {
             int midj = (minj + maxj) >>> 1;
-            int midPos = segments[midj];
+            int midPos = getSegment(xzIndex, midj);
 
             if (midPos < blockY) {
                 minj = midj + 1;
@@ -472,8 +621,7 @@ public class ServerHeightMap implements IHeightMap {
             return;
         }
 
-        int[] segments = this.segments[xzIndex];
-        int lastIndex = getLastSegmentIndex(segments);
+        int lastIndex = getLastSegmentIndex(xzIndex);
 
         boolean extendsTopSegmentByOne = blockY == this.ymax.get(xzIndex) + 1;
         if (extendsTopSegmentByOne) {
@@ -512,10 +660,9 @@ public class ServerHeightMap implements IHeightMap {
     }
 
     private void setOpacityWithSegmentsFor(int xzIndex, int blockY, int segmentIndexWithBlockY, boolean isOpaque) {
-        int[] segments = this.segments[xzIndex];
         int isOpaqueInt = isOpaque ? 1 : 0;
 
-        int segmentWithBlockY = segments[segmentIndexWithBlockY];
+        int segmentWithBlockY = getSegment(xzIndex, segmentIndexWithBlockY);
 
         //does it even change anything?
         if (getOpacity(segmentIndexWithBlockY) == isOpaqueInt) {
@@ -536,7 +683,7 @@ public class ServerHeightMap implements IHeightMap {
           * change at the bottom of segment
           * change in the middle of segment
         */
-        int lastSegment = getLastSegmentIndex(segments);
+        int lastSegment = getLastSegmentIndex(xzIndex);
         if (blockY == segmentTop) {
             //if it's the top of the top segment - just change ymax
             if (segmentIndexWithBlockY == lastSegment) {
@@ -579,8 +726,7 @@ public class ServerHeightMap implements IHeightMap {
 
     private void negateOneBlockSegment(int xzIndex, int segmentIndexWithBlockY) {
 
-        int[] segments = this.segments[xzIndex];
-        int lastSegmentIndex = getLastSegmentIndex(segments);
+        int lastSegmentIndex = getLastSegmentIndex(xzIndex);
 
         assert lastSegmentIndex >= 2 : "Less than 3 segments in array!";
         if (segmentIndexWithBlockY == lastSegmentIndex) {
@@ -588,24 +734,24 @@ public class ServerHeightMap implements IHeightMap {
             //the top segment must be opaque, so we set it to transparent
             //and the segment below it is also transparent.
             //set both of them to NONE and decrease maxY
-            int segmentBelow = segments[segmentIndexWithBlockY - 1];
+            int segmentBelow = getSegment(xzIndex, segmentIndexWithBlockY - 1);
             this.ymax.set(xzIndex, segmentBelow - 1);
             if (segmentIndexWithBlockY == 2) {
                 //after removing top 2 segments we will be left with 1 segment
                 //remove them entirely to guarantee at least 3 segments and use min/maxY
-                this.segments[xzIndex] = null;
+                this.clearSegments(xzIndex);
                 return;
             }
-            segments[segmentIndexWithBlockY] = NONE_SEGMENT;
-            segments[segmentIndexWithBlockY - 1] = NONE_SEGMENT;
+            setSegment(xzIndex, segmentIndexWithBlockY, NONE_SEGMENT);
+            setSegment(xzIndex, segmentIndexWithBlockY - 1, NONE_SEGMENT);
             assert parityCheck(xzIndex) : "The number of segments was wrong!";
             return;
         }
         if (segmentIndexWithBlockY == 0) {
             //same logic as for top segment applies
-            this.ymin[xzIndex] = segments[2];
+            this.ymin[xzIndex] = getSegment(xzIndex, 2);
             if (lastSegmentIndex == 2) {
-                this.segments[xzIndex] = null;
+                this.clearSegments(xzIndex);
                 return;
             }
             removeTwoSegments(xzIndex, 0);
@@ -635,14 +781,14 @@ public class ServerHeightMap implements IHeightMap {
         //but in case after the removal there are less than 3 segments
         //remove them entirely and rely only on min/maxY
         if (lastSegmentIndex == 2) {
-            this.segments[xzIndex] = null;
+            this.clearSegments(xzIndex);
         }
     }
 
     private void moveSegmentStartUpAndUpdateMinY(int xzIndex, int segmentIndex) {
 
         // move the segment
-        this.segments[xzIndex][segmentIndex] = this.segments[xzIndex][segmentIndex] + 1;
+        setSegment(xzIndex, segmentIndex, getSegment(xzIndex, segmentIndex) + 1);
 
         // move the bottom if needed
         if (segmentIndex == 0) {
@@ -653,7 +799,7 @@ public class ServerHeightMap implements IHeightMap {
     private void moveSegmentStartDownAndUpdateMinY(int xzIndex, int segmentIndex) {
 
         // move the segment
-        this.segments[xzIndex][segmentIndex] = this.segments[xzIndex][segmentIndex] - 1;
+        setSegment(xzIndex, segmentIndex, getSegment(xzIndex, segmentIndex) - 1);
 
         // move the bottom if needed
         if (segmentIndex == 0) {
@@ -663,70 +809,98 @@ public class ServerHeightMap implements IHeightMap {
 
     private void removeTwoSegments(int xzIndex, int firstSegmentToRemove) {
 
-        int[] segments = this.segments[xzIndex];
-        int jmax = getLastSegmentIndex(segments);
+        int offset = this.segmentOffsets[xzIndex];
+        int jmax = getLastSegmentIndex(xzIndex);
 
         // remove the segment
-        System.arraycopy(segments, firstSegmentToRemove + 2, segments, firstSegmentToRemove, jmax - 1 - firstSegmentToRemove);
-        segments[jmax] = NONE_SEGMENT;
-        segments[jmax - 1] = NONE_SEGMENT;
-        assert parityCheck(xzIndex) : "The number of segments was wrong!";
-
-        if (segments[0] == NONE_SEGMENT) {
-            this.segments[xzIndex] = null;
-        }
+        System.arraycopy(this.segmentData, offset + firstSegmentToRemove + 2, this.segmentData, offset + firstSegmentToRemove,
+                jmax - 1 - firstSegmentToRemove);
+        setSegment(xzIndex, jmax, NONE_SEGMENT);
+        setSegment(xzIndex, jmax - 1, NONE_SEGMENT);
+        assert !hasSegments(xzIndex) || parityCheck(xzIndex) : "The number of segments was wrong!";
     }
 
     //is theIndex = lastSegmentIndex+1, it will be inserted after last segment
     private void insertSegmentsBelow(int xzIndex, int theIndex, int... newSegments) {
-        int lastIndex = getLastSegmentIndex(this.segments[xzIndex]);
+        int lastIndex = getLastSegmentIndex(xzIndex);
         int expandSize = newSegments.length;
-        //will it fit in current array?
-        if (this.segments[xzIndex].length >= lastIndex + expandSize) {
-            //shift all segments up
-            System.arraycopy(this.segments[xzIndex], theIndex, this.segments[xzIndex], theIndex + expandSize, lastIndex + 1 - theIndex);
-            System.arraycopy(newSegments, 0, this.segments[xzIndex], theIndex, expandSize);
-            assert parityCheck(xzIndex) : "The number of segments was wrong!";
-        } else {
-            //need to expand the array
-            int[] newSegmentArr = new int[(lastIndex + 1) + expandSize];
-            int newArrIndex = 0;
-            int oldArrIndex = 0;
-            //copy all index up to before theIndex
-            for (int i = 0; i < theIndex; i++) {
-                newSegmentArr[newArrIndex] = this.segments[xzIndex][oldArrIndex];
-                newArrIndex++;
-                oldArrIndex++;
-            }
-            //copy new elements
-            for (int i = 0; i < expandSize; i++) {
-                newSegmentArr[newArrIndex] = newSegments[i];
-                newArrIndex++;
-            }
-            //copy everything else
-            while (newArrIndex < newSegmentArr.length) {
-                newSegmentArr[newArrIndex] = this.segments[xzIndex][oldArrIndex];
-                newArrIndex++;
-                oldArrIndex++;
-            }
-            this.segments[xzIndex] = newSegmentArr;
-            assert parityCheck(xzIndex) : "The number of segments was wrong!";
-        }
+        //make space for the new segments if they don't fit
+        ensureSegmentCapacity(xzIndex, (lastIndex + 1) + expandSize);
+        int offset = this.segmentOffsets[xzIndex];
+        //shift all segments up
+        System.arraycopy(this.segmentData, offset + theIndex, this.segmentData, offset + theIndex + expandSize, lastIndex + 1 - theIndex);
+        System.arraycopy(newSegments, 0, this.segmentData, offset + theIndex, expandSize);
+        assert parityCheck(xzIndex) : "The number of segments was wrong!";
     }
 
     private int getSegmentTopBlockY(int xzIndex, int segmentIndex) {
-        int[] segments = this.segments[xzIndex];
         //if it's the last segment in the array, or the one above is NoneSegment
-        if (segments.length - 1 == segmentIndex || segments[segmentIndex + 1] == NONE_SEGMENT) {
+        if (getSegmentCapacity(xzIndex) - 1 == segmentIndex || getSegment(xzIndex, segmentIndex + 1) == NONE_SEGMENT) {
             return this.ymax.get(xzIndex);
         }
-        return segments[segmentIndex + 1] - 1;
+        return getSegment(xzIndex, segmentIndex + 1) - 1;
     }
 
     private static int getIndex(int localX, int localZ) {
         return (localZ << 4) | localX;
     }
 
+    private boolean hasSegments(int xzIndex) {
+        int offset = this.segmentOffsets[xzIndex];
+        return offset != this.segmentOffsets[xzIndex + 1] && this.segmentData[offset] != NONE_SEGMENT;
+    }
+
+    private int getSegment(int xzIndex, int segmentIndex) {
+        return this.segmentData[this.segmentOffsets[xzIndex] + segmentIndex];
+    }
+
+    private void setSegment(int xzIndex, int segmentIndex, int value) {
+        this.segmentData[this.segmentOffsets[xzIndex] + segmentIndex] = value;
+    }
+
+    private int getSegmentCapacity(int xzIndex) {
+        return this.segmentOffsets[xzIndex + 1] - this.segmentOffsets[xzIndex];
+    }
+
+    /**
+     * Replaces all segments of the block column with the given ones.
+     */
+    private void setSegments(int xzIndex, int... segments) {
+        ensureSegmentCapacity(xzIndex, segments.length);
+        int offset = this.segmentOffsets[xzIndex];
+        System.arraycopy(segments, 0, this.segmentData, offset, segments.length);
+        Arrays.fill(this.segmentData, offset + segments.length, this.segmentOffsets[xzIndex + 1], NONE_SEGMENT);
+    }
+
+    /**
+     * Switches the block column to no-segments mode. The space is kept, so it can be reused without moving other
+     * block columns.
+     */
+    private void clearSegments(int xzIndex) {
+        Arrays.fill(this.segmentData, this.segmentOffsets[xzIndex], this.segmentOffsets[xzIndex + 1], NONE_SEGMENT);
+    }
+
+    /**
+     * Makes sure at least the given amount of segments fits into the block column, moving segments of all block
+     * columns after it if needed.
+     */
+    private void ensureSegmentCapacity(int xzIndex, int capacity) {
+        int expand = capacity - getSegmentCapacity(xzIndex);
+        if (expand <= 0) {
+            return;
+        }
+        int end = this.segmentOffsets[xzIndex + 1];
+        int used = this.segmentOffsets[Cube.SIZE * Cube.SIZE];
+        if (used + expand > this.segmentData.length) {
+            this.segmentData = Arrays.copyOf(this.segmentData, Math.max(used + expand, this.segmentData.length * 3 / 2));
+        }
+        System.arraycopy(this.segmentData, end, this.segmentData, end + expand, used - end);
+        Arrays.fill(this.segmentData, end, end + expand, NONE_SEGMENT);
+        for (int i = xzIndex + 1; i < this.segmentOffsets.length; i++) {
+            this.segmentOffsets[i] += expand;
+        }
+    }
+
     // Serialization / NBT ---------------------------------------------------------------------------------------------
 
     public byte[] getData() {
@@ -769,7 +943,10 @@ public class ServerHeightMap implements IHeightMap {
     }
 
     private void readData(DataInputStream in) throws IOException {
-        for (int i = 0; i < this.segments.length; i++) {
+        this.version++;
+        this.segmentData = new int[0];
+        Arrays.fill(this.segmentOffsets, 0);
+        for (int i = 0; i < Cube.SIZE * Cube.SIZE; i++) {
             this.ymin[i] = in.readInt();
             this.ymax.set(i, in.readInt());
             int[] segments = new int[in.readUnsignedShort()];
@@ -779,23 +956,22 @@ public class ServerHeightMap implements IHeightMap {
             for (int j = 0; j < segments.length; j++) {
                 segments[j] = in.readInt();
             }
-            this.segments[i] = segments;
+            this.setSegments(i, segments);
             assert parityCheck(i) : "The number of segments was wrong!";
         }
     }
 
     private void writeData(DataOutputStream out) throws IOException {
-        for (int i = 0; i < this.segments.length; i++) {
+        for (int i = 0; i < Cube.SIZE * Cube.SIZE; i++) {
             out.writeInt(this.ymin[i]);
             out.writeInt(this.ymax.get(i));
-            int[] segments = this.segments[i];
-            if (segments == null || segments.length == 0) {
+            if (!hasSegments(i)) {
                 out.writeShort(0);
             } else {
-                int lastSegmentIndex = getLastSegmentIndex(segments);
+                int lastSegmentIndex = getLastSegmentIndex(i);
                 out.writeShort(lastSegmentIndex + 1);
                 for (int j = 0; j <= lastSegmentIndex; j++) {
-                    out.writeInt(segments[j]);
+                    out.writeInt(getSegment(i, j));
                 }
             }
         }
@@ -814,9 +990,10 @@ public class ServerHeightMap implements IHeightMap {
         buf.append(this.ymax.get(i));
         buf.append("], segments(p,o)=");
 
-        if (this.segments[i] != null) {
-            for (int pos : this.segments[i]) {
-                int opacity = getOpacity(i);
+        if (hasSegments(i)) {
+            for (int j = 0; j <= getLastSegmentIndex(i); j++) {
+                int pos = getSegment(i, j);
+                int opacity = getOpacity(j);
                 buf.append("(");
                 buf.append(pos);
                 buf.append(",");
@@ -35,7 +35,6 @@ import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.api.world.IColumn;
 import io.github.opencubicchunks.cubicchunks.api.world.ICube;
 import io.github.opencubicchunks.cubicchunks.api.world.ICubicWorld;
-import io.github.opencubicchunks.cubicchunks.api.world.IHeightMap;
 import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
 import io.github.opencubicchunks.cubicchunks.api.worldgen.ICubeGenerator;
 import io.github.opencubicchunks.cubicchunks.core.CubicChunks;
@@ -204,8 +203,8 @@ public class Cube implements ICube {
     public Cube(Chunk column, int cubeY, CubePrimer primer) {
         this(column, cubeY);
 
-        int miny = cubeToMinBlock(cubeY);
-        IHeightMap opindex = ((IColumn) column).getOpacityIndex();
+        short[] opaqueMasks = new short[Cube.SIZE * Cube.SIZE];
+        boolean anyOpaque = false;
 
         for (int x = 0; x < Cube.SIZE; x++) {
             for (int z = 0; z < Cube.SIZE; z++) {
@@ -220,13 +219,17 @@ public class Cube implements ICube {
                         storage.set(x, y, z, newstate);
 
                         if (newstate.getLightOpacity() != 0) {
-                            column.setModified(true); //TODO: this is a bit of am abstraction leak... maybe ServerHeightMap needs its own isModified
-                            opindex.onOpacityChange(x, miny + y, z, newstate.getLightOpacity());
+                            opaqueMasks[z << 4 | x] |= 1 << y;
+                            anyOpaque = true;
                         }
                     }
                 }
             }
         }
+        if (anyOpaque) {
+            column.setModified(true); //TODO: this is a bit of am abstraction leak... maybe ServerHeightMap needs its own isModified
+            ((IColumn) column).getOpacityIndex().onOpacityChange(cubeToMinBlock(cubeY), opaqueMasks);
+        }
         isSurfaceTracked = true;
         isModified = true;
     }
@@ -331,6 +334,14 @@ public class Cube implements ICube {
      * @param tryToTickFaster Whether costly calculations should be skipped in order to catch up with ticks
      */
     public void tickCubeCommon(BooleanSupplier tryToTickFaster) {
+        tickTileEntityQueue();
+
+        if (this.cubeLightUpdateInfo != null && this.cubeLightUpdateInfo.hasUpdates() && !tryToTickFaster.getAsBoolean()) {
+            this.cubeLightUpdateInfo.tick();
+        }
+    }
+
+    private void tickTileEntityQueue() {
         this.ticked = true;
         while (!this.tileEntityPosQueue.isEmpty()) {
             BlockPos blockpos = this.tileEntityPosQueue.poll();
@@ -345,23 +356,28 @@ public class Cube implements ICube {
                 this.world.markBlockRangeForRenderUpdate(blockpos, blockpos);
             }
         }
-
-        if (this.cubeLightUpdateInfo != null && this.cubeLightUpdateInfo.hasUpdates() && !tryToTickFaster.getAsBoolean()) {
-            this.cubeLightUpdateInfo.tick();
-        }
     }
 
     /**
-     * Tick this cube on server side. Block tick updates launched here.
-     * @param tryToTickFaster - returns true when running out of reserved tick time
+     * Tick this cube on server side. Block tick updates launched here. Lighting updates are run separately by
+     * {@link io.github.opencubicchunks.cubicchunks.core.server.LightUpdateScheduler}.
      * @param rand - World specific Random
      */
-    public void tickCubeServer(BooleanSupplier tryToTickFaster, Random rand) {
+    public void tickCubeServer(Random rand) {
         if (!isFullyPopulated) {
             return;
         }
 
-        tickCubeCommon(tryToTickFaster);
+        tickTileEntityQueue();
+    }
+
+    /**
+     * Runs queued lighting updates of this cube, if there are any
+     */
+    public void tickLightUpdates() {
+        if (this.cubeLightUpdateInfo != null && this.cubeLightUpdateInfo.hasUpdates()) {
+            this.cubeLightUpdateInfo.tick();
+        }
     }
 
     /**
@@ -456,6 +472,16 @@ public class Cube implements ICube {
         return this.storage = ebs;
     }
 
+    /**
+     * Replaces uniform arrays of this cube's storage with shared read-only instances, see {@link SharedCubeStorage}.
+     * Cubes that are still being populated or lit are skipped, as they are likely to be modified again soon.
+     */
+    public void compactStorage() {
+        if (storage != null && isFullyPopulated && isInitialLightingDone) {
+            SharedCubeStorage.compact(storage);
+        }
+    }
+
     private void newStorage() {
         storage = new ExtendedBlockStorage(cubeToMinBlock(getY()), world.provider.hasSkyLight());
     }
@@ -508,20 +534,22 @@ public class Cube implements ICube {
 
     @SuppressWarnings("deprecation")
     private void trackSurface() {
-        IHeightMap opindex = ((IColumn) column).getOpacityIndex();
-        int miny = getCoords().getMinBlockY();
+        short[] opaqueMasks = new short[Cube.SIZE * Cube.SIZE];
 
-        for (int x = 0; x < Cube.SIZE; x++) {
-            for (int z = 0; z < Cube.SIZE; z++) {
-
-                for (int y = Cube.SIZE - 1; y >= 0; y--) {
-                    IBlockState newstate = this.getBlockState(x, y, z);
+        if (storage != NULL_STORAGE && !storage.isEmpty()) {
+            for (int x = 0; x < Cube.SIZE; x++) {
+                for (int z = 0; z < Cube.SIZE; z++) {
 
-                    column.setModified(true); //TODO: maybe ServerHeightMap needs its own isModified?
-                    opindex.onOpacityChange(x, miny + y, z, newstate.getLightOpacity());
+                    for (int y = Cube.SIZE - 1; y >= 0; y--) {
+                        if (storage.get(x, y, z).getLightOpacity() != 0) {
+                            opaqueMasks[z << 4 | x] |= 1 << y;
+                        }
+                    }
                 }
             }
         }
+        column.setModified(true); //TODO: maybe ServerHeightMap needs its own isModified?
+        ((IColumn) column).getOpacityIndex().onOpacityChange(getCoords().getMinBlockY(), opaqueMasks);
         isSurfaceTracked = true;
     }
 
@@ -676,6 +704,9 @@ public class Cube implements ICube {
 
     public void markEdgeNeedSkyLightUpdate(EnumFacing side) {
         this.edgeNeedSkyLightUpdate[side.ordinal()] = true;
+        if (!world.isRemote) {
+            ((ICubicWorldInternal) world).getLightingManager().getRelighter().markDirty(this);
+        }
     }
 
     public boolean hasBeenTicked() {
@@ -0,0 +1,144 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package io.github.opencubicchunks.cubicchunks.core.world.cube;
+
+import io.github.opencubicchunks.cubicchunks.core.asm.mixin.core.common.IBlockStateContainer;
+import io.github.opencubicchunks.cubicchunks.core.lighting.UniformSkyLight;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.BitArray;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Shared read-only arrays for the storage of uniform cubes, like solid stone far below the surface or pure water.
+ * <p>
+ * A freshly created block state container uses 4 bits per block, with air at palette index 0 and the first other
+ * block state at index 1. So the data array of every cube made of a single block state looks the same, no matter which
+ * block state it is, and can be shared between all of them. The same goes for light arrays where all values are 0.
+ * The shared arrays are replaced with private copies the first time they would be modified (see
+ * MixinBlockStateContainer_SharedStorage and MixinExtendedBlockStorage_SharedStorage).
+ */
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class SharedCubeStorage {
+
+    private static final int BLOCKS = Cube.SIZE * Cube.SIZE * Cube.SIZE;
+    private static final int LIGHT_SIZE = BLOCKS / 2;
+    private static final int UNIFORM_BITS = 4;
+
+    private static final NibbleArray ZERO_LIGHT = new NibbleArray(new byte[LIGHT_SIZE]);
+    private static final BitArray ALL_AIR = filled(0);
+    private static final BitArray ALL_SINGLE_STATE = filled(1);
+
+    private SharedCubeStorage() {
+        throw new Error();
+    }
+
+    /**
+     * @return the shared light array with all values set to 0. It must never be modified directly.
+     */
+    public static NibbleArray zeroLight() {
+        return ZERO_LIGHT;
+    }
+
+    public static boolean isZeroLight(@Nullable NibbleArray array) {
+        return array == ZERO_LIGHT;
+    }
+
+    public static boolean isShared(@Nullable BitArray array) {
+        return array == ALL_AIR || array == ALL_SINGLE_STATE;
+    }
+
+    /**
+     * Creates a new, modifiable copy of the given array. Used to materialize a shared array before it's written to.
+     */
+    public static BitArray copyOf(BitArray array) {
+        BitArray copy = new BitArray(UNIFORM_BITS, BLOCKS);
+        long[] data = array.getBackingLongArray();
+        System.arraycopy(data, 0, copy.getBackingLongArray(), 0, data.length);
+        return copy;
+    }
+
+    /**
+     * Replaces the arrays of the given storage that have uniform contents with the shared instances. This doesn't change
+     * any block state or light value, so it can be done at any time on the thread owning the storage.
+     */
+    public static void compact(ExtendedBlockStorage ebs) {
+        NibbleArray blockLight = ebs.getBlockLight();
+        if (!isZeroLight(blockLight) && isUniform(blockLight, (byte) 0)) {
+            ebs.setBlockLight(ZERO_LIGHT);
+        }
+        NibbleArray skyLight = ebs.getSkyLight();
+        if (skyLight != null && !UniformSkyLight.isFullSkyLight(skyLight) && !isZeroLight(skyLight)) {
+            if (isUniform(skyLight, (byte) 0xFF)) {
+                ebs.setSkyLight(UniformSkyLight.fullSkyLight());
+            } else if (isUniform(skyLight, (byte) 0)) {
+                ebs.setSkyLight(ZERO_LIGHT);
+            }
+        }
+        IBlockStateContainer data = (IBlockStateContainer) ebs.getData();
+        BitArray storage = data.getStorage();
+        if (isShared(storage) || data.getBits() != UNIFORM_BITS) {
+            return;
+        }
+        long[] longs = storage.getBackingLongArray();
+        if (isUniform(longs, 0L)) {
+            data.setStorage(ALL_AIR);
+        } else if (isUniform(longs, ALL_SINGLE_STATE.getBackingLongArray()[0])) {
+            data.setStorage(ALL_SINGLE_STATE);
+        }
+    }
+
+    private static boolean isUniform(NibbleArray array, byte value) {
+        for (byte b : array.getData()) {
+            if (b != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUniform(long[] array, long value) {
+        for (long l : array) {
+            if (l != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static BitArray filled(int value) {
+        BitArray array = new BitArray(UNIFORM_BITS, BLOCKS);
+        for (int i = 0; i < BLOCKS; i++) {
+            array.setAt(i, value);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import io.github.opencubicchunks.cubicchunks.core.lighting.BlockLightEngine;
+import io.github.opencubicchunks.cubicchunks.core.lighting.ILightBlockAccess;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.EnumSkyBlock;
+import org.junit.Test;
+
+import java.util.Random;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Compares the light computed by {@link BlockLightEngine} after changes with light recomputed from scratch.
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class TestBlockLightEngine {
+
+    private static final int SIZE = 40;
+
+    private final TestBlocks blocks = new TestBlocks();
+    private final BlockLightEngine engine = new BlockLightEngine((min, max) -> blocks, pos -> { });
+
+    @Test
+    public void testAddLight() {
+        setEmitted(20, 20, 20, 15);
+        engine.tick();
+        checkLight();
+        assertEquals(15, blocks.light[index(20, 20, 20)]);
+        assertEquals(12, blocks.light[index(23, 20, 20)]);
+    }
+
+    @Test
+    public void testRemoveLight() {
+        blocks.emitted[index(20, 20, 20)] = 14;
+        blocks.emitted[index(30, 20, 20)] = 10;
+        blocks.light = recompute();
+
+        setEmitted(20, 20, 20, 0);
+        engine.tick();
+        checkLight();
+        assertEquals(10, blocks.light[index(30, 20, 20)]);
+    }
+
+    @Test
+    public void testRemoveOverlappingLights() {
+        // unspreading from the torch reaches the block between them before unspreading from the lamp clears it
+        blocks.emitted[index(20, 20, 20)] = 15;
+        blocks.emitted[index(23, 20, 20)] = 7;
+        blocks.light = recompute();
+
+        setEmitted(20, 20, 20, 0);
+        setEmitted(23, 20, 20, 0);
+        engine.tick();
+        checkLight();
+        assertEquals(0, blocks.light[index(22, 20, 20)]);
+    }
+
+    @Test
+    public void testOpacityChanges() {
+        blocks.emitted[index(20, 20, 20)] = 15;
+        blocks.light = recompute();
+
+        setOpacity(21, 20, 20, 255);
+        setOpacity(20, 21, 20, 3);
+        engine.tick();
+        checkLight();
+
+        setOpacity(21, 20, 20, 0);
+        engine.tick();
+        checkLight();
+    }
+
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            randomChange(random);
+        }
+        blocks.light = recompute();
+
+        for (int pass = 0; pass < 100; pass++) {
+            int changes = 1 + random.nextInt(20);
+            for (int i = 0; i < changes; i++) {
+                randomChange(random);
+            }
+            engine.tick();
+            checkLight();
+        }
+    }
+
+    private void randomChange(Random random) {
+        // keep the changes far enough from the edges for the light to fit
+        int x = 15 + random.nextInt(10);
+        int y = 15 + random.nextInt(10);
+        int z = 15 + random.nextInt(10);
+        if (random.nextBoolean()) {
+            setEmitted(x, y, z, random.nextInt(4) == 0 ? 0 : random.nextInt(16));
+        } else {
+            int[] opacities = {0, 1, 3, 15, 255};
+            setOpacity(x, y, z, opacities[random.nextInt(opacities.length)]);
+        }
+    }
+
+    private void setEmitted(int x, int y, int z, int value) {
+        blocks.emitted[index(x, y, z)] = value;
+        engine.queueUpdate(new BlockPos(x, y, z));
+    }
+
+    private void setOpacity(int x, int y, int z, int value) {
+        blocks.opacity[index(x, y, z)] = value;
+        engine.queueUpdate(new BlockPos(x, y, z));
+    }
+
+    private void checkLight() {
+        assertArrayEquals(recompute(), blocks.light);
+    }
+
+    /**
+     * Computes light of all blocks from the emitted light and opacity, ignoring the currently stored light.
+     */
+    private int[] recompute() {
+        int[] light = new int[SIZE * SIZE * SIZE];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int x = 0; x < SIZE; x++) {
+                for (int y = 0; y < SIZE; y++) {
+                    for (int z = 0; z < SIZE; z++) {
+                        int max = 0;
+                        for (EnumFacing direction : EnumFacing.values()) {
+                            int nx = x + direction.getXOffset(), ny = y + direction.getYOffset(), nz = z + direction.getZOffset();
+                            if (isInside(nx, ny, nz)) {
+                                max = Math.max(max, light[index(nx, ny, nz)]);
+                            }
+                        }
+                        int index = index(x, y, z);
+                        int value = Math.max(blocks.emitted[index], max - Math.max(1, blocks.opacity[index]));
+                        if (value != light[index]) {
+                            light[index] = value;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+        return light;
+    }
+
+    private static boolean isInside(int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x < SIZE && y < SIZE && z < SIZE;
+    }
+
+    private static int index(int x, int y, int z) {
+        return (x * SIZE + y) * SIZE + z;
+    }
+
+    /**
+     * Blocks between 0 and {@link #SIZE} on each axis, everything outside is not loaded.
+     */
+    private static class TestBlocks implements ILightBlockAccess {
+
+        final int[] opacity = new int[SIZE * SIZE * SIZE];
+        final int[] emitted = new int[SIZE * SIZE * SIZE];
+        int[] light = new int[SIZE * SIZE * SIZE];
+
+        @Override public int getBlockLightOpacity(BlockPos pos) {
+            return isInside(pos) ? opacity[index(pos)] : 0;
+        }
+
+        @Override public int getLightFor(EnumSkyBlock lightType, BlockPos pos) {
+            return lightType == EnumSkyBlock.BLOCK && isInside(pos) ? light[index(pos)] : 0;
+        }
+
+        @Override public boolean setLightFor(EnumSkyBlock lightType, BlockPos pos, int val) {
+            if (lightType != EnumSkyBlock.BLOCK || !isInside(pos)) {
+                return false;
+            }
+            light[index(pos)] = val;
+            return true;
+        }
+
+        @Override public boolean canSeeSky(BlockPos pos) {
+            return false;
+        }
+
+        @Override public int getEmittedLight(BlockPos pos, EnumSkyBlock type) {
+            return type == EnumSkyBlock.BLOCK && isInside(pos) ? emitted[index(pos)] : 0;
+        }
+
+        @Override public void markEdgeNeedLightUpdate(BlockPos offset, EnumSkyBlock type) {
+        }
+
+        private static boolean isInside(BlockPos pos) {
+            return TestBlockLightEngine.isInside(pos.getX(), pos.getY(), pos.getZ());
+        }
+
+        private static int index(BlockPos pos) {
+            return TestBlockLightEngine.index(pos.getX(), pos.getY(), pos.getZ());
+        }
+    }
+}
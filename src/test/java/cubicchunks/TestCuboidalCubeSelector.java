@@ -0,0 +1,98 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector.unpackOffsetX;
+import static io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector.unpackOffsetY;
+import static io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector.unpackOffsetZ;
+import static org.junit.Assert.*;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.visibility.CuboidalCubeSelector;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.math.ChunkPos;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class TestCuboidalCubeSelector {
+
+    private final CuboidalCubeSelector selector = new CuboidalCubeSelector();
+
+    @Test
+    public void testPackedChangesMatchSets() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            int horizontal = 3 + random.nextInt(8);
+            int vertical = 3 + random.nextInt(8);
+            CubePos oldPos = new CubePos(random.nextInt(64) - 32, random.nextInt(64) - 32, random.nextInt(64) - 32);
+            int range = i % 2 == 0 ? 3 : 40;
+            CubePos newPos = oldPos.add(random.nextInt(range * 2 + 1) - range,
+                    random.nextInt(range * 2 + 1) - range, random.nextInt(range * 2 + 1) - range);
+            checkChanges(oldPos, newPos, horizontal, vertical);
+        }
+    }
+
+    private void checkChanges(CubePos oldPos, CubePos newPos, int horizontal, int vertical) {
+        Set<CubePos> cubesToRemove = new HashSet<>();
+        Set<CubePos> cubesToLoad = new HashSet<>();
+        Set<ChunkPos> columnsToRemove = new HashSet<>();
+        Set<ChunkPos> columnsToLoad = new HashSet<>();
+        selector.findChanged(oldPos, newPos, horizontal, vertical, cubesToRemove, cubesToLoad, columnsToRemove, columnsToLoad);
+
+        Set<CubePos> packedCubesToRemove = new HashSet<>();
+        Set<CubePos> packedCubesToLoad = new HashSet<>();
+        Set<ChunkPos> packedColumnsToRemove = new HashSet<>();
+        Set<ChunkPos> packedColumnsToLoad = new HashSet<>();
+        selector.findChanged(oldPos, newPos, horizontal, vertical,
+                cubes(oldPos, packedCubesToRemove), cubes(newPos, packedCubesToLoad),
+                columns(oldPos, packedColumnsToRemove), columns(newPos, packedColumnsToLoad));
+
+        assertEquals(cubesToRemove, packedCubesToRemove);
+        assertEquals(cubesToLoad, packedCubesToLoad);
+        assertEquals(columnsToRemove, packedColumnsToRemove);
+        assertEquals(columnsToLoad, packedColumnsToLoad);
+    }
+
+    private static LongConsumer cubes(CubePos center, Set<CubePos> out) {
+        return packed -> assertTrue("Duplicate position", out.add(center.add(
+                unpackOffsetX(packed), unpackOffsetY(packed), unpackOffsetZ(packed))));
+    }
+
+    private static LongConsumer columns(CubePos center, Set<ChunkPos> out) {
+        return packed -> {
+            assertEquals(0, unpackOffsetY(packed));
+            assertTrue("Duplicate position", out.add(new ChunkPos(
+                    center.getX() + unpackOffsetX(packed), center.getZ() + unpackOffsetZ(packed))));
+        };
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import io.github.opencubicchunks.cubicchunks.core.util.DistanceBucketQueue;
+import mcp.MethodsReturnNonnullByDefault;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class TestDistanceBucketQueue {
+
+    private final Map<Integer, Integer> priorities = new HashMap<>();
+
+    private DistanceBucketQueue<Integer> newQueue() {
+        return new DistanceBucketQueue<>(e -> priorities.getOrDefault(e, e), 32);
+    }
+
+    @Test
+    public void testOrder() {
+        DistanceBucketQueue<Integer> queue = newQueue();
+        Random random = new Random(42);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 64; i++) {
+            int e = random.nextInt(64);
+            if (!queue.contains(e)) {
+                queue.appendToEnd(e);
+                expected.add(e);
+            }
+        }
+        checkOrder(queue, expected);
+    }
+
+    @Test
+    public void testAppendToStart() {
+        DistanceBucketQueue<Integer> queue = newQueue();
+        queue.appendToEnd(1);
+        queue.appendToEnd(2);
+        queue.appendToStart(10);
+        assertEquals(10, (int) queue.iterator().next());
+        queue.updatePriorities();
+        assertEquals(1, (int) queue.iterator().next());
+    }
+
+    @Test
+    public void testUpdatePriorities() {
+        DistanceBucketQueue<Integer> queue = newQueue();
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 32; i++) {
+            queue.appendToEnd(i);
+            expected.add(i);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 32; i++) {
+            priorities.put(i, random.nextInt(64));
+        }
+        queue.updatePriorities();
+        checkOrder(queue, expected);
+    }
+
+    @Test
+    public void testRemoveWhileIterating() {
+        DistanceBucketQueue<Integer> queue = newQueue();
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 64; i++) {
+            queue.appendToEnd(i);
+            expected.add(i);
+        }
+        for (Iterator<Integer> it = queue.iterator(); it.hasNext(); ) {
+            int e = it.next();
+            if (e % 2 == 0) {
+                it.remove();
+                expected.remove(e);
+            } else if (e % 3 == 0 && queue.contains(e + 2)) {
+                queue.remove(e + 2);
+                expected.remove(e + 2);
+            }
+        }
+        assertEquals(expected.size(), queue.size());
+        queue.compactIfNeeded();
+        checkOrder(queue, expected);
+        queue.removeIf(e -> e < 16);
+        expected.removeIf(e -> e < 16);
+        queue.updatePriorities();
+        checkOrder(queue, expected);
+    }
+
+    private void checkOrder(DistanceBucketQueue<Integer> queue, Set<Integer> expected) {
+        int count = 0;
+        int prevPriority = Integer.MIN_VALUE;
+        for (Integer e : queue) {
+            count++;
+            assertTrue(expected.contains(e));
+            int priority = Math.min(priorities.getOrDefault(e, e), 32);
+            assertTrue(priority >= prevPriority);
+            prevPriority = priority;
+        }
+        assertEquals(expected.size(), count);
+        assertEquals(expected.size(), queue.size());
+    }
+}
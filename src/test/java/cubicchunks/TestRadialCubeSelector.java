@@ -0,0 +1,106 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.*;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.core.visibility.CubeSelector;
+import io.github.opencubicchunks.cubicchunks.core.visibility.EllipsoidalCubeSelector;
+import io.github.opencubicchunks.cubicchunks.core.visibility.SphericalCubeSelector;
+import mcp.MethodsReturnNonnullByDefault;
+import net.minecraft.util.math.ChunkPos;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class TestRadialCubeSelector {
+
+    @Test
+    public void testSpherical() {
+        checkSelector(new SphericalCubeSelector());
+    }
+
+    @Test
+    public void testEllipsoidal() {
+        checkSelector(new EllipsoidalCubeSelector());
+    }
+
+    private void checkSelector(CubeSelector selector) {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            int horizontal = 3 + random.nextInt(8);
+            int vertical = 3 + random.nextInt(8);
+            CubePos oldPos = new CubePos(random.nextInt(64) - 32, random.nextInt(64) - 32, random.nextInt(64) - 32);
+            int range = i % 2 == 0 ? 3 : 25;
+            CubePos newPos = oldPos.add(random.nextInt(range * 2 + 1) - range,
+                    random.nextInt(range * 2 + 1) - range, random.nextInt(range * 2 + 1) - range);
+
+            Set<CubePos> oldCubes = new HashSet<>();
+            Set<CubePos> newCubes = new HashSet<>();
+            selector.forAllVisibleFrom(oldPos, horizontal, vertical, oldCubes::add);
+            selector.forAllVisibleFrom(newPos, horizontal, vertical, newCubes::add);
+
+            Set<CubePos> cubesToRemove = new HashSet<>();
+            Set<CubePos> cubesToLoad = new HashSet<>();
+            Set<ChunkPos> columnsToRemove = new HashSet<>();
+            Set<ChunkPos> columnsToLoad = new HashSet<>();
+            selector.findChanged(oldPos, newPos, horizontal, vertical, cubesToRemove, cubesToLoad, columnsToRemove, columnsToLoad);
+            assertEquals(difference(oldCubes, newCubes), cubesToRemove);
+            assertEquals(difference(newCubes, oldCubes), cubesToLoad);
+            assertEquals(difference(columns(oldCubes), columns(newCubes)), columnsToRemove);
+            assertEquals(difference(columns(newCubes), columns(oldCubes)), columnsToLoad);
+
+            int newHorizontal = 3 + random.nextInt(horizontal - 2);
+            int newVertical = 3 + random.nextInt(vertical - 2);
+            Set<CubePos> remainingCubes = new HashSet<>();
+            selector.forAllVisibleFrom(oldPos, newHorizontal, newVertical, remainingCubes::add);
+            Set<CubePos> cubesToUnload = new HashSet<>();
+            Set<ChunkPos> columnsToUnload = new HashSet<>();
+            selector.findAllUnloadedOnViewDistanceDecrease(oldPos, horizontal, newHorizontal, vertical, newVertical,
+                    cubesToUnload, columnsToUnload);
+            assertEquals(difference(oldCubes, remainingCubes), cubesToUnload);
+            assertEquals(difference(columns(oldCubes), columns(remainingCubes)), columnsToUnload);
+        }
+    }
+
+    private static <T> Set<T> difference(Set<T> a, Set<T> b) {
+        Set<T> result = new HashSet<>(a);
+        result.removeAll(b);
+        return result;
+    }
+
+    private static Set<ChunkPos> columns(Set<CubePos> cubes) {
+        Set<ChunkPos> columns = new HashSet<>();
+        cubes.forEach(pos -> columns.add(pos.chunkPos()));
+        return columns;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ *  This file is part of Cubic Chunks Mod, licensed under the MIT License (MIT).
+ *
+ *  Copyright (c) 2015-2019 OpenCubicChunks
+ *  Copyright (c) 2015-2019 contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package cubicchunks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import io.github.opencubicchunks.cubicchunks.api.util.Coords;
+import io.github.opencubicchunks.cubicchunks.core.world.ServerHeightMap;
+import io.github.opencubicchunks.cubicchunks.core.world.cube.Cube;
+import mcp.MethodsReturnNonnullByDefault;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Compares {@link ServerHeightMap} with a simple reference that stores the opaque blocks of each block column in a set.
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class TestServerHeightMap {
+
+    private static final int MIN_Y = -40;
+    private static final int MAX_Y = 40;
+
+    private final ServerHeightMap heightMap = new ServerHeightMap(new int[Cube.SIZE * Cube.SIZE]);
+    private final ReferenceHeightMap reference = new ReferenceHeightMap();
+
+    @Test
+    public void testEmpty() {
+        checkAll(heightMap);
+        assertEquals(Coords.NO_HEIGHT, heightMap.getTopBlockY(0, 0));
+    }
+
+    @Test
+    public void testRandomOpacityChanges() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            // only a few block columns, so that they get many segments
+            int localX = random.nextInt(4);
+            int localZ = random.nextInt(4);
+            setOpacity(localX, randomY(random), localZ, randomOpacity(random));
+            checkBlockColumn(heightMap, localX, localZ);
+        }
+        checkAll(heightMap);
+    }
+
+    @Test
+    public void testFillAndClear() {
+        Random random = new Random(123);
+        for (int y = MIN_Y; y < MAX_Y; y++) {
+            setOpacity(3, y, 7, 255);
+        }
+        checkBlockColumn(heightMap, 3, 7);
+        for (int i = 0; i < 200; i++) {
+            setOpacity(3, randomY(random), 7, 0);
+            checkBlockColumn(heightMap, 3, 7);
+        }
+        for (int y = MAX_Y - 1; y >= MIN_Y; y--) {
+            setOpacity(3, y, 7, 0);
+            checkBlockColumn(heightMap, 3, 7);
+        }
+        assertEquals(Coords.NO_HEIGHT, heightMap.getTopBlockY(3, 7));
+    }
+
+    @Test
+    public void testLowestTopBlockY() {
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            setOpacity(random.nextInt(Cube.SIZE), randomY(random), random.nextInt(Cube.SIZE), randomOpacity(random));
+            if (i % 100 == 0) {
+                checkLowestTopBlockY(heightMap);
+            }
+        }
+        checkLowestTopBlockY(heightMap);
+    }
+
+    @Test
+    public void testNbtRoundTrip() {
+        Random random = new Random(99);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 2000; i++) {
+                setOpacity(random.nextInt(Cube.SIZE), randomY(random), random.nextInt(Cube.SIZE), randomOpacity(random));
+            }
+            byte[] data = heightMap.getData();
+            ServerHeightMap loaded = new ServerHeightMap(new int[Cube.SIZE * Cube.SIZE]);
+            loaded.readData(data);
+            checkAll(loaded);
+            assertArrayEquals(data, loaded.getData());
+            assertArrayEquals(heightMap.getDataForClient(), loaded.getDataForClient());
+        }
+    }
+
+    @Test
+    public void testChangesAfterLoad() {
+        Random random = new Random(5);
+        for (int i = 0; i < 3000; i++) {
+            setOpacity(random.nextInt(4), randomY(random), random.nextInt(4), randomOpacity(random));
+        }
+        ServerHeightMap loaded = new ServerHeightMap(new int[Cube.SIZE * Cube.SIZE]);
+        loaded.readData(heightMap.getData());
+        for (int i = 0; i < 3000; i++) {
+            int localX = random.nextInt(4);
+            int blockY = randomY(random);
+            int localZ = random.nextInt(4);
+            int opacity = randomOpacity(random);
+            setOpacity(localX, blockY, localZ, opacity);
+            loaded.onOpacityChange(localX, blockY, localZ, opacity);
+            checkBlockColumn(loaded, localX, localZ);
+        }
+        assertArrayEquals(heightMap.getData(), loaded.getData());
+    }
+
+    @Test
+    public void testBulkMatchesPerBlock() {
+        Random random = new Random(1234);
+        ServerHeightMap perBlock = new ServerHeightMap(new int[Cube.SIZE * Cube.SIZE]);
+        for (int i = 0; i < 200; i++) {
+            if (random.nextInt(4) == 0) {
+                int localX = random.nextInt(Cube.SIZE);
+                int blockY = randomY(random);
+                int localZ = random.nextInt(Cube.SIZE);
+                int opacity = randomOpacity(random);
+                setOpacity(localX, blockY, localZ, opacity);
+                perBlock.onOpacityChange(localX, blockY, localZ, opacity);
+            } else {
+                // both cube aligned and unaligned ranges
+                int minBlockY = random.nextBoolean() ? randomY(random) & ~(Cube.SIZE - 1) : randomY(random);
+                short[] masks = new short[Cube.SIZE * Cube.SIZE];
+                for (int j = 0; j < masks.length; j++) {
+                    masks[j] = randomMask(random);
+                }
+                setOpacity(minBlockY, masks);
+                setOpacityPerBlock(perBlock, minBlockY, masks);
+            }
+            assertArrayEquals(perBlock.getData(), heightMap.getData());
+        }
+        checkAll(heightMap);
+    }
+
+    @Test
+    public void testBulkMergesAcrossRangeBoundaries() {
+        short[] masks = new short[Cube.SIZE * Cube.SIZE];
+        // opaque blocks right below and above the range, joined by the lowest and highest bits of the mask
+        setOpacity(0, -1, 0, 255);
+        setOpacity(0, 16, 0, 255);
+        masks[0] = (short) 0x8001;
+        // a gap in the middle of an opaque range that gets filled
+        for (int y = -5; y < 21; y++) {
+            setOpacity(1, y, 0, y == 7 ? 0 : 255);
+        }
+        masks[1] = (short) 0xFFFF;
+        // opaque blocks inside the range that split and merge with segments outside of it
+        for (int y = -10; y < 30; y += 3) {
+            setOpacity(2, y, 0, 255);
+        }
+        masks[2] = (short) 0x5A5A;
+
+        ServerHeightMap perBlock = new ServerHeightMap(new int[Cube.SIZE * Cube.SIZE]);
+        perBlock.readData(heightMap.getData());
+        setOpacity(0, masks);
+        setOpacityPerBlock(perBlock, 0, masks);
+
+        assertArrayEquals(perBlock.getData(), heightMap.getData());
+        checkAll(heightMap);
+        assertEquals(16, heightMap.getTopBlockY(0, 0));
+        assertEquals(Coords.NO_HEIGHT, heightMap.getTopBlockYBelow(0, 0, -1));
+        assertEquals(20, heightMap.getTopBlockY(1, 0));
+        assertEquals(7, heightMap.getTopBlockYBelow(1, 0, 8));
+    }
+
+    @Test
+    public void testBulkEmptyMasks() {
+        // block columns with nothing, with blocks only inside the range, and with blocks inside and outside of it
+        for (int y = 0; y < 16; y += 2) {
+            setOpacity(1, y, 0, 255);
+        }
+        for (int y = -20; y < 40; y += 5) {
+            setOpacity(2, y, 0, 255);
+        }
+        for (int y = -3; y < 3; y++) {
+            setOpacity(3, y, 0, 255);
+        }
+        setOpacity(3, 20, 0, 255);
+
+        ServerHeightMap perBlock = new ServerHeightMap(new int[Cube.SIZE * Cube.SIZE]);
+        perBlock.readData(heightMap.getData());
+        short[] masks = new short[Cube.SIZE * Cube.SIZE];
+        setOpacity(0, masks);
+        setOpacityPerBlock(perBlock, 0, masks);
+
+        assertArrayEquals(perBlock.getData(), heightMap.getData());
+        checkAll(heightMap);
+        assertEquals(Coords.NO_HEIGHT, heightMap.getTopBlockY(0, 0));
+        assertEquals(Coords.NO_HEIGHT, heightMap.getTopBlockY(1, 0));
+        assertEquals(35, heightMap.getTopBlockY(2, 0));
+        assertEquals(-5, heightMap.getTopBlockYBelow(2, 0, 20));
+        assertEquals(20, heightMap.getTopBlockY(3, 0));
+        assertEquals(-1, heightMap.getTopBlockYBelow(3, 0, 20));
+    }
+
+    private void setOpacity(int minBlockY, short[] masks) {
+        heightMap.onOpacityChange(minBlockY, masks);
+        for (int xzIndex = 0; xzIndex < masks.length; xzIndex++) {
+            for (int dy = 0; dy < Cube.SIZE; dy++) {
+                reference.onOpacityChange(xzIndex & 0xF, minBlockY + dy, xzIndex >> 4, (masks[xzIndex] >>> dy) & 1);
+            }
+        }
+    }
+
+    /**
+     * Applies the masks one block at a time, the same way as the default implementation in IHeightMap
+     */
+    private static void setOpacityPerBlock(ServerHeightMap heightMap, int minBlockY, short[] masks) {
+        for (int xzIndex = 0; xzIndex < masks.length; xzIndex++) {
+            for (int dy = Cube.SIZE - 1; dy >= 0; dy--) {
+                heightMap.onOpacityChange(xzIndex & 0xF, minBlockY + dy, xzIndex >> 4, ((masks[xzIndex] >>> dy) & 1) * 255);
+            }
+        }
+    }
+
+    private static short randomMask(Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return 0;
+            case 1:
+                return (short) 0xFFFF;
+            case 2:
+                // only the lowest and highest blocks, to join with blocks outside of the range
+                return (short) (random.nextInt(4) == 0 ? 0x8001 : random.nextBoolean() ? 0x8000 : 0x0001);
+            default:
+                return (short) random.nextInt(1 << Cube.SIZE);
+        }
+    }
+
+    private void setOpacity(int localX, int blockY, int localZ, int opacity) {
+        heightMap.onOpacityChange(localX, blockY, localZ, opacity);
+        reference.onOpacityChange(localX, blockY, localZ, opacity);
+    }
+
+    private static int randomY(Random random) {
+        return MIN_Y + random.nextInt(MAX_Y - MIN_Y);
+    }
+
+    private static int randomOpacity(Random random) {
+        // any non-zero opacity counts as opaque
+        return random.nextBoolean() ? 0 : 1 + random.nextInt(255);
+    }
+
+    private void checkAll(ServerHeightMap heightMap) {
+        for (int localX = 0; localX < Cube.SIZE; localX++) {
+            for (int localZ = 0; localZ < Cube.SIZE; localZ++) {
+                checkBlockColumn(heightMap, localX, localZ);
+            }
+        }
+        checkLowestTopBlockY(heightMap);
+    }
+
+    private void checkBlockColumn(ServerHeightMap heightMap, int localX, int localZ) {
+        String message = heightMap.dump(localX, localZ);
+        assertEquals(message, reference.getTopBlockY(localX, localZ), heightMap.getTopBlockY(localX, localZ));
+        for (int blockY = MIN_Y - 2; blockY <= MAX_Y + 2; blockY++) {
+            assertEquals(message + " below " + blockY, reference.getTopBlockYBelow(localX, localZ, blockY),
+                    heightMap.getTopBlockYBelow(localX, localZ, blockY));
+        }
+    }
+
+    private void checkLowestTopBlockY(ServerHeightMap heightMap) {
+        int lowest = Integer.MAX_VALUE;
+        for (int localX = 0; localX < Cube.SIZE; localX++) {
+            for (int localZ = 0; localZ < Cube.SIZE; localZ++) {
+                lowest = Math.min(lowest, reference.getTopBlockY(localX, localZ));
+            }
+        }
+        // "no blocks at all" is reported as one below NO_HEIGHT, so that it doesn't have to be computed again
+        int expected = lowest == Coords.NO_HEIGHT ? Coords.NO_HEIGHT - 1 : lowest;
+        assertEquals(expected, heightMap.getLowestTopBlockY());
+    }
+
+    private static final class ReferenceHeightMap {
+
+        @SuppressWarnings("unchecked")
+        private final TreeSet<Integer>[] opaqueBlocks = new TreeSet[Cube.SIZE * Cube.SIZE];
+
+        ReferenceHeightMap() {
+            for (int i = 0; i < opaqueBlocks.length; i++) {
+                opaqueBlocks[i] = new TreeSet<>();
+            }
+        }
+
+        void onOpacityChange(int localX, int blockY, int localZ, int opacity) {
+            if (opacity != 0) {
+                opaqueBlocks[localZ << 4 | localX].add(blockY);
+            } else {
+                opaqueBlocks[localZ << 4 | localX].remove(blockY);
+            }
+        }
+
+        int getTopBlockY(int localX, int localZ) {
+            TreeSet<Integer> blocks = opaqueBlocks[localZ << 4 | localX];
+            return blocks.isEmpty() ? Coords.NO_HEIGHT : blocks.last();
+        }
+
+        int getTopBlockYBelow(int localX, int localZ, int blockY) {
+            Integer below = opaqueBlocks[localZ << 4 | localX].lower(blockY);
+            return below == null ? Coords.NO_HEIGHT : below;
+        }
+    }
+}